@@ -2,12 +2,38 @@ package mikejyg.smecli;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * to provide a way of adding commands to a CLI through annotation.
+ * 
+ * An annotated method is called through a CmdFunction generated for it, by LambdaMetafactory, 
+ *   as fast as a hand-written lambda, or by reflection, if it cannot be generated.
+ *   Either way, the exceptions thrown by the method are thrown by the CmdFunction.
+ * 
+ * The commands of a class are made by its registrar, generated by CliCommandProcessor, if any,
+ *   or otherwise, by scanning the methods of the class.
+ *   The registrar of a class Foo is the class Foo$CliCommands, looked up by name, 
+ *   or, failing that, one registered for Foo with the ServiceLoader.
+ *   
+ * NOTE: a class compiled without the processor, e.g. in a library jar, has no registrar,
+ *   and its commands are made by scanning, silently. Run the processor on it, to avoid the scanning.
  *  
  * @author jgu
  *
@@ -24,9 +50,81 @@ public class CliAnnotation {
 		String commandName() default "";	// when default, use the function name.
 		String [] shorthands() default {};
 		String helpString() default "";
+		long cacheTtl() default 0;			// in milliseconds, see CommandStruct.cacheTtl.
+		boolean coalesce() default false;	// see CommandStruct.coalesce.
 	}
 	
+	/**
+	 * the registrars, by their command classes, empty for none, found at the first use of each class.
+	 */
+	private static final ClassValue<Optional<CliCommandsRegistrar>> registrars = new ClassValue<>() {
+		@Override
+		protected Optional<CliCommandsRegistrar> computeValue(Class<?> cmdClass) {
+			return Optional.ofNullable(findRegistrar(cmdClass));
+		}
+	};
+	
+	/**
+	 * the registrars listed for the ServiceLoader, by their command classes, loaded at the first use.
+	 */
+	private static volatile Map<Class<?>, CliCommandsRegistrar> serviceRegistrars;
+	
 	public static ArrayList<CommandStruct> getCliCommands(Object cmdObj) {
+		Optional<CliCommandsRegistrar> registrar = registrars.get(cmdObj.getClass());
+		if (registrar.isPresent())
+			return registrar.get().getCliCommands(cmdObj);
+		
+		return scanCliCommands(cmdObj);
+	}
+	
+	/**
+	 * @return the registrar of the class, by its name, or from the ServiceLoader, or null if none.
+	 */
+	private static CliCommandsRegistrar findRegistrar(Class<?> cmdClass) {
+		try {
+			Class<?> registrarClass = Class.forName(cmdClass.getName() + CliCommandProcessor.REGISTRAR_SUFFIX
+					, true, cmdClass.getClassLoader());
+			if ( CliCommandsRegistrar.class.isAssignableFrom(registrarClass) ) {
+				CliCommandsRegistrar registrar = (CliCommandsRegistrar) registrarClass.getConstructor().newInstance();
+				if (registrar.getCommandClass()==cmdClass)
+					return registrar;
+			}
+			
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// not generated, or not accessible
+		}
+		
+		return getServiceRegistrars().get(cmdClass);
+	}
+	
+	private static Map<Class<?>, CliCommandsRegistrar> getServiceRegistrars() {
+		Map<Class<?>, CliCommandsRegistrar> map = serviceRegistrars;
+		if (map!=null)
+			return map;
+		
+		map = new HashMap<>();
+		Iterator<CliCommandsRegistrar> iter = ServiceLoader.load(CliCommandsRegistrar.class
+				, CliAnnotation.class.getClassLoader()).iterator();
+		while (true) {
+			try {
+				if ( ! iter.hasNext() )
+					break;
+				CliCommandsRegistrar registrar = iter.next();
+				map.put(registrar.getCommandClass(), registrar);
+				
+			} catch (ServiceConfigurationError e) {
+				// e.g. a stale entry, of a class removed, whose commands are scanned instead
+			}
+		}
+		
+		serviceRegistrars = map;
+		return map;
+	}
+	
+	/**
+	 * make the commands, by scanning the methods of the class, for the @CliCommand ones.
+	 */
+	static ArrayList<CommandStruct> scanCliCommands(Object cmdObj) {
 		ArrayList<CommandStruct> cmdList = new ArrayList<>();
 		
 		Method [] methods = cmdObj.getClass().getMethods();
@@ -43,18 +141,9 @@ public class CliAnnotation {
 				commandName = cliCmd.commandName();
 			
 			CommandStruct commandStruct = new CommandStruct(
-					commandName, cliCmd.shorthands(), cliCmd.helpString()
-					, (x) -> { 
-						CmdReturnType r = null;
-						try {
-							r = (CmdReturnType) method.invoke(cmdObj, x);
-						} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-						
-						return r;
-					});
+					commandName, cliCmd.shorthands(), cliCmd.helpString(), toCmdFunction(cmdObj, method));
+			commandStruct.cacheTtl = cliCmd.cacheTtl();
+			commandStruct.coalesce = cliCmd.coalesce();
 		
 			cmdList.add(commandStruct);
 		}
@@ -62,5 +151,79 @@ public class CliAnnotation {
 		return cmdList;
 	}
 	
+	/**
+	 * the factories of the CmdFunctions of the methods, by the declaring classes, and the methods,
+	 *   empty for the methods whose CmdFunctions cannot be generated.
+	 */
+	private static final ClassValue<Map<Method, Optional<MethodHandle>>> cmdFunctionFactories = new ClassValue<>() {
+		@Override
+		protected Map<Method, Optional<MethodHandle>> computeValue(Class<?> declaringClass) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+	
+	/**
+	 * @return a CmdFunction calling the method of the object, generated by LambdaMetafactory,
+	 *   or by reflection, if it cannot be generated, e.g. the class is in a module not open to this one.
+	 *   
+	 * The CmdFunction class is generated once per method, and bound to each object.
+	 */
+	static CmdFunction toCmdFunction(Object cmdObj, Method method) {
+		Optional<MethodHandle> factory = cmdFunctionFactories.get(method.getDeclaringClass())
+				.computeIfAbsent(method, CliAnnotation::makeCmdFunctionFactory);
+		if (factory.isEmpty())
+			return toReflectiveCmdFunction(cmdObj, method);
+		
+		try {
+			if ( Modifier.isStatic(method.getModifiers()) )
+				return (CmdFunction) factory.get().invoke();
+			return (CmdFunction) factory.get().invoke(cmdObj);
+			
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);		// not thrown by a lambda factory
+		}
+	}
+	
+	/**
+	 * @return a method handle, taking the object, unless the method is static, and returning a CmdFunction,
+	 *   or empty, if it cannot be generated.
+	 */
+	private static Optional<MethodHandle> makeCmdFunctionFactory(Method method) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+			MethodHandle methodHandle = lookup.unreflect(method);
+			
+			MethodType factoryType = Modifier.isStatic(method.getModifiers()) ? MethodType.methodType(CmdFunction.class)
+					: MethodType.methodType(CmdFunction.class, method.getDeclaringClass());
+			MethodType applyType = MethodType.methodType(CmdReturnType.class, CmdCallType.class);
+			CallSite callSite = LambdaMetafactory.metafactory(lookup, "apply", factoryType, applyType, methodHandle, applyType);
+			
+			return Optional.of(callSite.getTarget());
+			
+		} catch (LambdaConversionException | ReflectiveOperationException e) {
+			return Optional.empty();
+		}
+	}
+	
+	/**
+	 * @return a CmdFunction calling the method of the object, by reflection.
+	 */
+	static CmdFunction toReflectiveCmdFunction(Object cmdObj, Method method) {
+		return cmdCall->{
+			try {
+				return (CmdReturnType) method.invoke(cmdObj, cmdCall);
+			} catch (InvocationTargetException e) {
+				// what the method threw
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				if (e.getCause() instanceof Error)
+					throw (Error) e.getCause();
+				throw e;
+			}
+		};
+	}
+	
 
 }
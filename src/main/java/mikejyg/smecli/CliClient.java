@@ -1,11 +1,23 @@
 package mikejyg.smecli;
 
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
+import mikejyg.smecli.CliAnnotation.CliCommand;
+import mikejyg.smecli.CliLineReader.EofException;
 import mikejyg.smecli.CliLineReader.IllegalInputCharException;
 import mikejyg.smecli.CliLineReader.UnexpectedEofException;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
 import mikejyg.smecli.session.ConsoleSession;
 import mikejyg.smecli.session.Session;
+import mikejyg.smecli.session.SessionCommonEnv;
 import mikejyg.smecli.session.SessionWithLoop;
 import mikejyg.smecli.socket.RemoteCommandExecutor;
 
@@ -28,12 +40,91 @@ public class CliClient {
 		consoleSession = new ConsoleSession(sessionBase);
 		SessionWithLoop sessionWithLoop = new SessionWithLoop(sessionBase);
 		rce.addCommands(sessionWithLoop.getCommandStructs());
+		rce.addMethods(this);
+		
+		// show the streamed output of remote commands, as it arrives
+		rce.setOutputListener(chunk->{
+			PrintWriter printWriter = consoleSession.getConsoleSessionCommonRef().getPrintWriter();
+			printWriter.print(chunk);
+			printWriter.flush();
+		});
+	}
+	
+	/**
+	 * execute a script file remotely, in a single batch, i.e. a single round trip.
+	 * 
+	 * Like the source command, the execution stops at the first error.
+	 * 
+	 * @param cmdCall
+	 * @return
+	 * @throws Exception
+	 */
+	@CliCommand(helpString = "parameter: script_filename\texecute the script file remotely, in a single batch."
+			+ " Local commands, e.g. loops, are not supported in a batch.")
+	public CmdReturnType sourceBatch(CmdCallType cmdCall) throws Exception {
+		String args[] = CliUtils.toArgs(cmdCall);
+		
+		if (args.length < 1) {
+			return new CmdReturnType(ReturnCode.INVALID_ARGUMENT, "missing argument");
+		} else if (args.length>1) {
+			return new CmdReturnType(ReturnCode.INVALID_ARGUMENT, "excessive arguments after " + args[0]);
+		}
+		
+		String filename = args[0];
+		
+		List<String> cmdLines = new ArrayList<>();
+		List<CmdCallType> cmdCalls = new ArrayList<>();
+		
+		try ( InputStreamReader reader = new InputStreamReader( new FileInputStream(filename), StandardCharsets.UTF_8 ) ) {
+			CliLineReader cliLineReader = new CliLineReader(reader);
+			while (true) {
+				String cmdLine;
+				try {
+					cmdLine = cliLineReader.readCliLine();
+				} catch (EofException e) {
+					break;
+				}
+				
+				if ( cmdLine.isEmpty() || cmdLine.charAt(0)=='#' )
+					continue;
+				
+				cmdLines.add(cmdLine);
+				cmdCalls.add(CmdCallType.toCmdCall(cmdLine));
+			}
+			
+		} catch (FileNotFoundException e) {
+			return new CmdReturnType(ReturnCode.FAILURE, "failed to open file: " + filename);
+		}
+		
+		List<CmdReturnType> cmdReturns = rce.execBatch(cmdCalls, false);
+		
+		// report as if the commands were executed one by one
+		SessionCommonEnv sessionCommonEnv = sessionBase.getSessionCommonRef();
+		for (int i=0; i<cmdReturns.size(); i++) {
+			if (sessionCommonEnv.getCmdLineListener()!=null)
+				sessionCommonEnv.getCmdLineListener().accept(cmdLines.get(i));
+			
+			if (sessionCommonEnv.getCmdReturnListener()!=null)
+				sessionCommonEnv.getCmdReturnListener().accept(cmdReturns.get(i));
+			
+			if ( ! cmdReturns.get(i).getReturnCode().isOk() )
+				return new CmdReturnType(ReturnCode.SCRIPT_ERROR_EXIT);
+		}
+		
+		return new CmdReturnType(ReturnCode.NOP);
 	}
 	
 	public void connect(String hostname, int port) throws IOException {
 		rce.connect(hostname, port);
 	}
 	
+	/**
+	 * connect to a server on the same host, by its Unix domain socket.
+	 */
+	public void connect(Path unixSocketPath) throws IOException {
+		rce.connect(unixSocketPath);
+	}
+	
 	public void runInteractive() throws IOException, UnexpectedEofException, IllegalInputCharException {
 		ConsoleSession.runInteractive(consoleSession);
 		consoleSession.flushPrintWriter();
@@ -0,0 +1,238 @@
+package mikejyg.smecli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import mikejyg.smecli.CliAnnotation.CliCommand;
+
+/**
+ * an annotation processor, that generates a CliCommandsRegistrar for each class with @CliCommand methods,
+ *   so that its commands are made without reflection, and registers them for the ServiceLoader.
+ *
+ * The registrar of a class named Foo is named Foo$CliCommands, in the same package.
+ *
+ * No registrar is generated for a private class, or a local one, whose commands are made by reflection.
+ *
+ * @author mikejyg
+ *
+ */
+@SupportedAnnotationTypes("mikejyg.smecli.CliAnnotation.CliCommand")
+public class CliCommandProcessor extends AbstractProcessor {
+	public static final String REGISTRAR_SUFFIX="$CliCommands";
+
+	static final String SERVICE_FILE="META-INF/services/" + CliCommandsRegistrar.class.getName();
+
+	/**
+	 * the binary names of the registrars generated.
+	 */
+	private Set<String> registrarNames = new TreeSet<>();
+
+	//////////////////////////////////////////////////////////
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeServiceFile();
+			return false;
+		}
+
+		Set<TypeElement> typeElements = new LinkedHashSet<>();
+		for (Element element : roundEnv.getElementsAnnotatedWith(CliCommand.class)) {
+			if (element.getKind()==ElementKind.METHOD)
+				typeElements.add((TypeElement) element.getEnclosingElement());
+		}
+
+		for (TypeElement typeElement : typeElements) {
+			try {
+				generate(typeElement);
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR
+						, "failed to generate the registrar: " + e, typeElement);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * generate the registrar of a class, unless the class is not accessible from its package.
+	 */
+	private void generate(TypeElement typeElement) throws IOException {
+		for (Element e = typeElement; e.getKind().isClass() || e.getKind().isInterface(); e = e.getEnclosingElement()) {
+			if ( e.getModifiers().contains(Modifier.PRIVATE)
+					|| ((TypeElement) e).getNestingKind()!=NestingKind.TOP_LEVEL && ((TypeElement) e).getNestingKind()!=NestingKind.MEMBER )
+				return;
+		}
+
+		Elements elements = processingEnv.getElementUtils();
+
+		// the public methods, including the inherited ones, as by Class.getMethods()
+		List<ExecutableElement> methods = new ArrayList<>();
+		for (Element member : elements.getAllMembers(typeElement)) {
+			if ( member.getKind()!=ElementKind.METHOD || member.getAnnotation(CliCommand.class)==null
+					|| ! member.getModifiers().contains(Modifier.PUBLIC) )
+				continue;
+
+			ExecutableElement method = (ExecutableElement) member;
+			if ( ! isCmdFunction(method) ) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR
+						, "a @CliCommand method must be of the form: CmdReturnType name(CmdCallType cmdCall) throws Exception"
+						, method);
+				return;
+			}
+			methods.add(method);
+		}
+
+		String packageName = elements.getPackageOf(typeElement).getQualifiedName().toString();
+		String binaryName = elements.getBinaryName(typeElement).toString();
+		String registrarName = binaryName + REGISTRAR_SUFFIX;
+		String registrarSimpleName = packageName.isEmpty() ? registrarName : registrarName.substring(packageName.length() + 1);
+		String className = typeElement.getQualifiedName().toString();
+
+		StringBuilder sb = new StringBuilder();
+		if ( ! packageName.isEmpty() )
+			sb.append("package ").append(packageName).append(";\n\n");
+
+		sb.append("/**\n");
+		sb.append(" * generated by ").append(CliCommandProcessor.class.getName()).append(", from ").append(className).append(".\n");
+		sb.append(" */\n");
+		sb.append("@SuppressWarnings(\"rawtypes\")\n");
+		sb.append("public final class ").append(registrarSimpleName).append(" implements mikejyg.smecli.CliCommandsRegistrar {\n\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic Class<?> getCommandClass() {\n");
+		sb.append("\t\treturn ").append(className).append(".class;\n");
+		sb.append("\t}\n\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic java.util.ArrayList<mikejyg.smecli.CommandStruct> getCliCommands(Object obj) {\n");
+		sb.append("\t\t").append(className).append(" cmdObj = (").append(className).append(") obj;\n");
+		sb.append("\t\tjava.util.ArrayList<mikejyg.smecli.CommandStruct> cmdList = new java.util.ArrayList<>();\n");
+		sb.append("\t\tmikejyg.smecli.CommandStruct commandStruct;\n");
+
+		for (ExecutableElement method : methods) {
+			CliCommand cliCmd = method.getAnnotation(CliCommand.class);
+			String methodName = method.getSimpleName().toString();
+			String commandName = cliCmd.commandName().isEmpty() ? methodName : cliCmd.commandName();
+
+			StringBuilder shorthands = new StringBuilder();
+			for (String s : cliCmd.shorthands()) {
+				if (shorthands.length()!=0)
+					shorthands.append(", ");
+				shorthands.append(elements.getConstantExpression(s));
+			}
+
+			String cmdFunc = method.getModifiers().contains(Modifier.STATIC) ? className + "::" + methodName
+					: "cmdObj::" + methodName;
+
+			sb.append("\n");
+			sb.append("\t\tcommandStruct = new mikejyg.smecli.CommandStruct(").append(elements.getConstantExpression(commandName))
+				.append(", new String[]{").append(shorthands).append("}, ").append(elements.getConstantExpression(cliCmd.helpString()))
+				.append(", ").append(cmdFunc).append(");\n");
+			sb.append("\t\tcommandStruct.cacheTtl = ").append(cliCmd.cacheTtl()).append("L;\n");
+			sb.append("\t\tcommandStruct.coalesce = ").append(cliCmd.coalesce()).append(";\n");
+			sb.append("\t\tcmdList.add(commandStruct);\n");
+		}
+
+		sb.append("\n\t\treturn cmdList;\n");
+		sb.append("\t}\n\n");
+		sb.append("}\n");
+
+		try (Writer writer = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? registrarSimpleName
+				: packageName + '.' + registrarSimpleName, typeElement).openWriter()) {
+			writer.write(sb.toString());
+		}
+
+		registrarNames.add(registrarName);
+	}
+
+	/**
+	 * @return whether the method can be a CmdFunction.
+	 */
+	private boolean isCmdFunction(ExecutableElement method) {
+		Elements elements = processingEnv.getElementUtils();
+		Types types = processingEnv.getTypeUtils();
+
+		TypeMirror cmdCallType = elements.getTypeElement(CmdCallType.class.getCanonicalName()).asType();
+		TypeMirror cmdReturnType = elements.getTypeElement(CmdReturnType.class.getCanonicalName()).asType();
+		TypeMirror exceptionType = elements.getTypeElement(Exception.class.getCanonicalName()).asType();
+
+		if ( method.getParameters().size()!=1 || ! types.isSameType(method.getParameters().get(0).asType(), cmdCallType) )
+			return false;
+
+		if ( ! types.isAssignable(method.getReturnType(), cmdReturnType) )
+			return false;
+
+		for (TypeMirror thrownType : method.getThrownTypes()) {
+			if ( ! types.isAssignable(thrownType, exceptionType) )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * list the registrars in the service file, with the ones already there, e.g. from a previous incremental build.
+	 */
+	private void writeServiceFile() {
+		if (registrarNames.isEmpty())
+			return;
+
+		Set<String> names = new TreeSet<>(registrarNames);
+
+		try {
+			FileObject fileObject = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+			try (BufferedReader reader = new BufferedReader(fileObject.openReader(true))) {
+				String line;
+				while ( (line = reader.readLine())!=null ) {
+					line = line.trim();
+					if ( ! line.isEmpty() && ! line.startsWith("#") )
+						names.add(line);
+				}
+			}
+		} catch (IOException e) {
+			// no service file yet
+		}
+
+		try {
+			FileObject fileObject = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+			try (Writer writer = fileObject.openWriter()) {
+				for (String name : names) {
+					writer.write(name + '\n');
+				}
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "failed to write " + SERVICE_FILE + ": " + e);
+		}
+	}
+
+
+}
@@ -0,0 +1,27 @@
+package mikejyg.smecli;
+
+import java.util.ArrayList;
+
+/**
+ * makes the commands of the @CliCommand methods of a class, without reflection.
+ *
+ * An implementation is generated by CliCommandProcessor, for each class with @CliCommand methods,
+ *   and found by CliAnnotation.getCliCommands(), by its name, or through the ServiceLoader.
+ *
+ * @author mikejyg
+ *
+ */
+public interface CliCommandsRegistrar {
+
+	/**
+	 * @return the class whose commands are made.
+	 */
+	public Class<?> getCommandClass();
+
+	/**
+	 * @param cmdObj	an instance of the command class.
+	 * @return the commands, calling the methods of the object.
+	 */
+	public ArrayList<CommandStruct> getCliCommands(Object cmdObj);
+
+}
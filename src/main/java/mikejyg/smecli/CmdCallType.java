@@ -4,8 +4,11 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.Utf8Codec;
+import mikejyg.socket.WireFormat;
 
 /**
  * to package a command name and a arguments string
@@ -36,6 +39,12 @@ public class CmdCallType {
 	 */
 	private String argumentsStr=new String();
 
+	/**
+	 * where a command can stream its output, as it is produced, instead of returning it all in the result.
+	 * It is not serialized, and can be null.
+	 */
+	private Consumer<String> outputListener;
+
 	////////////////////////////////////////////////////////////
 	
 	/**
@@ -94,26 +103,104 @@ public class CmdCallType {
 	 * @return
 	 */
 	public void serialize(ByteBufferAccumulator bba) {
-		byte [] cmdBytes = commandName.getBytes(charset);
-		bba.putInt(cmdBytes.length);
-		bba.put(cmdBytes);
-		
-		bba.put( (byte)(argumentsInArgsFlag ? 1 : 0) );
+		serialize( bba.reserve(getSerializedSize()) );
+	}
+	
+	/**
+	 * serialize into a buffer, which must have getSerializedSize() bytes remaining.
+	 * @param bb
+	 */
+	public void serialize(ByteBuffer bb) {
+		serialize(bb, WireFormat.V1);
+	}
+	
+	/**
+	 * serialize in a wire format, into a buffer, which must have getSerializedSize(wireFormat) bytes remaining.
+	 * 
+	 * V1 is as serialize(ByteBufferAccumulator), and V2 is the same, except that:
+	 *   ints are varints, and 
+	 *   argumentsInArgsFlag, and the number of strings or the string length that follows, 
+	 *     are combined into a single varint: number << 1 | argumentsInArgsFlag
+	 * 
+	 * @param bb
+	 * @param wireFormat
+	 */
+	public void serialize(ByteBuffer bb, WireFormat wireFormat) {
+		wireFormat.putString(bb, commandName);
 		
+		serializeArguments(bb, wireFormat);
+	}
+	
+	/**
+	 * serialize the arguments only, i.e. everything after the command name, 
+	 *   into a buffer, which must have getArgumentsSerializedSize() bytes remaining.
+	 * @param bb
+	 */
+	public void serializeArguments(ByteBuffer bb) {
+		serializeArguments(bb, WireFormat.V1);
+	}
+	
+	public void serializeArguments(ByteBuffer bb, WireFormat wireFormat) {
 		if (argumentsInArgsFlag) {
-			bba.putInt(args.length);
+			putArgumentsHeader(bb, wireFormat, args.length);
 			for (String arg : args) {
-				byte[] argsBytes = arg.getBytes(charset);
-				bba.putInt(argsBytes.length);
-				bba.put(argsBytes);
+				wireFormat.putString(bb, arg);
 			}
 			
 		} else {
-			byte[] argumentsStrBytes = argumentsStr.getBytes(charset);
+			putArgumentsHeader(bb, wireFormat, Utf8Codec.encodedLength(argumentsStr));
+			Utf8Codec.encode(argumentsStr, bb);
 			
-			bba.putInt(argumentsStrBytes.length);
-			bba.put(argumentsStrBytes);
+		}
+	}
+	
+	/**
+	 * @param number	the number of strings, or the string length.
+	 */
+	private void putArgumentsHeader(ByteBuffer bb, WireFormat wireFormat, int number) {
+		if (wireFormat==WireFormat.V1) {
+			bb.put( (byte)(argumentsInArgsFlag ? 1 : 0) );
+			bb.putInt(number);
+		} else {
+			wireFormat.putInt(bb, number << 1 | (argumentsInArgsFlag ? 1 : 0));
+		}
+	}
+	
+	private int getArgumentsHeaderSize(WireFormat wireFormat, int number) {
+		if (wireFormat==WireFormat.V1)
+			return 1 + 4;
+		return wireFormat.intSize(number << 1 | 1);
+	}
+	
+	/**
+	 * @return the number of bytes serialize() produces.
+	 */
+	public int getSerializedSize() {
+		return getSerializedSize(WireFormat.V1);
+	}
+	
+	public int getSerializedSize(WireFormat wireFormat) {
+		return wireFormat.stringSize(commandName) + getArgumentsSerializedSize(wireFormat);
+	}
+	
+	/**
+	 * @return the number of bytes serializeArguments() produces.
+	 */
+	public int getArgumentsSerializedSize() {
+		return getArgumentsSerializedSize(WireFormat.V1);
+	}
+	
+	public int getArgumentsSerializedSize(WireFormat wireFormat) {
+		if (argumentsInArgsFlag) {
+			int size = getArgumentsHeaderSize(wireFormat, args.length);
+			for (String arg : args) {
+				size += wireFormat.stringSize(arg);
+			}
+			return size;
 			
+		} else {
+			int length = Utf8Codec.encodedLength(argumentsStr);
+			return getArgumentsHeaderSize(wireFormat, length) + length;
 		}
 	}
 	
@@ -122,27 +209,51 @@ public class CmdCallType {
 	 * @param bytes
 	 */
 	public CmdCallType(ByteBuffer bb) {
-		byte[] buf = new byte[bb.getInt()];
-		bb.get(buf);
-		commandName = new String(buf, charset);
-		byte b = bb.get();
-		if ( b == (byte)1 )
-			argumentsInArgsFlag = true;
+		this(bb, WireFormat.V1);
+	}
+	
+	public CmdCallType(ByteBuffer bb, WireFormat wireFormat) {
+		commandName = wireFormat.getString(bb);
+		
+		deserializeArguments(bb, wireFormat);
+	}
+	
+	/**
+	 * de-serialize the arguments, as serialized by serializeArguments(), of a known command name.
+	 * @param commandName
+	 * @param bb
+	 */
+	public CmdCallType(String commandName, ByteBuffer bb) {
+		this(commandName, bb, WireFormat.V1);
+	}
+	
+	public CmdCallType(String commandName, ByteBuffer bb, WireFormat wireFormat) {
+		this.commandName = commandName;
+		
+		deserializeArguments(bb, wireFormat);
+	}
+	
+	private void deserializeArguments(ByteBuffer bb, WireFormat wireFormat) {
+		int number;
+		if (wireFormat==WireFormat.V1) {
+			byte b = bb.get();
+			if ( b == (byte)1 )
+				argumentsInArgsFlag = true;
+			number = bb.getInt();
+		} else {
+			int k = wireFormat.getInt(bb);
+			argumentsInArgsFlag = (k & 1) != 0;
+			number = k >>> 1;
+		}
 		
 		if (argumentsInArgsFlag) {
-			int argsCnt = bb.getInt();
-			
-			args = new String[argsCnt];
-			for (int i=0; i<argsCnt; i++) {
-				int length = bb.getInt();
-				buf = new byte[length];
-				bb.get(buf);
-				args[i] = new String(buf, charset);
+			args = new String[number];
+			for (int i=0; i<number; i++) {
+				args[i] = wireFormat.getString(bb);
 			}
 			
 		} else {
-			int length = bb.getInt();
-			buf = new byte[length];
+			byte[] buf = new byte[number];
 			bb.get(buf);
 			argumentsStr = new String(buf, charset);
 		}
@@ -251,5 +362,16 @@ public class CmdCallType {
 		return argumentsInArgsFlag;
 	}
 
+	public Consumer<String> getOutputListener() {
+		return outputListener;
+	}
+
+	/**
+	 * @param outputListener	to receive the output of the command, in chunks, as it is produced.
+	 */
+	public void setOutputListener(Consumer<String> outputListener) {
+		this.outputListener = outputListener;
+	}
+
 
 }
@@ -3,6 +3,8 @@ package mikejyg.smecli;
 import java.nio.ByteBuffer;
 
 import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.Utf8Codec;
+import mikejyg.socket.WireFormat;
 
 /**
  * this class is to wrap the 2 return values.
@@ -26,7 +28,8 @@ public class CmdReturnType {
 		INVALID_ARGUMENT(5),
 		FAILURE(6),	// can continue
 		FAILURE_UNRECOVERABLE(7)	// cannot continue
-		, SCRIPT_ERROR_EXIT(8);			// used by sub-script to indicate script exit due to error 
+		, SCRIPT_ERROR_EXIT(8)			// used by sub-script to indicate script exit due to error 
+		, CANCELLED(9);					// the execution was cancelled, e.g. by a remote client
 		
 		private int idValue;
 		
@@ -72,6 +75,11 @@ public class CmdReturnType {
 	 */
 	private String result;	// device specific results/messages
 	
+	/**
+	 * cached UTF-8 length of result, -1 for not yet known.
+	 */
+	private int resultEncodedLength=-1;
+	
 	////////////////////////////////////////////////////////////
 	
 	public CmdReturnType(ReturnCode returnCode) {
@@ -96,14 +104,47 @@ public class CmdReturnType {
 	 * @param bba
 	 */
 	public void serialize(ByteBufferAccumulator bba) {
-		byte [] resultBytes = result.getBytes(CmdCallType.charset);
-		
-		ByteBuffer bb = ByteBuffer.allocate( 4 + 4 + resultBytes.length );
-		bb.putInt(returnCode.intValue());
-		bb.putInt(resultBytes.length);
-		bb.put(resultBytes);
-		
-		bba.put(bb.array());
+		serialize( bba.reserve(getSerializedSize()) );
+	}
+	
+	/**
+	 * serialize into a buffer, which must have getSerializedSize() bytes remaining.
+	 * @param bb
+	 */
+	public void serialize(ByteBuffer bb) {
+		serialize(bb, WireFormat.V1);
+	}
+	
+	/**
+	 * serialize in a wire format, into a buffer, which must have getSerializedSize(wireFormat) bytes remaining.
+	 * 
+	 * V1 is as serialize(ByteBufferAccumulator), and V2 is the same, except that ints are varints.
+	 * 
+	 * @param bb
+	 * @param wireFormat
+	 */
+	public void serialize(ByteBuffer bb, WireFormat wireFormat) {
+		wireFormat.putInt(bb, returnCode.intValue());
+		wireFormat.putInt(bb, getResultEncodedLength());
+		Utf8Codec.encode(result, bb);
+	}
+	
+	/**
+	 * @return the number of bytes serialize() produces.
+	 */
+	public int getSerializedSize() {
+		return getSerializedSize(WireFormat.V1);
+	}
+	
+	public int getSerializedSize(WireFormat wireFormat) {
+		return wireFormat.intSize(returnCode.intValue()) + wireFormat.intSize(getResultEncodedLength()) 
+			+ getResultEncodedLength();
+	}
+	
+	private int getResultEncodedLength() {
+		if (resultEncodedLength<0)
+			resultEncodedLength = Utf8Codec.encodedLength(result);
+		return resultEncodedLength;
 	}
 	
 	/**
@@ -112,8 +153,12 @@ public class CmdReturnType {
 	 * @throws ReturnCode.IllegalValueException
 	 */
 	public CmdReturnType(ByteBuffer bb) throws ReturnCode.IllegalValueException {
-		returnCode = ReturnCode.getReturnCode(bb.getInt());
-		int length = bb.getInt();
+		this(bb, WireFormat.V1);
+	}
+	
+	public CmdReturnType(ByteBuffer bb, WireFormat wireFormat) throws ReturnCode.IllegalValueException {
+		returnCode = ReturnCode.getReturnCode(wireFormat.getInt(bb));
+		int length = wireFormat.getInt(bb);
 		byte [] buf =new byte[length];
 		bb.get(buf);
 		result = new String(buf, CmdCallType.charset);
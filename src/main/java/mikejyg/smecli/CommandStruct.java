@@ -27,6 +27,19 @@ public class CommandStruct {
 	 */
 	public CmdFunction cmdFunc;
 	
+	/**
+	 * how long the returns are cached, in milliseconds, for repeated identical calls, 
+	 *   0 (the default) not to cache, see CommandsCommandExecutor.
+	 * Only for commands whose returns depend on the arguments only, within the time.
+	 */
+	public long cacheTtl;
+	
+	/**
+	 * whether identical calls, executing at the same time, are coalesced into one execution, 
+	 *   whose return goes to all of them, see CommandsCommandExecutor.
+	 */
+	public boolean coalesce;
+	
 	///////////////////////////////////////
 	
 	public CommandStruct(String commandName, String [] shorthands, String helpString, CmdFunction cmdFunc) {
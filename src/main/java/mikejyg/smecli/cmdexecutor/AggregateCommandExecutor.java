@@ -1,7 +1,14 @@
 package mikejyg.smecli.cmdexecutor;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mikejyg.smecli.CmdCallType;
 import mikejyg.smecli.CmdReturnType;
@@ -12,10 +19,20 @@ import mikejyg.smecli.CommandStruct;
 /**
  * A CommandExecutor that uses a list of command executors.
  * 
+ * A command goes to the first command executor in the list that has it,
+ *   and then to the commands added to the aggregate itself, by addCommand().
+ * 
+ * The command executors are found by a routing index, from the command names to the command executors,
+ *   built from their getCommands(). The index is rebuilt on the first lookup after the list, or their commands,
+ *   change, so that registering many commands does not rebuild it for each one.
+ *   A command executor that does not list its commands, e.g. a remote one without a catalog,
+ *   is tried for any command, in its turn. A name not in the index, e.g. a prefix, with prefix dispatch,
+ *   goes to the command executors that have it, by getCommand().
+ * 
  * NOTE: all command executors should share a same environment.
  * 
  * @author jgu
- *
+ * 
  */
 public class AggregateCommandExecutor implements CommandExecutorIntf {
 	private Environment environment = new Environment();
@@ -25,14 +42,65 @@ public class AggregateCommandExecutor implements CommandExecutorIntf {
 	 */
 	private List<CommandExecutorIntf> commandExecutorList = new ArrayList<>();
 	
+	/**
+	 * the commands added to the aggregate itself.
+	 */
+	private CommandsCommandExecutor cliCommands = new CommandsCommandExecutor(environment);
+	
+	/**
+	 * a snapshot of the command executors, and the routing index.
+	 */
+	private static class Routes {
+		/**
+		 * the commands version the index is built for.
+		 */
+		int version;
+		
+		/**
+		 * in order, ending with cliCommands.
+		 */
+		CommandExecutorIntf[] executors;
+		
+		/**
+		 * whether each of the executors lists its commands.
+		 */
+		boolean[] listedFlags;
+		
+		/**
+		 * the command executors to try, in order, for a command name,
+		 *   i.e. the owner of the command, after the executors that do not list their commands, if any.
+		 */
+		Map<String, CommandExecutorIntf[]> routeMap = new HashMap<>();
+		
+		/**
+		 * the command executors that do not list their commands, to try for the other command names.
+		 */
+		CommandExecutorIntf[] unlistedExecutors;
+	}
+	
+	/**
+	 * null, or out of date, if the version differs from commandsVersion.
+	 */
+	private volatile Routes routes;
+	
+	private AtomicInteger commandsVersion = new AtomicInteger();
+	
+	/**
+	 * added to all the command executors.
+	 */
+	private Runnable routesUpdater = this::onCommandsChange;
+	
+	private List<Runnable> commandsChangeListeners = new CopyOnWriteArrayList<>();
+	
 	////////////////////////////////////////////////////////////////
 	
 	public AggregateCommandExecutor() {
+		cliCommands.addCommandsChangeListener(routesUpdater);
 	}
 	
 	@Override
 	public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception  {
-		for (CommandExecutorIntf ce : commandExecutorList) {
+		for (CommandExecutorIntf ce : route(cmdCall.getCommandName())) {
 			CmdReturnType cmdReturn = ce.execCmd(cmdCall);
 			if (cmdReturn.getReturnCode()==ReturnCode.INVALID_COMMAND)
 				continue;
@@ -42,10 +110,138 @@ public class AggregateCommandExecutor implements CommandExecutorIntf {
 		return new CmdReturnType(ReturnCode.INVALID_COMMAND);
 	}
 	
+	/**
+	 * the command executors routed to are tried in turn, each one after the previous one returns.
+	 */
+	@Override
+	public CompletionStage<CmdReturnType> execCmdAsync(CmdCallType cmdCall) {
+		return execCmdAsync(cmdCall, route(cmdCall.getCommandName()), 0);
+	}
+	
+	/**
+	 * @param index	of the command executor to try.
+	 */
+	private CompletionStage<CmdReturnType> execCmdAsync(CmdCallType cmdCall, CommandExecutorIntf[] executors, int index) {
+		if (index >= executors.length)
+			return CompletableFuture.completedFuture(new CmdReturnType(ReturnCode.INVALID_COMMAND));
+		
+		return executors[index].execCmdAsync(cmdCall).thenCompose(cmdReturn->{
+			if (cmdReturn.getReturnCode()==ReturnCode.INVALID_COMMAND)
+				return execCmdAsync(cmdCall, executors, index + 1);
+			return CompletableFuture.completedFuture(cmdReturn);
+		});
+	}
+	
+	/**
+	 * @return the command executors to try, in order, for a command name.
+	 */
+	private CommandExecutorIntf[] route(String commandName) {
+		Routes rs = getRoutes();
+		CommandExecutorIntf[] executors = rs.routeMap.get(commandName);
+		if (executors!=null)
+			return executors;
+		
+		// not a listed name, but a command executor may still take it, e.g. by prefix
+		List<CommandExecutorIntf> route = null;
+		for (int i=0; i<rs.executors.length; i++) {
+			if ( rs.listedFlags[i] && rs.executors[i].getCommand(commandName)!=null ) {
+				route = new ArrayList<>();
+				break;
+			}
+		}
+		if (route==null)
+			return rs.unlistedExecutors;
+		
+		for (int i=0; i<rs.executors.length; i++) {
+			if ( ! rs.listedFlags[i] || rs.executors[i].getCommand(commandName)!=null )
+				route.add(rs.executors[i]);
+		}
+		return route.toArray(new CommandExecutorIntf[0]);
+	}
+	
+	/**
+	 * @return the routing index, rebuilt if out of date.
+	 */
+	private Routes getRoutes() {
+		Routes rs = routes;
+		if ( rs!=null && rs.version==commandsVersion.get() )
+			return rs;
+		return updateRoutes();
+	}
+	
+	/**
+	 * rebuild the routing index, from the current command executors, and their commands.
+	 *
+	 * A change during the rebuild leaves the index out of date, to be rebuilt again on the next lookup.
+	 */
+	private synchronized Routes updateRoutes() {
+		int version = commandsVersion.get();
+		
+		Routes rs = routes;
+		if ( rs!=null && rs.version==version )
+			return rs;
+		
+		rs = new Routes();
+		rs.version = version;
+		rs.executors = getExecutors();
+		rs.listedFlags = new boolean[rs.executors.length];
+		
+		List<CommandExecutorIntf> unlistedExecutors = new ArrayList<>();
+		for (int i=0; i<rs.executors.length; i++) {
+			CommandExecutorIntf ce = rs.executors[i];
+			List<CommandStruct> commands = ce.getCommands();
+			if (commands==null) {
+				unlistedExecutors.add(ce);
+				continue;
+			}
+			rs.listedFlags[i] = true;
+			
+			CommandExecutorIntf[] route = unlistedExecutors.toArray(new CommandExecutorIntf[unlistedExecutors.size() + 1]);
+			route[route.length - 1] = ce;
+			
+			// an earlier command executor takes precedence
+			for (CommandStruct cs : commands) {
+				rs.routeMap.putIfAbsent(cs.commandName, route);
+				if (cs.shorthands!=null) {
+					for (String s : cs.shorthands) {
+						rs.routeMap.putIfAbsent(s, route);
+					}
+				}
+			}
+		}
+		rs.unlistedExecutors = unlistedExecutors.toArray(new CommandExecutorIntf[0]);
+		
+		routes = rs;
+		return rs;
+	}
+	
+	/**
+	 * @return the command executors, in order, ending with cliCommands.
+	 */
+	private synchronized CommandExecutorIntf[] getExecutors() {
+		CommandExecutorIntf[] executors = commandExecutorList.toArray(new CommandExecutorIntf[commandExecutorList.size() + 1]);
+		executors[executors.length - 1] = cliCommands;
+		return executors;
+	}
+	
+	/**
+	 * the command executors, or their commands, changed. The routing index is rebuilt on the next lookup.
+	 */
+	private void onCommandsChange() {
+		commandsVersion.incrementAndGet();
+		
+		for (Runnable listener : commandsChangeListeners) {
+			listener.run();
+		}
+	}
+	
 	@Override
 	public String toHelpString() {
 		String helpStr="";
-		for (CommandExecutorIntf ce : commandExecutorList) {
+		for (CommandExecutorIntf ce : getExecutors()) {
+			if (ce==cliCommands && cliCommands.getCommands().isEmpty())
+				continue;
+			
 			if (helpStr.isEmpty())
 				helpStr = ce.toHelpString();
 			else
@@ -55,24 +251,108 @@ public class AggregateCommandExecutor implements CommandExecutorIntf {
 		return helpStr;
 	}
 	
+	@Override
+	public int getCommandsVersion() {
+		return commandsVersion.get();
+	}
+	
+	/**
+	 * @return the commands of all the command executors, or null, if not supported by any of them.
+	 */
+	@Override
+	public List<CommandStruct> getCommands() {
+		List<CommandStruct> commands = new ArrayList<>();
+		for (CommandExecutorIntf ce : getExecutors()) {
+			List<CommandStruct> ceCommands = ce.getCommands();
+			if (ceCommands==null)
+				return null;
+			commands.addAll(ceCommands);
+		}
+		return commands;
+	}
+	
+	/**
+	 * the listener is called also when the list of command executors changes.
+	 */
+	@Override
+	public void addCommandsChangeListener(Runnable listener) {
+		commandsChangeListeners.add(listener);
+	}
+	
+	@Override
+	public void removeCommandsChangeListener(Runnable listener) {
+		commandsChangeListeners.remove(listener);
+	}
+	
 	/**
-	 * this single access method allows user to insert executors at desired list positions. 
+	 * this single access method allows user to insert executors at desired list positions.
+	 *
+	 * The routing index is updated as the list changes.
 	 */
 	public List<CommandExecutorIntf> getCommandExecutorList() {
-		return commandExecutorList;
+		return commandExecutorListView;
 	}
-
+	
+	private List<CommandExecutorIntf> commandExecutorListView = new AbstractList<CommandExecutorIntf>() {
+		@Override
+		public CommandExecutorIntf get(int index) {
+			synchronized (AggregateCommandExecutor.this) {
+				return commandExecutorList.get(index);
+			}
+		}
+		
+		@Override
+		public int size() {
+			synchronized (AggregateCommandExecutor.this) {
+				return commandExecutorList.size();
+			}
+		}
+		
+		@Override
+		public CommandExecutorIntf set(int index, CommandExecutorIntf ce) {
+			CommandExecutorIntf oldCe;
+			synchronized (AggregateCommandExecutor.this) {
+				oldCe = commandExecutorList.set(index, ce);
+			}
+			oldCe.removeCommandsChangeListener(routesUpdater);
+			ce.addCommandsChangeListener(routesUpdater);
+			onCommandsChange();
+			return oldCe;
+		}
+		
+		@Override
+		public void add(int index, CommandExecutorIntf ce) {
+			synchronized (AggregateCommandExecutor.this) {
+				commandExecutorList.add(index, ce);
+			}
+			ce.addCommandsChangeListener(routesUpdater);
+			onCommandsChange();
+		}
+		
+		@Override
+		public CommandExecutorIntf remove(int index) {
+			CommandExecutorIntf ce;
+			synchronized (AggregateCommandExecutor.this) {
+				ce = commandExecutorList.remove(index);
+			}
+			ce.removeCommandsChangeListener(routesUpdater);
+			onCommandsChange();
+			return ce;
+		}
+	};
+	
 	@Override
 	public Environment getEnvironment() {
 		return environment;
 	}
-
+	
+	/**
+	 * the command is executed if none of the command executors in the list has it.
+	 */
 	@Override
 	public void addCommand(CommandStruct commandStruct) {
-		// TODO Auto-generated method stub
-		
+		cliCommands.addCommand(commandStruct);
 	}
 
 
 }
-
@@ -1,6 +1,9 @@
 package mikejyg.smecli.cmdexecutor;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import mikejyg.smecli.CliAnnotation;
 import mikejyg.smecli.CmdCallType;
@@ -24,6 +27,23 @@ public interface CommandExecutorIntf {
 	 */
 	public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception;
 	
+	/**
+	 * execute a command call, without waiting for its return, if supported by the executor,
+	 *   e.g. when the command is executed remotely, so that no thread is parked while it executes.
+	 * 
+	 * By default, the command is executed right away, on the calling thread.
+	 * 
+	 * @param cmdCall
+	 * @return completed with the return, not null, or exceptionally.
+	 */
+	default public CompletionStage<CmdReturnType> execCmdAsync(CmdCallType cmdCall) {
+		try {
+			return CompletableFuture.completedFuture(execCmd(cmdCall));
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
 	/**
 	 * @return a string of help.
 	 */
@@ -45,6 +65,55 @@ public interface CommandExecutorIntf {
 		addCommands(CliAnnotation.getCliCommands(cmdObj));
 	}
 	
+	/**
+	 * look up a command, to be executed later by execCmd(CommandStruct, CmdCallType), 
+	 *   e.g. to cache the look up of a frequent command.
+	 * 
+	 * @param commandName
+	 * @return null, if not found, or not supported by the executor.
+	 */
+	default public CommandStruct getCommand(String commandName) {
+		return null;
+	}
+	
+	/**
+	 * execute a command call, of a command already looked up by getCommand().
+	 * 
+	 * @param commandStruct
+	 * @param cmdCall
+	 * @return	not null.
+	 * @throws Exception
+	 */
+	default public CmdReturnType execCmd(CommandStruct commandStruct, CmdCallType cmdCall) throws Exception {
+		return execCmd(cmdCall);
+	}
+	
+	/**
+	 * @return a number that changes whenever the commands change, 
+	 *   to tell when the results of getCommand() need to be looked up again.
+	 */
+	default public int getCommandsVersion() {
+		return 0;
+	}
+	
+	/**
+	 * @return the commands, e.g. for the command catalog of remote clients, 
+	 *   or null, if not supported by the executor.
+	 */
+	default public List<CommandStruct> getCommands() {
+		return null;
+	}
+	
+	/**
+	 * @param listener	called, on the thread changing the commands, whenever the commands change.
+	 *   Ignored, if not supported by the executor.
+	 */
+	default public void addCommandsChangeListener(Runnable listener) {
+	}
+	
+	default public void removeCommandsChangeListener(Runnable listener) {
+	}
+	
 	default public CmdReturnType execCmd(String args[]) throws Exception {
 		CmdCallType cmdCall = CmdCallType.toCmdCall(args);
 		if (cmdCall.isEmpty())
@@ -0,0 +1,310 @@
+package mikejyg.smecli.cmdexecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * a radix trie, from the command names to the commands, with the lookups by prefix, e.g. for completion.
+ *
+ * An exact lookup takes the length of the name, regardless of the number of names.
+ *
+ * Each edge holds a string, and the children of a node are sorted by the first characters of their edges,
+ *   so that the names are enumerated in order.
+ *
+ * It is not thread safe.
+ *
+ * @author mikejyg
+ *
+ * @param <V>	the type of the values.
+ */
+public class CommandTrie<V> {
+
+	private static class Node<V> {
+		/**
+		 * the edge from the parent.
+		 */
+		String label;
+
+		/**
+		 * null if no name ends here.
+		 */
+		V value;
+
+		/**
+		 * sorted by the first characters of their labels.
+		 */
+		@SuppressWarnings("unchecked")
+		Node<V>[] children = (Node<V>[]) new Node<?>[0];
+
+		Node(String label, V value) {
+			this.label = label;
+			this.value = value;
+		}
+
+		/**
+		 * @return the index of the child whose label starts with c, or -(insertion point) - 1, if none.
+		 */
+		int indexOf(char c) {
+			int low=0, high=children.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				char midChar = children[mid].label.charAt(0);
+				if (midChar < c)
+					low = mid + 1;
+				else if (midChar > c)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+
+		Node<V> getChild(char c) {
+			int index = indexOf(c);
+			return index >= 0 ? children[index] : null;
+		}
+
+		void insertChild(int insertionPoint, Node<V> child) {
+			Node<V>[] newChildren = Arrays.copyOf(children, children.length + 1);
+			System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, children.length - insertionPoint);
+			newChildren[insertionPoint] = child;
+			children = newChildren;
+		}
+
+		void removeChild(int index) {
+			Node<V>[] newChildren = Arrays.copyOf(children, children.length - 1);
+			System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+			children = newChildren;
+		}
+	}
+
+	private Node<V> root = new Node<>("", null);
+
+	private int size;
+
+	//////////////////////////////////////////////////////////
+
+	/**
+	 * @param name
+	 * @return null if not found.
+	 */
+	public V get(String name) {
+		Node<V> node = root;
+		int i=0;
+
+		while (i < name.length()) {
+			node = node.getChild(name.charAt(i));
+			if ( node==null || ! name.startsWith(node.label, i) )
+				return null;
+			i += node.label.length();
+		}
+
+		return node.value;
+	}
+
+	/**
+	 * @param name
+	 * @param value	not null.
+	 * @return the value replaced, or null if none.
+	 */
+	public V put(String name, V value) {
+		if (value==null)
+			throw new IllegalArgumentException("null value.");
+
+		Node<V> node = root;
+		int i=0;
+
+		while (i < name.length()) {
+			int index = node.indexOf(name.charAt(i));
+			if (index < 0) {
+				node.insertChild(-index - 1, new Node<>(name.substring(i), value));
+				size++;
+				return null;
+			}
+
+			Node<V> child = node.children[index];
+			int k = commonPrefixLength(name, i, child.label);
+
+			if (k < child.label.length()) {
+				// split the edge
+				Node<V> mid = new Node<>(child.label.substring(0, k), null);
+				child.label = child.label.substring(k);
+				mid.insertChild(0, child);
+				node.children[index] = mid;
+				child = mid;
+			}
+
+			node = child;
+			i += k;
+		}
+
+		V oldValue = node.value;
+		node.value = value;
+		if (oldValue==null)
+			size++;
+		return oldValue;
+	}
+
+	/**
+	 * @param name
+	 * @return the value removed, or null if not found.
+	 */
+	public V remove(String name) {
+		Node<V> parent = null;
+		Node<V> node = root;
+		int i=0;
+
+		while (i < name.length()) {
+			Node<V> child = node.getChild(name.charAt(i));
+			if ( child==null || ! name.startsWith(child.label, i) )
+				return null;
+			parent = node;
+			node = child;
+			i += child.label.length();
+		}
+
+		V oldValue = node.value;
+		if (oldValue==null)
+			return null;
+
+		node.value = null;
+		size--;
+
+		// keep the trie compact
+		if (node!=root) {
+			if (node.children.length==0) {
+				parent.removeChild(parent.indexOf(node.label.charAt(0)));
+				if ( parent!=root && parent.value==null && parent.children.length==1 )
+					merge(parent);
+			} else if (node.children.length==1) {
+				merge(node);
+			}
+		}
+
+		return oldValue;
+	}
+
+	/**
+	 * merge a node without a value, with its only child.
+	 */
+	private void merge(Node<V> node) {
+		Node<V> child = node.children[0];
+		node.label = node.label + child.label;
+		node.value = child.value;
+		node.children = child.children;
+	}
+
+	private static int commonPrefixLength(String name, int offset, String label) {
+		int n = Math.min(name.length() - offset, label.length());
+		int k=0;
+		while ( k < n && name.charAt(offset + k)==label.charAt(k) )
+			k++;
+		return k;
+	}
+
+	/**
+	 * @param prefix
+	 * @return the node of the subtree of the names starting with the prefix, or null if none,
+	 *   and the name at the node, in the name builder.
+	 */
+	private Node<V> findPrefix(String prefix, StringBuilder name) {
+		Node<V> node = root;
+		int i=0;
+
+		while (i < prefix.length()) {
+			node = node.getChild(prefix.charAt(i));
+			if (node==null)
+				return null;
+
+			int k = commonPrefixLength(prefix, i, node.label);
+			if ( k < node.label.length() && i + k < prefix.length() )
+				return null;
+
+			name.append(node.label);
+			i += node.label.length();
+		}
+
+		return node;
+	}
+
+	/**
+	 * call the action for the names starting with a prefix, in order.
+	 *
+	 * @param prefix	empty for all the names.
+	 * @param action	called with the names, and their values.
+	 */
+	public void forEach(String prefix, BiConsumer<String, V> action) {
+		StringBuilder name = new StringBuilder();
+		Node<V> node = findPrefix(prefix, name);
+		if (node!=null)
+			forEach(node, name, action);
+	}
+
+	private static <V> void forEach(Node<V> node, StringBuilder name, BiConsumer<String, V> action) {
+		if (node.value!=null)
+			action.accept(name.toString(), node.value);
+
+		for (Node<V> child : node.children) {
+			int length = name.length();
+			name.append(child.label);
+			forEach(child, name, action);
+			name.setLength(length);
+		}
+	}
+
+	/**
+	 * @param prefix	empty for all the names.
+	 * @return the names starting with the prefix, in order.
+	 */
+	public List<String> getNames(String prefix) {
+		List<String> names = new ArrayList<>();
+		forEach(prefix, (name, value)->names.add(name));
+		return names;
+	}
+
+	/**
+	 * @param prefix
+	 * @return the value of the name, if found, or otherwise, the value of the names starting with the prefix,
+	 *   if they all have the same value, e.g. a command and its shorthands, or null if none, or ambiguous.
+	 */
+	public V getByUniquePrefix(String prefix) {
+		V value = get(prefix);
+		if (value!=null)
+			return value;
+
+		Node<V> node = findPrefix(prefix, new StringBuilder());
+		return node!=null ? getUniqueValue(node) : null;
+	}
+
+	/**
+	 * @return the value of the subtree, if all the names in it have the same value, otherwise null.
+	 */
+	private static <V> V getUniqueValue(Node<V> node) {
+		V value = node.value;
+
+		for (Node<V> child : node.children) {
+			V childValue = getUniqueValue(child);
+			if (childValue==null)
+				return null;
+
+			if (value==null)
+				value = childValue;
+			else if (value!=childValue)
+				return null;
+		}
+
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+
+}
@@ -1,9 +1,16 @@
 package mikejyg.smecli.cmdexecutor;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import mikejyg.smecli.CmdCallType;
 import mikejyg.smecli.CmdReturnType;
@@ -14,17 +21,59 @@ import mikejyg.smecli.Environment;
 /**
  * A command executor that holds a list of commands.
  * 
+ * The successful returns of cacheable commands, see CommandStruct.cacheTtl, are cached, 
+ *   and repeated identical calls are served from the cache, until the returns expire.
+ * 
+ * Identical calls of coalescing commands, see CommandStruct.coalesce, executing at the same time, 
+ *   e.g. from different connections of a server, are executed once, and the return goes to all of them.
+ * 
+ * Commands can be added while others are being looked up, e.g. by the connections of a server.
+ *   The exact lookups, the dispatch path, are by a concurrent hash map, without a lock, 
+ *   and the lookups by prefix are by a trie, under the lock.
+ * 
  * @author jgu
  *
  */
 public class CommandsCommandExecutor implements CommandExecutorIntf {
+	public static final int DEFAULT_RESULT_CACHE_SIZE=1024;
+	
 	private Environment environment;
 	
 	// command storage & indexes
 	
-	private List<CommandStruct> commands = new ArrayList<>();
+	/**
+	 * by the command names, in the order first added.
+	 */
+	private LinkedHashMap<String, CommandStruct> commands = new LinkedHashMap<>();
 	
-	private Map<String, CommandStruct> cmdMap = new TreeMap<>();
+	/**
+	 * by the command names, and the shorthands, for the exact lookups.
+	 */
+	private Map<String, CommandStruct> cmdMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * by the command names, and the shorthands, for the lookups by prefix, guarded by this.
+	 */
+	private CommandTrie<CommandStruct> cmdTrie = new CommandTrie<>();
+	
+	/**
+	 * whether a command can be called by a unique prefix of its name, see setPrefixDispatch().
+	 */
+	private volatile boolean prefixDispatchFlag;
+	
+	private volatile int commandsVersion;
+	
+	/**
+	 * the returns of the cacheable commands.
+	 */
+	private ResultCache resultCache = new ResultCache(DEFAULT_RESULT_CACHE_SIZE);
+	
+	/**
+	 * the executing calls of the coalescing commands, by the serialized calls.
+	 */
+	private Map<ByteBuffer, CompletableFuture<CmdReturnType>> executingCalls = new ConcurrentHashMap<>();
+	
+	private List<Runnable> commandsChangeListeners = new CopyOnWriteArrayList<>();
 
 	////////////////////////////////////////////////////////////////
 	
@@ -36,25 +85,101 @@ public class CommandsCommandExecutor implements CommandExecutorIntf {
 		this.environment = environment;
 	}
 	
+	/**
+	 * The listeners are called after the command is added, outside of the lock, 
+	 *   as they can read the commands from another thread, e.g. to send a catalog.
+	 */
 	@Override
 	public void addCommand(CommandStruct commandStruct) {
-		CommandStruct existingCs = cmdMap.get(commandStruct.commandName);
-		if (existingCs!=null) {
-			commands.remove(existingCs);
+		synchronized (this) {
+			// a replaced command keeps its place
+			CommandStruct existingCs = commands.put(commandStruct.commandName, commandStruct);
+			
+			// the new names first, so that a name kept is found throughout
+			index(commandStruct.commandName, commandStruct);
+			
+			if (commandStruct.shorthands!=null) {
+				for (String s : commandStruct.shorthands) {
+					index(s, commandStruct);
+				}
+			}
+			
+			if (existingCs!=null && existingCs.shorthands!=null) {
+				for (String s : existingCs.shorthands) {
+					if (cmdMap.remove(s, existingCs))
+						cmdTrie.remove(s);
+				}
+			}
+			
+			commandsVersion++;
 		}
+		resultCache.clear();
 		
-		commands.add(commandStruct);
-		cmdMap.put(commandStruct.commandName, commandStruct);
+		notifyCommandsChange();
+	}
+	
+	private void index(String name, CommandStruct commandStruct) {
+		cmdMap.put(name, commandStruct);
+		cmdTrie.put(name, commandStruct);
+	}
+	
+	/**
+	 * call the commands change listeners.
+	 */
+	protected void notifyCommandsChange() {
+		for (Runnable listener : commandsChangeListeners) {
+			listener.run();
+		}
+	}
+	
+	/**
+	 * @return null if not found, or, with prefix dispatch, if the prefix is ambiguous.
+	 */
+	@Override
+	public CommandStruct getCommand(String commandName) {
+		CommandStruct commandStruct = cmdMap.get(commandName);
+		if ( commandStruct!=null || ! prefixDispatchFlag )
+			return commandStruct;
 		
-		if (commandStruct.shorthands!=null) {
-			for (String s : commandStruct.shorthands) {
-				cmdMap.put(s, commandStruct);
-			}
+		synchronized (this) {
+			return cmdTrie.getByUniquePrefix(commandName);
 		}
 	}
 	
-	private CommandStruct getCommand(String commandName) {
-		return cmdMap.get(commandName);
+	/**
+	 * @param prefix	empty for all.
+	 * @return the command names, and the shorthands, starting with the prefix, in order, e.g. for completion.
+	 */
+	public synchronized List<String> getCommandNames(String prefix) {
+		return cmdTrie.getNames(prefix);
+	}
+	
+	/**
+	 * @param prefixDispatchFlag	whether a command can be called by a prefix of its name, or shorthand,
+	 *   when not ambiguous, e.g. ec for echo. Off by default.
+	 */
+	public void setPrefixDispatch(boolean prefixDispatchFlag) {
+		this.prefixDispatchFlag = prefixDispatchFlag;
+	}
+	
+	@Override
+	public int getCommandsVersion() {
+		return commandsVersion;
+	}
+	
+	@Override
+	public synchronized List<CommandStruct> getCommands() {
+		return Collections.unmodifiableList(new ArrayList<>(commands.values()));
+	}
+	
+	@Override
+	public void addCommandsChangeListener(Runnable listener) {
+		commandsChangeListeners.add(listener);
+	}
+	
+	@Override
+	public void removeCommandsChangeListener(Runnable listener) {
+		commandsChangeListeners.remove(listener);
 	}
 	
 	public boolean hasCommand(CmdCallType cmdCall) {
@@ -74,7 +199,7 @@ public class CommandsCommandExecutor implements CommandExecutorIntf {
 		if (cmdStruct==null) {
 			cmdReturn = new CmdReturnType(ReturnCode.INVALID_COMMAND);	
 		} else {
-			cmdReturn = cmdStruct.cmdFunc.apply(cmdCall);
+			return execCmd(cmdStruct, cmdCall);
 		}
 		
 		if ( cmdReturn.getReturnCode().isCmdExecResult() )
@@ -84,18 +209,109 @@ public class CommandsCommandExecutor implements CommandExecutorIntf {
 	}
 	
 	@Override
-	public String toHelpString() {
-		String helpStr="";
-		for (CommandStruct cmd : commands) {
-			if (helpStr.isEmpty())
-				helpStr = cmd.toString();
-			else
-				helpStr = helpStr + '\n' + cmd.toString();
+	public CmdReturnType execCmd(CommandStruct cmdStruct, CmdCallType cmdCall) throws Exception {
+		CmdReturnType cmdReturn;
+		
+		if (cmdStruct.cacheTtl > 0)
+			cmdReturn = execCachedCmd(cmdStruct, cmdCall);
+		else if (cmdStruct.coalesce)
+			cmdReturn = execCoalescedCmd(cmdStruct, cmdCall, ResultCache.toKey(cmdCall));
+		else
+			cmdReturn = cmdStruct.cmdFunc.apply(cmdCall);
+		
+		if ( cmdReturn.getReturnCode().isCmdExecResult() )
+			environment.setLastCmdReturn(cmdReturn);
+		
+		return cmdReturn;
+	}
+	
+	/**
+	 * serve the call from the result cache, or execute it, and cache its return, if successful.
+	 * 
+	 * NOTE: streamed output, if any, is not cached.
+	 */
+	private CmdReturnType execCachedCmd(CommandStruct cmdStruct, CmdCallType cmdCall) throws Exception {
+		ByteBuffer key = ResultCache.toKey(cmdCall);
+		
+		CmdReturnType cmdReturn = resultCache.get(key, System.nanoTime());
+		if (cmdReturn!=null)
+			return cmdReturn;
+		
+		if (cmdStruct.coalesce)
+			cmdReturn = execCoalescedCmd(cmdStruct, cmdCall, key);
+		else
+			cmdReturn = cmdStruct.cmdFunc.apply(cmdCall);
+		
+		if ( cmdReturn!=null && cmdReturn.getReturnCode()==ReturnCode.OK ) {
+			resultCache.put(key, cmdReturn, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cmdStruct.cacheTtl));
+		}
+		
+		return cmdReturn;
+	}
+	
+	/**
+	 * execute the call, or wait for an identical call already executing, and take its return.
+	 * 
+	 * NOTE: if the executing call fails, or is cancelled, so are the waiting ones.
+	 * 
+	 * @param key	of the call.
+	 */
+	private CmdReturnType execCoalescedCmd(CommandStruct cmdStruct, CmdCallType cmdCall, ByteBuffer key) 
+			throws Exception {
+		CompletableFuture<CmdReturnType> future = new CompletableFuture<>();
+		
+		CompletableFuture<CmdReturnType> executingFuture = executingCalls.putIfAbsent(key, future);
+		if (executingFuture!=null) {
+			try {
+				return executingFuture.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+		
+		try {
+			CmdReturnType cmdReturn = cmdStruct.cmdFunc.apply(cmdCall);
+			future.complete(cmdReturn);
+			return cmdReturn;
+			
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+			throw e;
+			
+		} finally {
+			executingCalls.remove(key, future);
+		}
+	}
+	
+	/**
+	 * drop all the cached returns, e.g. when the state the cacheable commands depend on has changed.
+	 */
+	public void clearResultCache() {
+		resultCache.clear();
+	}
+	
+	/**
+	 * @param resultCacheSize	the most returns to cache, the least recently used ones are evicted first.
+	 *   0 to disable caching.
+	 */
+	public void setResultCacheSize(int resultCacheSize) {
+		resultCache.setMaxSize(resultCacheSize);
+	}
+	
+	@Override
+	public synchronized String toHelpString() {
+		StringBuilder helpStr = new StringBuilder();
+		for (CommandStruct cmd : commands.values()) {
+			if (helpStr.length()!=0)
+				helpStr.append('\n');
+			helpStr.append(cmd.toString());
 		}
-		return helpStr;
+		return helpStr.toString();
 	}
 	
-	public boolean isEmpty() {
+	public synchronized boolean isEmpty() {
 		return commands.isEmpty();
 	}
 
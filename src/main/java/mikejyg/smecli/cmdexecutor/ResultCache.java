@@ -0,0 +1,113 @@
+package mikejyg.smecli.cmdexecutor;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mikejyg.smecli.CmdCallType;
+import mikejyg.smecli.CmdReturnType;
+import mikejyg.socket.WireFormat;
+
+/**
+ * a bounded cache of command returns, keyed by the serialized command calls,
+ *   with the least recently used ones evicted first.
+ *
+ * It is thread safe.
+ *
+ * @author mikejyg
+ *
+ */
+class ResultCache {
+
+	private static class Entry {
+		CmdReturnType cmdReturn;
+
+		/**
+		 * by System.nanoTime().
+		 */
+		long expireTime;
+
+		Entry(CmdReturnType cmdReturn, long expireTime) {
+			this.cmdReturn = cmdReturn;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private int maxSize;
+
+	/**
+	 * in access order.
+	 */
+	private LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	//////////////////////////////////////////////////////////
+
+	/**
+	 * @param maxSize	the most returns to hold.
+	 */
+	ResultCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the key of a command call, its serialized bytes, in the compact wire format.
+	 */
+	static ByteBuffer toKey(CmdCallType cmdCall) {
+		ByteBuffer bb = ByteBuffer.allocate(cmdCall.getSerializedSize(WireFormat.V2));
+		cmdCall.serialize(bb, WireFormat.V2);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * @param key
+	 * @param now	by System.nanoTime().
+	 * @return the return, or null if not cached, or expired.
+	 */
+	synchronized CmdReturnType get(ByteBuffer key, long now) {
+		Entry entry = entries.get(key);
+		if (entry==null)
+			return null;
+
+		if (now - entry.expireTime >= 0) {
+			entries.remove(key);
+			return null;
+		}
+
+		return entry.cmdReturn;
+	}
+
+	/**
+	 * @param key
+	 * @param cmdReturn
+	 * @param expireTime	by System.nanoTime().
+	 */
+	synchronized void put(ByteBuffer key, CmdReturnType cmdReturn, long expireTime) {
+		entries.put(key, new Entry(cmdReturn, expireTime));
+	}
+
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+
+		while (entries.size() > maxSize) {
+			entries.remove( entries.keySet().iterator().next() );
+		}
+	}
+
+
+}
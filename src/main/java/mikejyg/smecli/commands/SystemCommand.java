@@ -5,10 +5,12 @@ import mikejyg.smecli.CmdCallType;
 import mikejyg.smecli.CmdReturnType;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 import mikejyg.smecli.CliAnnotation.CliCommand;
 import mikejyg.smecli.CmdReturnType.ReturnCode;
@@ -21,6 +23,9 @@ public class SystemCommand {
 		this.printWriterRef = printWriterRef;
 	}
 	
+	/**
+	 * NOTE: the process is killed, if the executing thread is interrupted, e.g. the command is cancelled.
+	 */
 	@CliCommand(shorthands = {"sys"}, helpString = "execute a system command with args")
 	public CmdReturnType system(CmdCallType cmdCall) throws Exception {
 		String [] args = CliUtils.toArgs(cmdCall);
@@ -39,16 +44,52 @@ public class SystemCommand {
 		InputStream is = process.getInputStream();
 		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
 
-		String line = null;
-		while ((line = reader.readLine()) != null) {
-			printWriterRef.println(line);
+		// the output is read on its own thread, so that the waiting for the process can be interrupted.
+		IOException[] exception = {null};
+		Thread outputThread = new Thread(()->{
+			try {
+				readOutput(reader, cmdCall.getOutputListener());
+			} catch (IOException e) {
+				exception[0] = e;
+			}
+		}, "system output");
+		outputThread.start();
+		
+		int rc;
+		try {
+			rc = process.waitFor();
+			outputThread.join();
+			
+		} catch (InterruptedException e) {
+			// cancelled
+			process.destroyForcibly();
+			throw e;
 		}
 		
-		int rc = process.waitFor();
+		if (exception[0]!=null)
+			throw exception[0];
 		
 		return new CmdReturnType(ReturnCode.OK, Integer.toString(rc));
 		
 	}
 	
+	private void readOutput(BufferedReader reader, Consumer<String> outputListener) throws IOException {
+		if (outputListener!=null) {
+			// stream the output as it comes, in blocks of whatever is available.
+			char[] buf = new char[8192];
+			int k;
+			while ( (k = reader.read(buf)) >= 0 ) {
+				if (k!=0)
+					outputListener.accept(new String(buf, 0, k));
+			}
+			
+		} else {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				printWriterRef.println(line);
+			}
+		}
+	}
+	
 	
 }
@@ -0,0 +1,265 @@
+package mikejyg.smecli.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import mikejyg.smecli.CommandStruct;
+import mikejyg.smecli.socket.CliPacketSerdes.DesException;
+import mikejyg.socket.WireFormat;
+
+/**
+ * out of band (OOB) messages, carried by OOB packets.
+ *
+ * an OOB message is:
+ * 1 byte type
+ * ... type specific data
+ *
+ * @author mikejyg
+ *
+ */
+class CliOob {
+
+	enum Type {
+		/**
+		 * connection set up, sent by the client, and answered by the server with the agreed settings.
+		 */
+		HELLO(1)
+
+		/**
+		 * cancel a tagged call, or batch, sent by the client.
+		 *
+		 * followed by:
+		 * 4 bytes tag
+		 */
+		, CANCEL(2)
+
+		/**
+		 * a keepalive probe, sent by the server to an idle client, that agreed to it by HELLO.
+		 */
+		, PING(3)
+
+		/**
+		 * the answer to a PING.
+		 */
+		, PONG(4)
+
+		/**
+		 * the command catalog, sent by the server to a client that agreed to it by HELLO, 
+		 *   right after the HELLO reply, and again whenever the commands change.
+		 *
+		 * followed by:
+		 * 4 bytes number of commands
+		 * repeated:
+		 *   string command name
+		 *   4 bytes number of shorthands
+		 *   repeated: string shorthand
+		 *   string help
+		 *
+		 * where a string is 4 bytes UTF-8 length, followed by the UTF-8 bytes.
+		 */
+		, CATALOG(5)
+
+		/**
+		 * sent by the server, in place of a catalog, when the commands are no longer known,
+		 *   e.g. after a command executor that does not list its commands is added.
+		 *   The client drops its catalog, and sends all the commands to the server, until the next catalog.
+		 */
+		, CATALOG_WITHDRAWN(6)
+		;
+
+		private byte value;
+
+		private Type(int value) {
+			this.value = (byte)value;
+		}
+
+		public byte byteValue() {
+			return value;
+		}
+
+		public static Type getType(byte value) throws DesException {
+			for (Type type : values()) {
+				if (type.value==value)
+					return type;
+			}
+			throw new DesException();
+		}
+	}
+
+	/**
+	 * @return the CANCEL message of a tag.
+	 */
+	static byte[] cancel(int tag) {
+		ByteBuffer bb = ByteBuffer.allocate(1 + 4);
+		bb.put(Type.CANCEL.byteValue());
+		bb.putInt(tag);
+		return bb.array();
+	}
+
+	/**
+	 * @return a message of a type without data.
+	 */
+	static byte[] message(Type type) {
+		return new byte[] { type.byteValue() };
+	}
+
+	/**
+	 * @return the CATALOG message of the commands.
+	 */
+	static byte[] catalog(Collection<CommandStruct> commands) {
+		WireFormat wf = WireFormat.V1;
+
+		int size = 1 + 4;
+		for (CommandStruct cs : commands) {
+			size += wf.stringSize(cs.commandName) + 4 + wf.stringSize(cs.helpString);
+			if (cs.shorthands!=null) {
+				for (String s : cs.shorthands) {
+					size += wf.stringSize(s);
+				}
+			}
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(size);
+		bb.put(Type.CATALOG.byteValue());
+		bb.putInt(commands.size());
+		for (CommandStruct cs : commands) {
+			wf.putString(bb, cs.commandName);
+			if (cs.shorthands==null) {
+				bb.putInt(0);
+			} else {
+				bb.putInt(cs.shorthands.length);
+				for (String s : cs.shorthands) {
+					wf.putString(bb, s);
+				}
+			}
+			wf.putString(bb, cs.helpString);
+		}
+		return bb.array();
+	}
+
+	/**
+	 * @param bb	the data of a CATALOG message.
+	 * @return the commands, without command functions.
+	 */
+	static List<CommandStruct> getCatalog(ByteBuffer bb) {
+		WireFormat wf = WireFormat.V1;
+
+		int cnt = bb.getInt();
+		List<CommandStruct> commands = new ArrayList<>(cnt);
+		for (int i=0; i<cnt; i++) {
+			String commandName = wf.getString(bb);
+			String[] shorthands = new String[bb.getInt()];
+			for (int j=0; j<shorthands.length; j++) {
+				shorthands[j] = wf.getString(bb);
+			}
+			commands.add( new CommandStruct(commandName, shorthands, wf.getString(bb), null) );
+		}
+		return commands;
+	}
+
+	/**
+	 * the connection settings, exchanged by HELLO.
+	 *
+	 * serialized as:
+	 * 1 byte number of options
+	 * repeated:
+	 *   1 byte option
+	 *   4 bytes value
+	 *
+	 * Unknown options are ignored, so that new options can be added.
+	 */
+	static class Hello {
+		static final byte COMPRESSION_THRESHOLD=1;
+		static final byte COMMAND_SYMBOLS=2;
+		static final byte PROTOCOL_VERSION=3;
+		static final byte KEEPALIVE=4;
+		static final byte CATALOG=5;
+
+		/**
+		 * the most command symbols a connection can define.
+		 */
+		static final int MAX_COMMAND_SYMBOLS=4096;
+
+		/**
+		 * payloads larger than this are compressed, -1 to disable.
+		 */
+		int compressionThreshold=-1;
+
+		/**
+		 * the number of command symbols the client can define, see CliPacketSerdes.
+		 */
+		int commandSymbols;
+
+		/**
+		 * the highest protocol version of the client, and the agreed one in the reply, see WireFormat.
+		 * It is 1, without the option.
+		 */
+		int protocolVersion=1;
+
+		/**
+		 * 1 if the client answers PINGs, and the server may send them, 0 otherwise.
+		 */
+		int keepalive;
+
+		/**
+		 * 1 if the client requests the command catalog, and the server sends it, 0 otherwise.
+		 */
+		int catalog;
+
+		Hello() {}
+
+		Hello(ByteBuffer bb) {
+			int cnt = bb.get();
+			for (int i=0; i<cnt; i++) {
+				byte option = bb.get();
+				int value = bb.getInt();
+
+				switch (option) {
+				case COMPRESSION_THRESHOLD:
+					compressionThreshold = value;
+					break;
+
+				case COMMAND_SYMBOLS:
+					commandSymbols = value;
+					break;
+
+				case PROTOCOL_VERSION:
+					protocolVersion = value;
+					break;
+
+				case KEEPALIVE:
+					keepalive = value;
+					break;
+
+				case CATALOG:
+					catalog = value;
+					break;
+
+				default:
+					break;
+				}
+			}
+		}
+
+		byte[] toBytes() {
+			ByteBuffer bb = ByteBuffer.allocate(1 + 1 + 5 * 5);
+			bb.put(Type.HELLO.byteValue());
+			bb.put((byte)5);
+			bb.put(COMPRESSION_THRESHOLD);
+			bb.putInt(compressionThreshold);
+			bb.put(COMMAND_SYMBOLS);
+			bb.putInt(commandSymbols);
+			bb.put(PROTOCOL_VERSION);
+			bb.putInt(protocolVersion);
+			bb.put(KEEPALIVE);
+			bb.putInt(keepalive);
+			bb.put(CATALOG);
+			bb.putInt(catalog);
+			return bb.array();
+		}
+	}
+
+
+}
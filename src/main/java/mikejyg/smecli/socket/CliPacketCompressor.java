@@ -0,0 +1,136 @@
+package mikejyg.smecli.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+import mikejyg.smecli.socket.CliPacketSerdes.Id;
+import mikejyg.smecli.socket.SocketCliConnection.PacketSender;
+import mikejyg.socket.WireFormat;
+
+/**
+ * compresses outgoing CLI packets, with payloads larger than a threshold, into COMPRESSED packets.
+ *
+ * a COMPRESSED packet is:
+ * ID
+ * length of the original payload, an int in the wire format
+ * ... the deflated original payload
+ *
+ * A payload that does not get smaller is sent as is.
+ *
+ * The deflater and the buffers are reused from packet to packet.
+ * NOTE: it is not thread safe.
+ *
+ * @author mikejyg
+ *
+ */
+class CliPacketCompressor {
+	/**
+	 * favor speed, as the payloads are compressed on the fly.
+	 */
+	static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	/**
+	 * payloads larger than this are compressed, -1 to disable.
+	 */
+	private int threshold=-1;
+
+	private WireFormat wireFormat = WireFormat.V1;
+	
+	private Deflater deflater;
+
+	private ByteBuffer plainBuffer;
+
+	private ByteBuffer compressedBuffer;
+
+	/////////////////////////////////////////////////////////////
+
+	/**
+	 * send a packet, compressed if its payload is larger than the threshold.
+	 *
+	 * @param packetSender
+	 * @param payloadLength
+	 * @param payloadWriter	writes exactly payloadLength bytes to the given buffer.
+	 * @throws IOException
+	 */
+	void send(PacketSender packetSender, int payloadLength, Consumer<ByteBuffer> payloadWriter) throws IOException {
+		if ( threshold < 0 || payloadLength <= threshold ) {
+			packetSender.send(payloadLength, payloadWriter);
+			return;
+		}
+
+		if ( plainBuffer==null || plainBuffer.capacity() < payloadLength ) {
+			plainBuffer = ByteBuffer.allocate(payloadLength);
+			compressedBuffer = ByteBuffer.allocate(payloadLength);
+		}
+
+		plainBuffer.clear();
+		payloadWriter.accept(plainBuffer);
+		plainBuffer.flip();
+
+		if (deflater==null)
+			deflater = new Deflater(DEFAULT_LEVEL);
+
+		deflater.reset();
+		deflater.setInput(plainBuffer);
+		deflater.finish();
+
+		// no larger than the original
+		compressedBuffer.clear();
+		compressedBuffer.limit(payloadLength);
+
+		while ( ! deflater.finished() && compressedBuffer.hasRemaining() ) {
+			deflater.deflate(compressedBuffer);
+		}
+
+		if ( ! deflater.finished() ) {
+			// not compressible
+			plainBuffer.rewind();
+			packetSender.send(payloadLength, bb->bb.put(plainBuffer));
+			return;
+		}
+
+		compressedBuffer.flip();
+
+		packetSender.send(wireFormat.idSize() + wireFormat.intSize(payloadLength) + compressedBuffer.remaining(), bb->{
+			wireFormat.putId(bb, Id.COMPRESSED.intValue());
+			wireFormat.putInt(bb, payloadLength);
+			bb.put(compressedBuffer);
+		});
+	}
+
+	/**
+	 * free the deflater, and the buffers.
+	 */
+	void release() {
+		if (deflater!=null) {
+			deflater.end();
+			deflater = null;
+		}
+
+		plainBuffer = null;
+		compressedBuffer = null;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold	payloads larger than this are compressed, -1 to disable.
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+	
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+	
+	public void setWireFormat(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+
+}
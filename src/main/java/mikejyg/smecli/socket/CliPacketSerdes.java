@@ -1,24 +1,57 @@
 package mikejyg.smecli.socket;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import mikejyg.smecli.CmdCallType;
 import mikejyg.smecli.CmdReturnType;
 import mikejyg.smecli.CmdReturnType.ReturnCode;
 import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.Varint;
+import mikejyg.socket.WireFormat;
 
 /**
  * serializer/de-serializer for CLI packets.
  * 
  * a CLI packet is:
- * 4 bytes ID
- * ... CmdCallType or CmdReturnType, or ...
+ * ID
+ * tag, for tagged IDs only
+ * ... CmdCallType or CmdReturnType, or CmdBatchType, or ...
+ * 
+ * In the V1 wire format, the ID and the tag are 4 byte ints. 
+ * In V2, the ID is a single header byte, of the ID and flags, and the tag is a varint, 
+ *   as are all the ints in the rest of the packet, see WireFormat.
+ * The wire format of a connection is V1, until V2 is agreed by HELLO.
+ * 
+ * or, a compressed CLI packet, see CliPacketCompressor, only if compression is agreed by HELLO.
+ * 
+ * A tag is a correlation ID, chosen by the caller, and echoed back in the return,
+ *   so that multiple calls can be outstanding on a connection.
+ * 
+ * The return of a tagged call can be preceded by CMD_RETURN_CHUNK packets, to stream the output, 
+ *   in which case the return comes in a CMD_RETURN_END packet.
+ * 
+ * A CMD_CALL_SYMBOL packet refers to the command name by a symbol, a small number, 
+ *   defined by the first packet that uses it, and valid for the rest of the connection.
+ *   The number of symbols a connection can define is agreed by HELLO, and 0 before.
  * 
  * @author mikejyg
  *
  */
 public class CliPacketSerdes {
+	/**
+	 * the largest payload a COMPRESSED packet can inflate to.
+	 */
+	public static final int MAX_INFLATED_LENGTH = 16 << 20;
+	
+	/**
+	 * the most a payload can shrink by deflate.
+	 */
+	static final int MAX_DEFLATE_RATIO = 1032;
+	
 	public static class DesException extends Exception {
 		private static final long serialVersionUID = 1L;
 	}
@@ -27,6 +60,14 @@ public class CliPacketSerdes {
 		OOB(0)	// out of band
 		, CMD_CALL(1)
 		,CMD_RETURN(2)
+		, CMD_CALL_TAGGED(3)
+		, CMD_RETURN_TAGGED(4)
+		, CMD_BATCH(5)			// tagged, CmdBatchType
+		, CMD_BATCH_RETURN(6)	// tagged, a list of CmdReturnType
+		, COMPRESSED(7)			// a deflated CLI packet
+		, CMD_RETURN_CHUNK(8)	// tagged, a chunk of output, streamed before the return
+		, CMD_RETURN_END(9)		// tagged, CmdReturnType, the return after the chunks
+		, CMD_CALL_SYMBOL(10)	// tagged, CmdCallType with its command name by a symbol
 		, INVALID (-1)		// not a packet ID, but for flagging.
 		;
 		
@@ -43,8 +84,45 @@ public class CliPacketSerdes {
 	
 	////////////////////////////////////////////////////
 	
+	/**
+	 * in V2, the ID is in the low bits of the header byte, and the high bits are reserved for flags.
+	 */
+	static final int V2_ID_MASK = 0x3f;
+	
+	private WireFormat wireFormat = WireFormat.V1;
+	
 	private Id lastId = Id.INVALID;
 	
+	/**
+	 * the tag of the last tagged packet.
+	 */
+	private int lastTag;
+	
+	// for COMPRESSED packets, reused from packet to packet
+	
+	/**
+	 * whether COMPRESSED packets are taken, as agreed.
+	 */
+	private boolean compressionEnabled;
+	
+	private Inflater inflater;
+	
+	private ByteBuffer inflatedBuffer;
+	
+	// for CMD_CALL_SYMBOL packets
+	
+	/**
+	 * the command names, by symbols.
+	 */
+	private List<String> symbolNames = new ArrayList<>();
+	
+	private int maxCommandSymbols;
+	
+	/**
+	 * the symbol of the last CMD_CALL_SYMBOL packet.
+	 */
+	private int lastSymbol;
+	
 	////////////////////////////////////////////////////
 	
 	public static void serialize(ByteBufferAccumulator bba, CmdCallType cmdCall) {
@@ -53,8 +131,15 @@ public class CliPacketSerdes {
 	}
 	
 	public static void serialize(ByteBufferAccumulator bba, CmdReturnType cmdReturn) {
-		bba.putInt(Id.CMD_RETURN.intValue());
-		cmdReturn.serialize(bba);
+		serialize(bba.reserve(getSerializedSize(WireFormat.V1, cmdReturn)), WireFormat.V1, cmdReturn);
+	}
+	
+	public static void serialize(ByteBufferAccumulator bba, int tag, CmdCallType cmdCall) {
+		serialize(bba.reserve(getSerializedSize(WireFormat.V1, tag, cmdCall)), WireFormat.V1, tag, cmdCall);
+	}
+	
+	public static void serialize(ByteBufferAccumulator bba, int tag, CmdReturnType cmdReturn) {
+		serialize(bba.reserve(getSerializedSize(WireFormat.V1, tag, cmdReturn)), WireFormat.V1, tag, cmdReturn);
 	}
 	
 	public static void serialize(ByteBufferAccumulator bba, byte[] oobData) {
@@ -62,21 +147,197 @@ public class CliPacketSerdes {
 		bba.put(oobData);
 	}
 	
+	// sized serialization in a wire format, into a buffer with exactly the serialized size remaining
+	
+	public static int getSerializedSize(WireFormat wireFormat, byte[] oobData) {
+		return wireFormat.idSize() + oobData.length;
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, byte[] oobData) {
+		wireFormat.putId(bb, Id.OOB.intValue());
+		bb.put(oobData);
+	}
+	
+	public static int getSerializedSize(WireFormat wireFormat, CmdReturnType cmdReturn) {
+		return wireFormat.idSize() + cmdReturn.getSerializedSize(wireFormat);
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, CmdReturnType cmdReturn) {
+		wireFormat.putId(bb, Id.CMD_RETURN.intValue());
+		cmdReturn.serialize(bb, wireFormat);
+	}
+	
+	public static int getSerializedSize(WireFormat wireFormat, int tag, CmdCallType cmdCall) {
+		return wireFormat.idSize() + wireFormat.intSize(tag) + cmdCall.getSerializedSize(wireFormat);
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, int tag, CmdCallType cmdCall) {
+		wireFormat.putId(bb, Id.CMD_CALL_TAGGED.intValue());
+		wireFormat.putInt(bb, tag);
+		cmdCall.serialize(bb, wireFormat);
+	}
+	
+	public static int getSerializedSize(WireFormat wireFormat, int tag, CmdReturnType cmdReturn) {
+		return wireFormat.idSize() + wireFormat.intSize(tag) + cmdReturn.getSerializedSize(wireFormat);
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, int tag, CmdReturnType cmdReturn) {
+		wireFormat.putId(bb, Id.CMD_RETURN_TAGGED.intValue());
+		wireFormat.putInt(bb, tag);
+		cmdReturn.serialize(bb, wireFormat);
+	}
+	
+	public static int getSerializedSize(WireFormat wireFormat, int tag, CmdBatchType cmdBatch) {
+		return wireFormat.idSize() + wireFormat.intSize(tag) + cmdBatch.getSerializedSize(wireFormat);
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, int tag, CmdBatchType cmdBatch) {
+		wireFormat.putId(bb, Id.CMD_BATCH.intValue());
+		wireFormat.putInt(bb, tag);
+		cmdBatch.serialize(bb, wireFormat);
+	}
+	
+	public static int getSerializedSize(WireFormat wireFormat, int tag, List<CmdReturnType> cmdReturns) {
+		return wireFormat.idSize() + wireFormat.intSize(tag) + CmdBatchType.getSerializedSize(wireFormat, cmdReturns);
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, int tag, List<CmdReturnType> cmdReturns) {
+		wireFormat.putId(bb, Id.CMD_BATCH_RETURN.intValue());
+		wireFormat.putInt(bb, tag);
+		CmdBatchType.serialize(bb, wireFormat, cmdReturns);
+	}
+	
+	/**
+	 * ID
+	 * tag
+	 * chunk length
+	 * ... chunk
+	 */
+	public static int getSerializedSize(WireFormat wireFormat, int tag, String chunk) {
+		return wireFormat.idSize() + wireFormat.intSize(tag) + wireFormat.stringSize(chunk);
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, int tag, String chunk) {
+		wireFormat.putId(bb, Id.CMD_RETURN_CHUNK.intValue());
+		wireFormat.putInt(bb, tag);
+		wireFormat.putString(bb, chunk);
+	}
+	
+	/**
+	 * the return after the chunks, of size getSerializedSize(wireFormat, tag, cmdReturn).
+	 */
+	public static void serializeReturnEnd(ByteBuffer bb, WireFormat wireFormat, int tag, CmdReturnType cmdReturn) {
+		wireFormat.putId(bb, Id.CMD_RETURN_END.intValue());
+		wireFormat.putInt(bb, tag);
+		cmdReturn.serialize(bb, wireFormat);
+	}
+	
+	/**
+	 * ID
+	 * tag
+	 * varint (symbol << 1 | defineFlag)
+	 * if defineFlag:
+	 *   command name length
+	 *   ... command name
+	 * ... the arguments of CmdCallType
+	 * 
+	 * @param defineFlag	whether this is the first use of the symbol, to define it.
+	 */
+	public static int getSerializedSize(WireFormat wireFormat, int tag, int symbol, boolean defineFlag
+			, CmdCallType cmdCall) {
+		int size = wireFormat.idSize() + wireFormat.intSize(tag) + Varint.encodedLength(symbol << 1) 
+			+ cmdCall.getArgumentsSerializedSize(wireFormat);
+		if (defineFlag)
+			size += wireFormat.stringSize(cmdCall.getCommandName());
+		return size;
+	}
+	
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, int tag, int symbol, boolean defineFlag
+			, CmdCallType cmdCall) {
+		wireFormat.putId(bb, Id.CMD_CALL_SYMBOL.intValue());
+		wireFormat.putInt(bb, tag);
+		Varint.put(bb, symbol << 1 | (defineFlag ? 1 : 0));
+		if (defineFlag)
+			wireFormat.putString(bb, cmdCall.getCommandName());
+		cmdCall.serializeArguments(bb, wireFormat);
+	}
+	
 	public Object deserialize(ByteBuffer bb) throws DesException, ReturnCode.IllegalValueException {
-		int id = bb.getInt();
+		int id = wireFormat.getId(bb);
+		if ( wireFormat!=WireFormat.V1 && (id & ~V2_ID_MASK) != 0 )
+			throw new DesException();		// no flags are defined yet
 		
 		if (id==Id.CMD_CALL.intValue()) {
 			lastId = Id.CMD_CALL;
-			return new CmdCallType(bb);
+			return new CmdCallType(bb, wireFormat);
 			
 		} else if (id==Id.CMD_RETURN.intValue()) {
 			lastId = Id.CMD_RETURN;
-			return new CmdReturnType(bb);
+			return new CmdReturnType(bb, wireFormat);
+			
+		} else if (id==Id.CMD_CALL_TAGGED.intValue()) {
+			lastId = Id.CMD_CALL_TAGGED;
+			lastTag = wireFormat.getInt(bb);
+			return new CmdCallType(bb, wireFormat);
+			
+		} else if (id==Id.CMD_RETURN_TAGGED.intValue()) {
+			lastId = Id.CMD_RETURN_TAGGED;
+			lastTag = wireFormat.getInt(bb);
+			return new CmdReturnType(bb, wireFormat);
+			
+		} else if (id==Id.CMD_BATCH.intValue()) {
+			lastId = Id.CMD_BATCH;
+			lastTag = wireFormat.getInt(bb);
+			return new CmdBatchType(bb, wireFormat);
+			
+		} else if (id==Id.CMD_BATCH_RETURN.intValue()) {
+			lastId = Id.CMD_BATCH_RETURN;
+			lastTag = wireFormat.getInt(bb);
+			return CmdBatchType.deserializeReturns(bb, wireFormat);
+			
+		} else if (id==Id.CMD_RETURN_CHUNK.intValue()) {
+			lastId = Id.CMD_RETURN_CHUNK;
+			lastTag = wireFormat.getInt(bb);
+			return wireFormat.getString(bb);
+			
+		} else if (id==Id.CMD_RETURN_END.intValue()) {
+			lastId = Id.CMD_RETURN_END;
+			lastTag = wireFormat.getInt(bb);
+			return new CmdReturnType(bb, wireFormat);
+			
+		} else if (id==Id.CMD_CALL_SYMBOL.intValue()) {
+			lastId = Id.CMD_CALL_SYMBOL;
+			lastTag = wireFormat.getInt(bb);
+			
+			int k = Varint.get(bb);
+			lastSymbol = k >>> 1;
+			
+			if ( (k & 1) != 0 ) {
+				// a definition, of the next symbol
+				if ( lastSymbol != symbolNames.size() || lastSymbol >= maxCommandSymbols )
+					throw new DesException();
+				
+				symbolNames.add(wireFormat.getString(bb));
+				
+			} else if ( lastSymbol >= symbolNames.size() ) {
+				throw new DesException();
+			}
+			
+			return new CmdCallType(symbolNames.get(lastSymbol), bb, wireFormat);
 			
 		} else if (id==Id.OOB.intValue()) {
 			lastId = Id.OOB;
-			return Arrays.copyOfRange(bb.array(), bb.position(), bb.capacity());
+			byte[] oobData = new byte[bb.remaining()];
+			bb.get(oobData);
+			return oobData;
 					
+		} else if (id==Id.COMPRESSED.intValue()) {
+			if (!compressionEnabled) {
+				lastId = Id.INVALID;
+				throw new DesException();
+			}
+			return deserialize(inflate(bb));
+			
 		} else {
 			lastId = Id.INVALID;
 			throw new DesException();
@@ -84,9 +345,103 @@ public class CliPacketSerdes {
 		
 	}
 	
+	/**
+	 * inflate the payload of a COMPRESSED packet.
+	 * 
+	 * @return the original payload, valid until the next inflate.
+	 */
+	private ByteBuffer inflate(ByteBuffer bb) throws DesException {
+		int length = wireFormat.getInt(bb);
+		if ( length < 0 || length > MAX_INFLATED_LENGTH || (long) length > (long) bb.remaining() * MAX_DEFLATE_RATIO )
+			throw new DesException();
+		
+		if ( inflatedBuffer==null || inflatedBuffer.capacity() < length )
+			inflatedBuffer = ByteBuffer.allocate(length);
+		
+		inflatedBuffer.clear();
+		inflatedBuffer.limit(length);
+		
+		if (inflater==null)
+			inflater = new Inflater();
+		
+		inflater.reset();
+		inflater.setInput(bb);
+		
+		try {
+			while ( ! inflater.finished() && inflatedBuffer.hasRemaining() ) {
+				if ( inflater.inflate(inflatedBuffer)==0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+					break;
+			}
+		} catch (DataFormatException e) {
+			throw new DesException();
+		}
+		
+		if ( ! inflater.finished() || inflatedBuffer.hasRemaining() )
+			throw new DesException();
+		
+		inflatedBuffer.flip();
+		
+		// no nesting
+		if ( inflatedBuffer.remaining() < wireFormat.idSize() 
+				|| wireFormat.getId(inflatedBuffer.duplicate())==Id.COMPRESSED.intValue() )
+			throw new DesException();
+		
+		return inflatedBuffer;
+	}
+	
+	/**
+	 * free the inflater, and the buffer, when done de-serializing.
+	 */
+	public void release() {
+		if (inflater!=null) {
+			inflater.end();
+			inflater = null;
+		}
+		inflatedBuffer = null;
+	}
+	
+	/**
+	 * @return the symbol of the last packet, valid only if the last ID is CMD_CALL_SYMBOL.
+	 */
+	public int getLastSymbol() {
+		return lastSymbol;
+	}
+	
+	/**
+	 * @param maxCommandSymbols	the number of symbols that can be defined, as agreed.
+	 */
+	public void setMaxCommandSymbols(int maxCommandSymbols) {
+		this.maxCommandSymbols = maxCommandSymbols;
+	}
+	
+	/**
+	 * @param compressionEnabled	whether COMPRESSED packets are taken, i.e. compression is agreed, false by default.
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+	
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+	
+	/**
+	 * @param wireFormat	for the packets de-serialized afterwards.
+	 */
+	public void setWireFormat(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+	
 	public Id getLastId() {
 		return lastId;
 	}
 
+	/**
+	 * @return the tag of the last packet, valid only if the last ID is a tagged one.
+	 */
+	public int getLastTag() {
+		return lastTag;
+	}
+
 	
 }
@@ -0,0 +1,122 @@
+package mikejyg.smecli.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import mikejyg.smecli.CmdCallType;
+import mikejyg.smecli.CmdReturnType;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.socket.WireFormat;
+
+/**
+ * a batch of command calls, to be executed in order, in a single round trip.
+ *
+ * @author mikejyg
+ *
+ */
+public class CmdBatchType {
+	private List<CmdCallType> cmdCalls;
+
+	/**
+	 * whether to execute the remaining calls, after a call fails.
+	 */
+	private boolean continueOnError;
+
+	////////////////////////////////////////////////////////////
+
+	public CmdBatchType(List<CmdCallType> cmdCalls, boolean continueOnError) {
+		this.cmdCalls = cmdCalls;
+		this.continueOnError = continueOnError;
+	}
+
+	/**
+	 * serialize.
+	 *
+	 * 1 byte continueOnError
+	 * 4 bytes number of calls
+	 * repeated:
+	 *   ... CmdCallType
+	 *
+	 * The ints are varints in V2.
+	 *
+	 * @param bb	must have getSerializedSize(wireFormat) bytes remaining.
+	 * @param wireFormat
+	 */
+	public void serialize(ByteBuffer bb, WireFormat wireFormat) {
+		bb.put( (byte)(continueOnError ? 1 : 0) );
+		wireFormat.putInt(bb, cmdCalls.size());
+		for (CmdCallType cmdCall : cmdCalls) {
+			cmdCall.serialize(bb, wireFormat);
+		}
+	}
+
+	public int getSerializedSize(WireFormat wireFormat) {
+		int size = 1 + wireFormat.intSize(cmdCalls.size());
+		for (CmdCallType cmdCall : cmdCalls) {
+			size += cmdCall.getSerializedSize(wireFormat);
+		}
+		return size;
+	}
+
+	/**
+	 * de-serialize.
+	 * @param bb
+	 * @param wireFormat
+	 */
+	public CmdBatchType(ByteBuffer bb, WireFormat wireFormat) {
+		continueOnError = bb.get() == (byte)1;
+
+		int cnt = wireFormat.getInt(bb);
+		cmdCalls = new ArrayList<>();
+		for (int i=0; i<cnt; i++) {
+			cmdCalls.add(new CmdCallType(bb, wireFormat));
+		}
+	}
+
+	/**
+	 * serialize a list of returns.
+	 *
+	 * 4 bytes number of returns
+	 * repeated:
+	 *   ... CmdReturnType
+	 *
+	 * @param bb	must have getSerializedSize(wireFormat, cmdReturns) bytes remaining.
+	 * @param wireFormat
+	 * @param cmdReturns
+	 */
+	public static void serialize(ByteBuffer bb, WireFormat wireFormat, List<CmdReturnType> cmdReturns) {
+		wireFormat.putInt(bb, cmdReturns.size());
+		for (CmdReturnType cmdReturn : cmdReturns) {
+			cmdReturn.serialize(bb, wireFormat);
+		}
+	}
+
+	public static int getSerializedSize(WireFormat wireFormat, List<CmdReturnType> cmdReturns) {
+		int size = wireFormat.intSize(cmdReturns.size());
+		for (CmdReturnType cmdReturn : cmdReturns) {
+			size += cmdReturn.getSerializedSize(wireFormat);
+		}
+		return size;
+	}
+
+	public static List<CmdReturnType> deserializeReturns(ByteBuffer bb, WireFormat wireFormat) 
+			throws ReturnCode.IllegalValueException {
+		int cnt = wireFormat.getInt(bb);
+		List<CmdReturnType> cmdReturns = new ArrayList<>();
+		for (int i=0; i<cnt; i++) {
+			cmdReturns.add(new CmdReturnType(bb, wireFormat));
+		}
+		return cmdReturns;
+	}
+
+	public List<CmdCallType> getCmdCalls() {
+		return cmdCalls;
+	}
+
+	public boolean isContinueOnError() {
+		return continueOnError;
+	}
+
+
+}
@@ -0,0 +1,357 @@
+package mikejyg.smecli.socket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import mikejyg.smecli.CmdCallType;
+import mikejyg.smecli.CmdReturnType;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.CommandStruct;
+import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
+
+/**
+ * A command executor, that executes each remote command on all of a list of servers (hosts), in parallel,
+ *   and aggregates their returns into one.
+ *
+ * The aggregated return is OK, if all the hosts return OK, and FAILURE otherwise,
+ *   with a line of result per host, in the order of the hosts, see execFanOut() for the returns of the hosts.
+ *
+ * The number of hosts executing at the same time is capped, and each host has a deadline,
+ *   covering its connect, after which its command is cancelled, and its return is a FAILURE.
+ *   A host counts as executing until its connect, and its command, have really ended,
+ *   and its connect is timed out by the time left before the deadline.
+ *
+ * A connection is kept per host, made at its first use, and made again after it fails.
+ *
+ * @author mikejyg
+ *
+ */
+public class FanOutCommandExecutor extends CommandsCommandExecutor {
+	public static final int DEFAULT_MAX_CONCURRENCY=16;
+
+	public static final long DEFAULT_DEADLINE=10000;
+
+	private static class Host {
+		String hostname;
+		int port;
+
+		/**
+		 * null if not connected.
+		 */
+		RemoteCommandExecutor rce;
+
+		Host(String hostname, int port) {
+			this.hostname = hostname;
+			this.port = port;
+		}
+
+		@Override
+		public String toString() {
+			return hostname + ':' + port;
+		}
+	}
+
+	private List<Host> hosts = new ArrayList<>();
+
+	/**
+	 * the most hosts executing a command at the same time.
+	 */
+	private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+	/**
+	 * of a host, in milliseconds.
+	 */
+	private long deadline = DEFAULT_DEADLINE;
+
+	/**
+	 * where the hosts are connected, and the commands sent, up to maxConcurrency threads, null until used.
+	 */
+	private ThreadPoolExecutor executorService;
+
+	private Supplier<RemoteCommandExecutor> connectionFactory = RemoteCommandExecutor::new;
+
+	//////////////////////////////////////////////////////////
+
+	/**
+	 * add a host, to be connected at its first use.
+	 *
+	 * @param hostname
+	 * @param port
+	 */
+	public void addHost(String hostname, int port) {
+		synchronized (hosts) {
+			hosts.add(new Host(hostname, port));
+		}
+	}
+
+	@Override
+	public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception {
+		CmdReturnType cmdReturn;
+
+		cmdReturn = super.execCmd(cmdCall);
+		if (cmdReturn.getReturnCode()!=ReturnCode.INVALID_COMMAND)
+			return cmdReturn;
+
+		List<Host> hs;
+		synchronized (hosts) {
+			hs = new ArrayList<>(hosts);
+		}
+
+		List<CmdReturnType> cmdReturns = execFanOut(hs, cmdCall);
+
+		ReturnCode returnCode = ReturnCode.OK;
+		StringBuilder result = new StringBuilder();
+		for (int i=0; i<hs.size(); i++) {
+			CmdReturnType hostReturn = cmdReturns.get(i);
+			if (hostReturn.getReturnCode()!=ReturnCode.OK)
+				returnCode = ReturnCode.FAILURE;
+
+			if (i!=0)
+				result.append('\n');
+			result.append(hs.get(i).toString()).append(": ").append(hostReturn.toString());
+		}
+
+		return new CmdReturnType(returnCode, result.toString());
+	}
+
+	/**
+	 * @return null, as the remote commands are not known.
+	 */
+	@Override
+	public List<CommandStruct> getCommands() {
+		return null;
+	}
+
+	/**
+	 * execute a command on all the hosts, in parallel.
+	 *
+	 * @param cmdCall
+	 * @return the returns of the hosts, in the order of the hosts.
+	 *   A host that fails to execute, or misses its deadline, returns a FAILURE.
+	 * @throws InterruptedException
+	 */
+	public List<CmdReturnType> execFanOut(CmdCallType cmdCall) throws InterruptedException {
+		List<Host> hs;
+		synchronized (hosts) {
+			hs = new ArrayList<>(hosts);
+		}
+		return execFanOut(hs, cmdCall);
+	}
+
+	private List<CmdReturnType> execFanOut(List<Host> hs, CmdCallType cmdCall) throws InterruptedException {
+		Semaphore permits = new Semaphore(maxConcurrency);
+		List<CompletableFuture<CmdReturnType>> futures = new ArrayList<>();
+
+		for (Host host : hs) {
+			permits.acquire();
+			futures.add( execOnHost(host, cmdCall, permits::release) );
+		}
+
+		List<CmdReturnType> cmdReturns = new ArrayList<>();
+		for (CompletableFuture<CmdReturnType> future : futures) {
+			cmdReturns.add(future.join());
+		}
+		return cmdReturns;
+	}
+
+	/**
+	 * connect to a host, if not yet, and execute a command on it, within the deadline.
+	 *
+	 * @param endFunc	called once the connect, and the command, have ended, which can be after the deadline.
+	 * @return the return of the host, or a FAILURE, never completed exceptionally.
+	 */
+	private CompletableFuture<CmdReturnType> execOnHost(Host host, CmdCallType cmdCall, Runnable endFunc) {
+		CompletableFuture<CmdReturnType> hostFuture = new CompletableFuture<>();
+		long deadlineTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+
+		Runnable task = ()->{
+			if (hostFuture.isDone()) {		// timed out, while waiting for a thread
+				endFunc.run();
+				return;
+			}
+
+			RemoteCommandExecutor rce = null;
+			CompletableFuture<CmdReturnType> future;
+			try {
+				rce = connect(host, deadlineTime);
+				future = rce.execCmdAsync(cmdCall);
+			} catch (IOException | RuntimeException e) {
+				drop(host, rce);
+				hostFuture.complete(new CmdReturnType(ReturnCode.FAILURE, e.toString()));
+				endFunc.run();
+				return;
+			}
+
+			RemoteCommandExecutor usedRce = rce;
+
+			// past the deadline, or if the fan-out ends, it is cancelled remotely
+			hostFuture.whenComplete((r, e)->future.cancel(true));
+
+			future.whenComplete((cmdReturn, e)->{
+				if (e==null) {
+					hostFuture.complete(cmdReturn);
+					return;
+				}
+
+				if (e instanceof CompletionException)
+					e = e.getCause();
+				if ( ! (e instanceof CancellationException) )
+					drop(host, usedRce);
+				hostFuture.complete(new CmdReturnType(ReturnCode.FAILURE, e.toString()));
+			}).whenComplete((r, e)->endFunc.run());
+		};
+
+		try {
+			getExecutorService().execute(task);
+		} catch (RejectedExecutionException e) {
+			hostFuture.complete(new CmdReturnType(ReturnCode.FAILURE, e.toString()));
+			endFunc.run();
+		}
+
+		return hostFuture.completeOnTimeout(new CmdReturnType(ReturnCode.FAILURE, "timed out, in " + deadline + " ms.")
+				, deadline, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized ExecutorService getExecutorService() {
+		if (executorService==null) {
+			executorService = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS
+					, new LinkedBlockingQueue<>(), r->{
+						Thread thread = new Thread(r, "FanOutCommandExecutor");
+						thread.setDaemon(true);
+						return thread;
+					});
+			executorService.allowCoreThreadTimeOut(true);
+		}
+		return executorService;
+	}
+
+	/**
+	 * @param deadlineTime	by System.nanoTime(), to time out the connect, if any.
+	 * @return the connection of the host, connected if not yet.
+	 */
+	private RemoteCommandExecutor connect(Host host, long deadlineTime) throws IOException {
+		synchronized (host) {
+			if ( host.rce!=null && ! host.rce.isConnected() )
+				drop(host);
+
+			if (host.rce==null) {
+				// the time left, after waiting for the host, e.g. while another fan-out connected it
+				long timeout = TimeUnit.NANOSECONDS.toMillis(deadlineTime - System.nanoTime());
+				if (timeout <= 0)
+					throw new IOException("no time left to connect.");
+
+				RemoteCommandExecutor rce = connectionFactory.get();
+				rce.setConnectTimeout(timeout);
+				rce.setHandshakeTimeout( Math.min(rce.getHandshakeTimeout(), timeout) );
+				rce.connect(host.hostname, host.port);
+				host.rce = rce;
+			}
+
+			return host.rce;
+		}
+	}
+
+	/**
+	 * drop the connection of a failed call, if still the connection of the host,
+	 *   not if another call made a new one since.
+	 *
+	 * @param rce	null if the call failed to connect.
+	 */
+	private void drop(Host host, RemoteCommandExecutor rce) {
+		synchronized (host) {
+			if ( rce!=null && host.rce==rce )
+				drop(host);
+		}
+	}
+
+	private void drop(Host host) {
+		synchronized (host) {
+			if (host.rce==null)
+				return;
+
+			try {
+				host.rce.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			host.rce = null;
+		}
+	}
+
+	/**
+	 * close the connections to the hosts, and stop the threads.
+	 *
+	 * The executor remains usable, and the connections, and the threads, are made again, as needed.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (executorService!=null) {
+				executorService.shutdown();
+				executorService = null;
+			}
+		}
+
+		List<Host> hs;
+		synchronized (hosts) {
+			hs = new ArrayList<>(hosts);
+		}
+
+		for (Host host : hs) {
+			drop(host);
+		}
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * @param maxConcurrency	the most hosts executing a command at the same time, and the most threads.
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+
+		if (executorService!=null) {
+			// the core size is not to exceed the maximum size, at any time
+			if (maxConcurrency > executorService.getMaximumPoolSize()) {
+				executorService.setMaximumPoolSize(maxConcurrency);
+				executorService.setCorePoolSize(maxConcurrency);
+			} else {
+				executorService.setCorePoolSize(maxConcurrency);
+				executorService.setMaximumPoolSize(maxConcurrency);
+			}
+		}
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @param deadline	how long a host has to return, from when its command starts, including the connect,
+	 *   in milliseconds.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @param connectionFactory	makes the connections to the hosts, to be configured before connect.
+	 */
+	public void setConnectionFactory(Supplier<RemoteCommandExecutor> connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+
+}
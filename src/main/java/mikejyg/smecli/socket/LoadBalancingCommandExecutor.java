@@ -0,0 +1,333 @@
+package mikejyg.smecli.socket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import mikejyg.smecli.CmdCallType;
+import mikejyg.smecli.CmdReturnType;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.CommandStruct;
+import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
+
+/**
+ * A command executor, that executes commands remotely, on one of several identical servers (backends).
+ *
+ * Each remote command goes to the backend with the fewest calls in flight, over a single connection
+ *   per backend, on which calls are pipelined.
+ *
+ * A backend that fails to connect, or whose connection fails, is marked down for the retry interval,
+ *   and the command is retried on another backend. Down backends are tried last, when no other is left.
+ *
+ * NOTE: a command is retried only if its connection fails, but it may have been executed
+ *   by the failed backend, so the remote commands should be idempotent.
+ *
+ * @author mikejyg
+ *
+ */
+public class LoadBalancingCommandExecutor extends CommandsCommandExecutor {
+	public static final long DEFAULT_RETRY_INTERVAL=1000;
+
+	private static class Backend {
+		String hostname;
+		int port;
+
+		/**
+		 * null if not connected.
+		 */
+		RemoteCommandExecutor rce;
+
+		/**
+		 * the calls in flight, guarded by the backends.
+		 */
+		int outstandingCnt;
+
+		/**
+		 * guarded by the backends.
+		 */
+		boolean downFlag;
+
+		/**
+		 * when the backend can be tried again, by System.nanoTime(), if down.
+		 */
+		long retryTime;
+
+		Backend(String hostname, int port) {
+			this.hostname = hostname;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * also the lock of the backend states.
+	 */
+	private List<Backend> backends = new ArrayList<>();
+
+	/**
+	 * where the search for the least loaded backend starts, to spread the ties.
+	 */
+	private int nextIndex;
+
+	/**
+	 * makes the connections, before connect, e.g. with the compression settings.
+	 */
+	private Supplier<RemoteCommandExecutor> connectionFactory = RemoteCommandExecutor::new;
+
+	/**
+	 * in milliseconds.
+	 */
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+	//////////////////////////////////////////////////////////
+
+	/**
+	 * add a backend, to be connected at its first use.
+	 *
+	 * @param hostname
+	 * @param port
+	 */
+	public void addBackend(String hostname, int port) {
+		synchronized (backends) {
+			backends.add(new Backend(hostname, port));
+		}
+	}
+
+	@Override
+	public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception {
+		CmdReturnType cmdReturn;
+
+		cmdReturn = super.execCmd(cmdCall);
+		if (cmdReturn.getReturnCode()!=ReturnCode.INVALID_COMMAND)
+			return cmdReturn;
+
+		CompletableFuture<CmdReturnType> future = execRemoteCmdAsync(cmdCall, new ArrayList<>(), null);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		}
+	}
+
+	/**
+	 * execute a command, without waiting for its return, for the remote commands.
+	 *
+	 * NOTE: a backend is connected on the calling thread, at its first use.
+	 */
+	@Override
+	public CompletableFuture<CmdReturnType> execCmdAsync(CmdCallType cmdCall) {
+		if ( hasCommand(cmdCall) )
+			return super.execCmdAsync(cmdCall).toCompletableFuture();
+
+		return execRemoteCmdAsync(cmdCall, new ArrayList<>(), null);
+	}
+
+	/**
+	 * execute a command on a backend not tried yet, and again on another one, if the connection fails.
+	 *
+	 * @param triedBackends
+	 * @param exception	of the last backend tried, if any.
+	 * @return completed exceptionally, with the last IOException, if no backend left.
+	 */
+	private CompletableFuture<CmdReturnType> execRemoteCmdAsync(CmdCallType cmdCall, List<Backend> triedBackends
+			, IOException exception) {
+		Backend backend = select(triedBackends);
+		if (backend==null)
+			return CompletableFuture.failedFuture(exception!=null ? exception : new IOException("no backend."));
+		triedBackends.add(backend);
+
+		RemoteCommandExecutor rce = null;
+		CompletableFuture<CmdReturnType> future;
+		try {
+			rce = connect(backend);
+			future = rce.execCmdAsync(cmdCall);
+		} catch (IOException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+
+		RemoteCommandExecutor usedRce = rce;
+		return future.handle((cmdReturn, e)->{
+			synchronized (backends) {
+				backend.outstandingCnt--;
+			}
+
+			Throwable cause = e instanceof CompletionException && e.getCause()!=null ? e.getCause() : e;
+			if (cause instanceof IOException) {
+				markDown(backend, usedRce);
+				return execRemoteCmdAsync(cmdCall, triedBackends, (IOException) cause);
+			}
+
+			if (cause!=null)
+				return CompletableFuture.<CmdReturnType>failedFuture(cause);
+			return CompletableFuture.completedFuture(cmdReturn);
+		}).thenCompose(f->f);
+	}
+
+	/**
+	 * @return null, as the remote commands are not known.
+	 */
+	@Override
+	public List<CommandStruct> getCommands() {
+		return null;
+	}
+
+	/**
+	 * pick the backend with the fewest calls in flight, and count the call.
+	 *
+	 * @param excludedBackends	the backends already tried.
+	 * @return null if no backend left.
+	 */
+	private Backend select(List<Backend> excludedBackends) {
+		long now = System.nanoTime();
+
+		synchronized (backends) {
+			Backend selected = null;
+
+			for (int i=0; i<backends.size(); i++) {
+				Backend backend = backends.get( (nextIndex + i) % backends.size() );
+				if ( excludedBackends.contains(backend) )
+					continue;
+
+				if ( backend.downFlag && now - backend.retryTime >= 0 )
+					backend.downFlag = false;
+
+				if ( selected==null || selected.downFlag && ! backend.downFlag
+						|| selected.downFlag==backend.downFlag && backend.outstandingCnt < selected.outstandingCnt )
+					selected = backend;
+			}
+
+			if (selected!=null) {
+				selected.outstandingCnt++;
+				nextIndex = (backends.indexOf(selected) + 1) % backends.size();
+			}
+
+			return selected;
+		}
+	}
+
+	/**
+	 * @return the connection of the backend, connected if not yet.
+	 */
+	private RemoteCommandExecutor connect(Backend backend) throws IOException {
+		synchronized (backend) {
+			if ( backend.rce!=null && ! backend.rce.isConnected() ) {
+				backend.rce.close();
+				backend.rce = null;
+			}
+
+			if (backend.rce==null) {
+				RemoteCommandExecutor rce = connectionFactory.get();
+				rce.connect(backend.hostname, backend.port);
+				backend.rce = rce;
+			}
+
+			return backend.rce;
+		}
+	}
+
+	/**
+	 * mark a backend down, for the retry interval, and drop the failed connection.
+	 *
+	 * @param rce	the connection of the failed call, or null if it failed to connect.
+	 *   It is dropped only if still the connection of the backend, not if another call made a new one since.
+	 */
+	private void markDown(Backend backend, RemoteCommandExecutor rce) {
+		synchronized (backends) {
+			backend.downFlag = true;
+			backend.retryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryInterval);
+		}
+
+		synchronized (backend) {
+			if ( rce==null || backend.rce!=rce )
+				return;
+
+			try {
+				backend.rce.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			backend.rce = null;
+		}
+	}
+
+	/**
+	 * close the connections to the backends.
+	 *
+	 * The executor remains usable, and the connections are made again, as needed.
+	 */
+	public void close() {
+		List<Backend> bs;
+		synchronized (backends) {
+			bs = new ArrayList<>(backends);
+		}
+
+		for (Backend backend : bs) {
+			synchronized (backend) {
+				if (backend.rce==null)
+					continue;
+
+				try {
+					backend.rce.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				backend.rce = null;
+			}
+		}
+	}
+
+	public int getBackendCount() {
+		synchronized (backends) {
+			return backends.size();
+		}
+	}
+
+	/**
+	 * @param index	of the backend, in the order added.
+	 * @return whether the backend is not marked down.
+	 */
+	public boolean isBackendUp(int index) {
+		synchronized (backends) {
+			return ! backends.get(index).downFlag;
+		}
+	}
+
+	/**
+	 * @param index	of the backend, in the order added.
+	 * @return the number of calls in flight on the backend.
+	 */
+	public int getOutstandingCount(int index) {
+		synchronized (backends) {
+			return backends.get(index).outstandingCnt;
+		}
+	}
+
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/**
+	 * @param retryInterval	how long a failed backend is marked down, in milliseconds.
+	 */
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * @param connectionFactory	makes the connections to the backends, to be configured before connect.
+	 */
+	public void setConnectionFactory(Supplier<RemoteCommandExecutor> connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+
+}
@@ -2,61 +2,696 @@ package mikejyg.smecli.socket;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import mikejyg.smecli.CmdCallType;
 import mikejyg.smecli.CmdReturnType;
 import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.CommandStruct;
 import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
-import mikejyg.socket.ByteBufferAccumulator;
-import mikejyg.socket.LvPacket;
+import mikejyg.smecli.socket.CliPacketSerdes.Id;
 import mikejyg.socket.PacketSocket;
+import mikejyg.socket.SharedMemoryChannel;
+import mikejyg.socket.WireFormat;
 
 /**
  * A command executor, that executes commands remotely.
  * It sends commands to a remote server for execution, and receives returns.
- * 
+ *
+ * Commands are sent as tagged calls, and a reader thread matches the returns to the calls by their tags,
+ *   so that many calls can be in flight on the connection at the same time, see execCmdAsync().
+ *
+ * Large payloads can be compressed, if agreed by the server at connect time, see setCompressionThreshold().
+ *
+ * A command can stream its output ahead of its return, see setOutputListener().
+ *
+ * A command in flight can be cancelled, by cancelling its future, or by cancel(), 
+ *   which interrupts its execution on the server.
+ *
+ * The compact wire format of protocol version 2 is used, if agreed by the server at connect time,
+ *   see setMaxProtocolVersion().
+ *
+ * With a handshake at connect time, the reader thread answers the keepalive PINGs of the server,
+ *   so that an idle connection is not closed by the idle timeout of the server.
+ *
+ * A server that does not reply to the handshake, e.g. of protocol version 1, is connected to again,
+ *   without the handshake, see setHandshakeTimeout().
+ *
+ * The catalog of the remote commands is received at connect time, and kept up to date by the server,
+ *   so that unknown commands are rejected locally, and the help is served without a round trip,
+ *   see setCatalogEnabled(). The server withdraws the catalog, when its commands are no longer known.
+ *
  * @author jgu
  *
  */
 public class RemoteCommandExecutor extends CommandsCommandExecutor {
+	/**
+	 * tags wrap around, to stay small in the varint encoding.
+	 */
+	static final int TAG_MASK = 0x3fff;
+
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT=5000;
 
-	private Socket socket;
+	private ByteChannel channel;
 	private PacketSocket packetSocket;
-	
-	private CliPacketSerdes cliPacketSerdes = new CliPacketSerdes();
-	
+
+	private Thread readerThread;
+
+	/**
+	 * the server did not reply to the handshake.
+	 */
+	private static class HandshakeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		HandshakeException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * a call waiting for its return.
+	 */
+	private static class PendingCall {
+		CompletableFuture<CmdReturnType> future = new CompletableFuture<>();
+
+		/**
+		 * where the streamed output goes, if not null.
+		 */
+		Consumer<String> outputListener;
+
+		/**
+		 * the streamed output, accumulated when there is no output listener.
+		 */
+		StringBuilder output;
+
+		PendingCall(Consumer<String> outputListener) {
+			this.outputListener = outputListener;
+		}
+
+		void onChunk(String chunk) {
+			if (outputListener!=null) {
+				outputListener.accept(chunk);
+			} else {
+				if (output==null)
+					output = new StringBuilder();
+				output.append(chunk);
+			}
+		}
+
+		void onReturn(CmdReturnType cmdReturn) {
+			if (output!=null)
+				cmdReturn = new CmdReturnType(cmdReturn.getReturnCode(), output.append(cmdReturn.getResult()).toString());
+			future.complete(cmdReturn);
+		}
+	}
+
+	/**
+	 * calls waiting for returns, by tags.
+	 */
+	private Map<Integer, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+
+	/**
+	 * batches waiting for returns, by tags.
+	 */
+	private Map<Integer, CompletableFuture<List<CmdReturnType>>> pendingBatches = new ConcurrentHashMap<>();
+
+	private AtomicInteger nextTag = new AtomicInteger();
+
+	/**
+	 * set when the reader thread stops receiving returns.
+	 */
+	private volatile boolean receiveEndedFlag;
+
+	/**
+	 * payloads larger than this are to be compressed, -1 to disable.
+	 */
+	private int compressionThreshold=-1;
+
+	/**
+	 * the highest protocol version to request.
+	 */
+	private int maxProtocolVersion = WireFormat.V2.getVersion();
+
+	/**
+	 * the wire format of the packets sent, as agreed by the server, guarded by packetSocket.
+	 */
+	private WireFormat wireFormat = WireFormat.V1;
+
+	/**
+	 * for the packets sent, guarded by packetSocket.
+	 */
+	private CliPacketCompressor compressor = new CliPacketCompressor();
+
+	/**
+	 * the HELLO reply from the server, during connect.
+	 */
+	private volatile CompletableFuture<CliOob.Hello> helloFuture;
+
+	/**
+	 * how long to wait for the HELLO reply, and the first catalog, in milliseconds.
+	 */
+	private long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+	/**
+	 * how long to wait for a TCP connect, in milliseconds, 0 for no limit.
+	 */
+	private long connectTimeout;
+
+	/**
+	 * whether to request command symbols, to send command names once per connection.
+	 */
+	private boolean commandSymbolsEnabled;
+
+	/**
+	 * the command symbols defined so far, by command names, guarded by packetSocket.
+	 */
+	private Map<String, Integer> commandSymbols = new HashMap<>();
+
+	/**
+	 * the number of command symbols that can be defined, as agreed by the server, guarded by packetSocket.
+	 */
+	private int maxCommandSymbols;
+
+	/**
+	 * whether to request the command catalog.
+	 */
+	private boolean catalogEnabled = true;
+
+	/**
+	 * the remote commands, by names and shorthands, null if no catalog.
+	 */
+	private volatile Map<String, CommandStruct> remoteCommandMap;
+
+	/**
+	 * the remote commands, in the order of the catalog.
+	 */
+	private volatile List<CommandStruct> remoteCommands;
+
+	/**
+	 * the first catalog from the server, during connect.
+	 */
+	private volatile CompletableFuture<Void> catalogFuture;
+
+	/**
+	 * where the streamed output of remote commands goes, unless set in the command calls.
+	 */
+	private volatile Consumer<String> outputListener;
+
 	//////////////////////////////////////////////////////////
-	
+
 	@Override
 	public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception {
 		CmdReturnType cmdReturn;
-		
+
 		cmdReturn = super.execCmd(cmdCall);
 		if (cmdReturn.getReturnCode()!=ReturnCode.INVALID_COMMAND)
 			return cmdReturn;
-		
-		ByteBufferAccumulator bba = new ByteBufferAccumulator();
-		CliPacketSerdes.serialize(bba, cmdCall);
-		packetSocket.send(LvPacket.wrap(bba.toBytes()));
 
-		LvPacket lvPacket;
-		lvPacket = packetSocket.receive();
+		if ( ! isRemoteCommand(cmdCall.getCommandName()) )
+			return cmdReturn;
+
+		return execRemoteCmd(cmdCall);
+	}
+
+	/**
+	 * execute a command remotely, and wait for its return.
+	 */
+	private CmdReturnType execRemoteCmd(CmdCallType cmdCall) throws Exception {
+		CmdReturnType cmdReturn;
+
+		CompletableFuture<CmdReturnType> future = sendCmd(cmdCall);
+		try {
+			cmdReturn = future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		} catch (InterruptedException e) {
+			future.cancel(true);		// cancel it remotely
+			throw e;
+		}
+
+//		System.out.println("received return: " + cmdReturn.toString());
+
+		return cmdReturn;
+	}
+
+	/**
+	 * execute a command, without waiting for its return.
+	 *
+	 * Local commands are executed right away, and remote ones are sent to the server,
+	 *   with no thread waiting for the return.
+	 *
+	 * @param cmdCall
+	 * @return a future, completed when the return is received.
+	 *   Cancelling it cancels the command remotely.
+	 */
+	@Override
+	public CompletableFuture<CmdReturnType> execCmdAsync(CmdCallType cmdCall) {
+		if ( hasCommand(cmdCall) ) {
+			CompletableFuture<CmdReturnType> future = new CompletableFuture<>();
+			try {
+				future.complete(super.execCmd(cmdCall));
+			} catch (Exception e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+
+		if ( ! isRemoteCommand(cmdCall.getCommandName()) )
+			return CompletableFuture.completedFuture(new CmdReturnType(ReturnCode.INVALID_COMMAND));
+
+		return sendCmd(cmdCall);
+	}
+
+	/**
+	 * @return false if not in the command catalog, true if in it, or without a catalog.
+	 */
+	private boolean isRemoteCommand(String commandName) {
+		Map<String, CommandStruct> commandMap = remoteCommandMap;
+		return commandMap==null || commandMap.containsKey(commandName);
+	}
+
+	/**
+	 * execute a batch of commands remotely, in a single round trip.
+	 *
+	 * All the commands are sent to the server, i.e. local commands are not recognized in a batch.
+	 *
+	 * @param cmdCalls
+	 * @param continueOnError	whether to execute the remaining commands, after a command fails.
+	 * @return the returns of the executed commands, in order.
+	 *   Without continueOnError, the last return is the failed one, if any.
+	 * @throws Exception
+	 */
+	public List<CmdReturnType> execBatch(List<CmdCallType> cmdCalls, boolean continueOnError) throws Exception {
+		try {
+			return execBatchAsync(cmdCalls, continueOnError).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * execute a batch of commands remotely, without waiting for the returns.
+	 *
+	 * @see execBatch()
+	 */
+	public CompletableFuture<List<CmdReturnType>> execBatchAsync(List<CmdCallType> cmdCalls, boolean continueOnError) {
+		CompletableFuture<List<CmdReturnType>> future = new CompletableFuture<>();
+		CmdBatchType cmdBatch = new CmdBatchType(cmdCalls, continueOnError);
+
+		int tag = register(pendingBatches, future);
+		if (tag < 0) {
+			future.completeExceptionally(new IOException("too many calls in flight."));
+			return future;
+		}
+		cancelOnCancel(future, tag);
+
+		try {
+			synchronized (packetSocket) {
+				WireFormat wf = wireFormat;
+				compressor.send(packetSocket::send, CliPacketSerdes.getSerializedSize(wf, tag, cmdBatch)
+						, bb->CliPacketSerdes.serialize(bb, wf, tag, cmdBatch));
+			}
+		} catch (IOException e) {
+			pendingBatches.remove(tag);
+			future.completeExceptionally(e);
+		}
+
+		// in case the reader thread ended, before the batch was registered
+		if ( receiveEndedFlag && pendingBatches.remove(tag)!=null )
+			future.completeExceptionally(new IOException("connection closed."));
+
+		return future;
+	}
+
+	/**
+	 * send a command to the server.
+	 */
+	private CompletableFuture<CmdReturnType> sendCmd(CmdCallType cmdCall) {
+		Consumer<String> listener = cmdCall.getOutputListener();
+		if (listener==null)
+			listener = outputListener;
+
+		PendingCall pendingCall = new PendingCall(listener);
+		CompletableFuture<CmdReturnType> future = pendingCall.future;
+
+		int tag = register(pendingCalls, pendingCall);
+		if (tag < 0) {
+			future.completeExceptionally(new IOException("too many calls in flight."));
+			return future;
+		}
+		cancelOnCancel(future, tag);
+
+		try {
+			synchronized (packetSocket) {
+				WireFormat wf = wireFormat;
 				
-		Object obj = cliPacketSerdes.deserialize( ByteBuffer.wrap(lvPacket.getData()) );
-		cmdReturn = (CmdReturnType) obj;
+				// the symbols are assigned in the same order as the packets are sent.
+				Integer symbol = commandSymbols.get(cmdCall.getCommandName());
+				boolean defineFlag = false;
+
+				if ( symbol==null && commandSymbols.size() < maxCommandSymbols ) {
+					symbol = commandSymbols.size();
+					commandSymbols.put(cmdCall.getCommandName(), symbol);
+					defineFlag = true;
+				}
+
+				if (symbol!=null) {
+					int s = symbol;
+					boolean d = defineFlag;
+					compressor.send(packetSocket::send, CliPacketSerdes.getSerializedSize(wf, tag, s, d, cmdCall)
+							, bb->CliPacketSerdes.serialize(bb, wf, tag, s, d, cmdCall));
+				} else {
+					compressor.send(packetSocket::send, CliPacketSerdes.getSerializedSize(wf, tag, cmdCall)
+							, bb->CliPacketSerdes.serialize(bb, wf, tag, cmdCall));
+				}
+			}
+		} catch (IOException e) {
+			pendingCalls.remove(tag);
+			future.completeExceptionally(e);
+		}
+
+		// in case the reader thread ended, before the call was registered
+		if ( receiveEndedFlag && pendingCalls.remove(tag)!=null )
+			future.completeExceptionally(new IOException("connection closed."));
+
+		return future;
+	}
+
+	/**
+	 * @return a tag not in use by the pending calls, or batches, under which the value is put,
+	 *   or -1 if all the tags are in use.
+	 */
+	private <T> int register(Map<Integer, T> pending, T value) {
+		for (int i=0; i<=TAG_MASK; i++) {
+			int tag = nextTag.getAndIncrement() & TAG_MASK;
+			if ( pendingCalls.containsKey(tag) || pendingBatches.containsKey(tag) )
+				continue;
+			if (pending.putIfAbsent(tag, value)==null)
+				return tag;
+		}
+		return -1;
+	}
+
+	/**
+	 * cancel the call, or batch, remotely, when its future is cancelled.
+	 * 
+	 * It stays pending until the server returns, so that its tag is not reused before.
+	 */
+	private void cancelOnCancel(CompletableFuture<?> future, int tag) {
+		future.whenComplete((r, e)->{
+			if (e instanceof CancellationException)
+				sendCancel(tag);
+		});
+	}
+
+	/**
+	 * cancel a remote call, or batch, in flight.
+	 *
+	 * Unlike cancelling the future, the future is completed by the server, 
+	 *   with a CANCELLED return, or with the actual return, if it finishes before the cancel.
+	 *   For a batch, the execution stops at the cancel, and the last return is CANCELLED.
+	 *
+	 * @param future	returned by execCmdAsync(), or execBatchAsync().
+	 * @return false if the call, or batch, is not in flight.
+	 */
+	public boolean cancel(CompletableFuture<?> future) {
+		for (Map.Entry<Integer, PendingCall> entry : pendingCalls.entrySet()) {
+			if (entry.getValue().future==future) {
+				sendCancel(entry.getKey());
+				return true;
+			}
+		}
+
+		for (Map.Entry<Integer, CompletableFuture<List<CmdReturnType>>> entry : pendingBatches.entrySet()) {
+			if (entry.getValue()==future) {
+				sendCancel(entry.getKey());
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void sendCancel(int tag) {
+		sendOob(CliOob.cancel(tag));
+	}
+
+	private void sendOob(byte[] oobData) {
+		try {
+			synchronized (packetSocket) {
+				WireFormat wf = wireFormat;
+				compressor.send(packetSocket::send, CliPacketSerdes.getSerializedSize(wf, oobData)
+						, bb->CliPacketSerdes.serialize(bb, wf, oobData));
+			}
+		} catch (IOException e) {
+			// the connection is closed, and so are the calls in flight.
+		}
+	}
+
+	/**
+	 * receive returns, and complete the waiting calls, until the connection is closed.
+	 */
+	private void receiveReturns() {
+		CliPacketSerdes cliPacketSerdes = new CliPacketSerdes();
+		Exception exception = null;
+
+		try {
+			while (true) {
+				ByteBuffer bb = packetSocket.receiveBuffer();
+				if (bb==null)
+					break;
+
+				Object obj = cliPacketSerdes.deserialize(bb);
+
+				if (cliPacketSerdes.getLastId()==Id.CMD_RETURN_TAGGED || cliPacketSerdes.getLastId()==Id.CMD_RETURN_END) {
+					PendingCall pendingCall = pendingCalls.remove(cliPacketSerdes.getLastTag());
+					if (pendingCall!=null)
+						pendingCall.onReturn((CmdReturnType) obj);
+
+				} else if (cliPacketSerdes.getLastId()==Id.CMD_RETURN_CHUNK) {
+					PendingCall pendingCall = pendingCalls.get(cliPacketSerdes.getLastTag());
+					if (pendingCall!=null)
+						pendingCall.onChunk((String) obj);
+
+				} else if (cliPacketSerdes.getLastId()==Id.CMD_BATCH_RETURN) {
+					@SuppressWarnings("unchecked")
+					List<CmdReturnType> cmdReturns = (List<CmdReturnType>) obj;
+
+					CompletableFuture<List<CmdReturnType>> future = pendingBatches.remove(cliPacketSerdes.getLastTag());
+					if (future!=null)
+						future.complete(cmdReturns);
+
+				} else if (cliPacketSerdes.getLastId()==Id.OOB) {
+					onOob((byte[]) obj, cliPacketSerdes);
+
+				} else {
+					throw new CliPacketSerdes.DesException();
+				}
+			}
+
+		} catch (Exception e) {
+			exception = e;
+		}
+
+		packetSocket.releaseBuffers();
+		cliPacketSerdes.release();
+
+		// fail the remaining calls
+
+		receiveEndedFlag = true;
+
+		if (exception==null)
+			exception = new IOException("connection closed.");
+
+		for (Integer tag : pendingCalls.keySet()) {
+			PendingCall pendingCall = pendingCalls.remove(tag);
+			if (pendingCall!=null)
+				pendingCall.future.completeExceptionally(exception);
+		}
+
+		for (Integer tag : pendingBatches.keySet()) {
+			CompletableFuture<List<CmdReturnType>> future = pendingBatches.remove(tag);
+			if (future!=null)
+				future.completeExceptionally(exception);
+		}
+
+		CompletableFuture<CliOob.Hello> hello = helloFuture;
+		if (hello!=null)
+			hello.completeExceptionally(exception);
+
+		CompletableFuture<Void> catalog = catalogFuture;
+		if (catalog!=null)
+			catalog.completeExceptionally(exception);
+	}
+
+	/**
+	 * @param cliPacketSerdes	of the reader thread, switched to the agreed wire format, upon the HELLO reply.
+	 */
+	private void onOob(byte[] oobData, CliPacketSerdes cliPacketSerdes) throws CliPacketSerdes.DesException {
+		if (oobData.length==0)
+			throw new CliPacketSerdes.DesException();
+
+		ByteBuffer bb = ByteBuffer.wrap(oobData, 1, oobData.length-1);
+
+		switch (CliOob.Type.getType(oobData[0])) {
+		case HELLO: {
+			CliOob.Hello reply = new CliOob.Hello(bb);
 			
-//		System.out.println("received return: " + cmdReturn.toString());
+			// the packets after the reply are in the agreed wire format, 
+			//   set here, as the server can send a PING right after the reply
+			WireFormat wf = WireFormat.getWireFormat(reply.protocolVersion);
+			synchronized (packetSocket) {
+				packetSocket.setWireFormat(wf);
+				compressor.setThreshold(reply.compressionThreshold);
+				maxCommandSymbols = reply.commandSymbols;
+				wireFormat = wf;
+				compressor.setWireFormat(wf);
+			}
+			cliPacketSerdes.setWireFormat(wf);
+			cliPacketSerdes.setCompressionEnabled(reply.compressionThreshold >= 0);
+			
+			CompletableFuture<CliOob.Hello> hello = helloFuture;
+			if (hello!=null)
+				hello.complete(reply);
+			break;
+		}
+			
+		case PING:
+			sendOob(CliOob.message(CliOob.Type.PONG));
+			break;
+			
+		case CATALOG:
+			onCatalog(CliOob.getCatalog(bb));
+			break;
+			
+		case CATALOG_WITHDRAWN:
+			remoteCommandMap = null;
+			remoteCommands = null;
+			notifyCommandsChange();
+			break;
+			
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * take a new command catalog, with the commands executed remotely.
+	 */
+	private void onCatalog(List<CommandStruct> commands) {
+		Map<String, CommandStruct> commandMap = new HashMap<>();
+		for (CommandStruct cs : commands) {
+			cs.cmdFunc = this::execRemoteCmd;
+			
+			commandMap.put(cs.commandName, cs);
+			for (String s : cs.shorthands) {
+				commandMap.put(s, cs);
+			}
+		}
 		
-		return cmdReturn;
+		remoteCommands = Collections.unmodifiableList(commands);
+		remoteCommandMap = commandMap;
+		
+		CompletableFuture<Void> catalog = catalogFuture;
+		if (catalog!=null)
+			catalog.complete(null);
+		
+		notifyCommandsChange();
+	}
+	
+	/**
+	 * @return the local commands, and the remote ones, from the command catalog,
+	 *   or null if no catalog, as the remote commands are not known.
+	 */
+	@Override
+	public List<CommandStruct> getCommands() {
+		List<CommandStruct> commands = remoteCommands;
+		if (commands==null)
+			return null;
+		
+		List<CommandStruct> allCommands = new ArrayList<>(super.getCommands());
+		for (CommandStruct cs : commands) {
+			if (getCommand(cs.commandName)==null)
+				allCommands.add(cs);
+		}
+		return Collections.unmodifiableList(allCommands);
+	}
+
+	/**
+	 * request the connection settings, and wait for the server to reply with the agreed ones.
+	 *
+	 * The connection is closed, if the handshake fails, or times out.
+	 */
+	private void hello() throws IOException {
+		CliOob.Hello hello = new CliOob.Hello();
+		hello.compressionThreshold = compressionThreshold;
+		if (commandSymbolsEnabled)
+			hello.commandSymbols = CliOob.Hello.MAX_COMMAND_SYMBOLS;
+		hello.protocolVersion = maxProtocolVersion;
+		hello.keepalive = 1;
+		hello.catalog = catalogEnabled ? 1 : 0;
+		byte[] oobData = hello.toBytes();
+
+		synchronized (packetSocket) {
+			packetSocket.send(CliPacketSerdes.getSerializedSize(WireFormat.V1, oobData)
+					, bb->CliPacketSerdes.serialize(bb, WireFormat.V1, oobData));
+		}
+
+		// the agreed settings are taken by the reader thread
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+		try {
+			if ( helloFuture.get(handshakeTimeout, TimeUnit.MILLISECONDS).catalog!=0 )
+				catalogFuture.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			disconnect();
+			throw new IOException("interrupted during handshake.", e);
+		} catch (ExecutionException e) {
+			disconnect();
+			throw new HandshakeException("handshake failed.", e.getCause());
+		} catch (TimeoutException e) {
+			disconnect();
+			throw new HandshakeException("no handshake reply, in " + handshakeTimeout + " ms.", null);
+		}
 	}
 
+	/**
+	 * the help of the local commands, and of the remote ones, from the command catalog,
+	 *   or from the server, if no catalog.
+	 */
 	@Override
 	public String toHelpString() {
-		String helpStr = toHelpString();
-		
-		// TODO: change to OOB messaging for this special case.
+		String helpStr = super.toHelpString();
+
+		List<CommandStruct> commands = remoteCommands;
+		if (commands!=null) {
+			for (CommandStruct cs : commands) {
+				helpStr += '\n' + cs.toString();
+			}
+			return helpStr;
+		}
+
 		CmdReturnType cmdReturn;
 		try {
 			cmdReturn = execCmd(new CmdCallType("help"));
@@ -67,23 +702,266 @@ public class RemoteCommandExecutor extends CommandsCommandExecutor {
 		if ( ! cmdReturn.getReturnCode().isOk() ) {
 			helpStr += "\nremote help failed: " + cmdReturn.toString();
 		} else {
-			helpStr += '\n' + cmdReturn.getResult(); 
+			helpStr += '\n' + cmdReturn.getResult();
 		}
-		
+
 		return helpStr;
 	}
 
 	public void connect(String hostname, int port) throws IOException {
-		socket = new Socket();
-		
-		socket.connect(new InetSocketAddress(hostname, port));
-		
-		packetSocket = new PacketSocket(socket);
+		connect(new InetSocketAddress(hostname, port));
 	}
-	
+
+	/**
+	 * connect to a server on the same host, by its Unix domain socket.
+	 *
+	 * @param unixSocketPath
+	 * @throws IOException
+	 */
+	public void connect(Path unixSocketPath) throws IOException {
+		connect(UnixDomainSocketAddress.of(unixSocketPath));
+	}
+
+	/**
+	 * connect to a server on the same host, by its shared memory file.
+	 *
+	 * @param sharedMemoryPath
+	 * @throws IOException
+	 */
+	public void connectSharedMemory(Path sharedMemoryPath) throws IOException {
+		connect(SharedMemoryChannel.open(sharedMemoryPath));
+	}
+
+	private void connect(SocketAddress address) throws IOException {
+		try {
+			connect(openChannel(address), true);
+		} catch (HandshakeException e) {
+			// a server without the handshake, over a new connection, as it may not take packets after the HELLO
+			connect(openChannel(address), false);
+		}
+	}
+
+	/**
+	 * @return a channel connected to the address, within the connect timeout, if any, for a TCP address.
+	 */
+	private SocketChannel openChannel(SocketAddress address) throws IOException {
+		if ( connectTimeout==0 || ! (address instanceof InetSocketAddress) )
+			return SocketChannel.open(address);
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(address, (int) Math.min(connectTimeout, Integer.MAX_VALUE));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private void connect(ByteChannel channel) throws IOException {
+		connect(channel, true);
+	}
+
+	/**
+	 * a previous connection, if any, is closed first.
+	 *
+	 * @param handshakeFlag	whether to request the connection settings, if any, or to use the original protocol.
+	 */
+	private void connect(ByteChannel channel, boolean handshakeFlag) throws IOException {
+		disconnect();
+
+		this.channel = channel;
+
+		packetSocket = new PacketSocket(channel, null);
+
+		// the previous connection failed its calls, when its reader thread ended
+		receiveEndedFlag = false;
+		pendingCalls.clear();
+		pendingBatches.clear();
+
+		compressor = new CliPacketCompressor();
+		commandSymbols = new HashMap<>();
+		maxCommandSymbols = 0;
+		wireFormat = WireFormat.V1;
+		remoteCommandMap = null;
+		remoteCommands = null;
+		catalogFuture = handshakeFlag && catalogEnabled ? new CompletableFuture<>() : null;
+		helloFuture = handshakeFlag
+				&& ( compressionThreshold >= 0 || commandSymbolsEnabled || maxProtocolVersion > 1 || catalogEnabled )
+				? new CompletableFuture<>() : null;
+
+		readerThread = new Thread(this::receiveReturns, "RemoteCommandExecutor reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		if (helloFuture!=null)
+			hello();
+	}
+
 	public void close() throws IOException {
-		socket.close();
+		if (channel!=null)
+			channel.close();
 	}
-	
-	
+
+	/**
+	 * close the connection, if any, and wait for its reader thread to end.
+	 */
+	private void disconnect() throws IOException {
+		close();
+
+		if (readerThread!=null) {
+			try {
+				readerThread.join();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while disconnecting.", e);
+			}
+			readerThread = null;
+		}
+	}
+
+	/**
+	 * @return whether connected, and the connection has not been closed, by either side.
+	 */
+	public boolean isConnected() {
+		return channel!=null && channel.isOpen() && ! receiveEndedFlag;
+	}
+
+	/**
+	 * @return the agreed compression threshold, -1 if not compressing.
+	 */
+	public int getAgreedCompressionThreshold() {
+		synchronized (packetSocket) {
+			return compressor.getThreshold();
+		}
+	}
+
+	/**
+	 * @return the agreed protocol version.
+	 */
+	public int getProtocolVersion() {
+		synchronized (packetSocket) {
+			return wireFormat.getVersion();
+		}
+	}
+
+	public int getMaxProtocolVersion() {
+		return maxProtocolVersion;
+	}
+
+	/**
+	 * to request a protocol version, subject to the server's agreement, see WireFormat.
+	 *
+	 * It takes effect at the next connect.
+	 *
+	 * @param maxProtocolVersion	the highest version to request, 2 by default. 
+	 *   With 1, the original wire format is used, without a handshake, unless needed for other settings.
+	 */
+	public void setMaxProtocolVersion(int maxProtocolVersion) {
+		this.maxProtocolVersion = maxProtocolVersion;
+	}
+
+	public boolean isCommandSymbolsEnabled() {
+		return commandSymbolsEnabled;
+	}
+
+	/**
+	 * to send each command name only once per connection, and then a small number in its place,
+	 *   subject to the server's agreement.
+	 *
+	 * It takes effect at the next connect.
+	 *
+	 * @param commandSymbolsEnabled
+	 */
+	public void setCommandSymbolsEnabled(boolean commandSymbolsEnabled) {
+		this.commandSymbolsEnabled = commandSymbolsEnabled;
+	}
+
+	public long getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * @param handshakeTimeout	how long connect() waits for the server to reply to the handshake, in milliseconds,
+	 *   before connecting again without the handshake, or failing, for a shared memory connection.
+	 */
+	public void setHandshakeTimeout(long handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout	how long connect() waits for a TCP connection to be made, in milliseconds,
+	 *   0 (the default) for no limit.
+	 */
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public boolean isCatalogEnabled() {
+		return catalogEnabled;
+	}
+
+	/**
+	 * to request the catalog of the remote commands, subject to the server's support, true by default.
+	 *
+	 * With the catalog, commands not in it are rejected locally, with INVALID_COMMAND, 
+	 *   without a round trip, and the help of the remote commands is served locally.
+	 *
+	 * It takes effect at the next connect.
+	 *
+	 * @param catalogEnabled
+	 */
+	public void setCatalogEnabled(boolean catalogEnabled) {
+		this.catalogEnabled = catalogEnabled;
+	}
+
+	/**
+	 * @return the remote commands, as of the latest catalog from the server, e.g. for completion, 
+	 *   or null if no catalog. The commands are executed remotely.
+	 */
+	public List<CommandStruct> getRemoteCommands() {
+		return remoteCommands;
+	}
+
+	/**
+	 * @param commandName	a command name, or shorthand.
+	 * @return the remote command, null if not in the catalog, or no catalog.
+	 */
+	public CommandStruct getRemoteCommand(String commandName) {
+		Map<String, CommandStruct> commandMap = remoteCommandMap;
+		return commandMap!=null ? commandMap.get(commandName) : null;
+	}
+
+	public Consumer<String> getOutputListener() {
+		return outputListener;
+	}
+
+	/**
+	 * @param outputListener	to receive the streamed output of remote commands, in chunks, as it arrives,
+	 *   unless a command call has its own output listener. It is called on the reader thread.
+	 *   If null (the default), the streamed output is accumulated, and put in front of the result.
+	 */
+	public void setOutputListener(Consumer<String> outputListener) {
+		this.outputListener = outputListener;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * to request compression of large payloads, in both directions, subject to the server's agreement.
+	 *
+	 * It takes effect at the next connect.
+	 *
+	 * @param compressionThreshold	payloads larger than this are compressed, -1 (the default) to disable.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+
 }
@@ -0,0 +1,211 @@
+package mikejyg.smecli.socket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import mikejyg.smecli.CmdCallType;
+import mikejyg.smecli.CmdReturnType;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.CommandStruct;
+import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
+
+/**
+ * A command executor, that executes commands remotely, over a pool of connections to a server.
+ *
+ * Each remote command borrows a connection for the duration of the call, so that many threads can execute
+ *   commands at the same time, over different connections.
+ *
+ * Connections are made lazily, when borrowed, and a connection that is found closed, or fails a call,
+ *   is dropped, and made again at its next borrow.
+ *
+ * @author mikejyg
+ *
+ */
+public class RemoteCommandExecutorPool extends CommandsCommandExecutor {
+	public static final long DEFAULT_BORROW_TIMEOUT=10000;
+
+	/**
+	 * a connection of the pool, null if not connected.
+	 */
+	private static class Slot {
+		RemoteCommandExecutor rce;
+	}
+
+	private String hostname;
+
+	private int port;
+
+	/**
+	 * the slots not borrowed.
+	 */
+	private BlockingQueue<Slot> idleSlots;
+
+	/**
+	 * makes the connections, before connect, e.g. with the compression settings.
+	 */
+	private Supplier<RemoteCommandExecutor> connectionFactory = RemoteCommandExecutor::new;
+
+	/**
+	 * in milliseconds.
+	 */
+	private long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+	//////////////////////////////////////////////////////////
+
+	/**
+	 * @param hostname
+	 * @param port
+	 * @param poolSize	the most connections to the server.
+	 */
+	public RemoteCommandExecutorPool(String hostname, int port, int poolSize) {
+		this.hostname = hostname;
+		this.port = port;
+
+		idleSlots = new ArrayBlockingQueue<>(poolSize);
+		for (int i=0; i<poolSize; i++) {
+			idleSlots.add(new Slot());
+		}
+	}
+
+	@Override
+	public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception {
+		CmdReturnType cmdReturn;
+
+		cmdReturn = super.execCmd(cmdCall);
+		if (cmdReturn.getReturnCode()!=ReturnCode.INVALID_COMMAND)
+			return cmdReturn;
+
+		Slot slot = borrow();
+		try {
+			return slot.rce.execCmd(cmdCall);
+
+		} catch (Exception e) {
+			drop(slot);
+			throw e;
+
+		} finally {
+			idleSlots.add(slot);
+		}
+	}
+
+	/**
+	 * @return null, as the remote commands are not known.
+	 */
+	@Override
+	public List<CommandStruct> getCommands() {
+		return null;
+	}
+
+	/**
+	 * execute a batch of commands remotely, in a single round trip, over one connection.
+	 *
+	 * @see RemoteCommandExecutor.execBatch()
+	 */
+	public List<CmdReturnType> execBatch(List<CmdCallType> cmdCalls, boolean continueOnError) throws Exception {
+		Slot slot = borrow();
+		try {
+			return slot.rce.execBatch(cmdCalls, continueOnError);
+
+		} catch (Exception e) {
+			drop(slot);
+			throw e;
+
+		} finally {
+			idleSlots.add(slot);
+		}
+	}
+
+	/**
+	 * wait for an idle connection, and make sure it is connected.
+	 *
+	 * @return the borrowed slot, to be put back into the idle slots.
+	 * @throws IOException	if no connection is available within the borrow timeout, or it fails to connect.
+	 * @throws InterruptedException
+	 */
+	private Slot borrow() throws IOException, InterruptedException {
+		Slot slot = idleSlots.poll(borrowTimeout, TimeUnit.MILLISECONDS);
+		if (slot==null)
+			throw new IOException("no connection available, in " + borrowTimeout + " ms.");
+
+		// health check
+		if ( slot.rce!=null && ! slot.rce.isConnected() )
+			drop(slot);
+
+		if (slot.rce==null) {
+			slot.rce = connectionFactory.get();
+			boolean connectedFlag=false;
+			try {
+				slot.rce.connect(hostname, port);
+				connectedFlag = true;
+			} finally {
+				// the slot is not lost, when the connection fails
+				if (!connectedFlag) {
+					drop(slot);
+					idleSlots.add(slot);
+				}
+			}
+		}
+
+		return slot;
+	}
+
+	private void drop(Slot slot) {
+		if (slot.rce==null)
+			return;
+
+		try {
+			slot.rce.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		slot.rce = null;
+	}
+
+	/**
+	 * close the idle connections.
+	 *
+	 * The pool remains usable, and the connections are made again, as needed.
+	 */
+	public void close() {
+		List<Slot> slots = new ArrayList<>();
+		idleSlots.drainTo(slots);
+
+		for (Slot slot : slots) {
+			drop(slot);
+		}
+
+		idleSlots.addAll(slots);
+	}
+
+	/**
+	 * @return the number of connections not borrowed.
+	 */
+	public int getIdleCount() {
+		return idleSlots.size();
+	}
+
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+
+	/**
+	 * @param borrowTimeout	the longest time to wait for a connection, in milliseconds.
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * @param connectionFactory	makes the connections of the pool, to be configured before connect.
+	 */
+	public void setConnectionFactory(Supplier<RemoteCommandExecutor> connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+
+}
@@ -0,0 +1,87 @@
+package mikejyg.smecli.socket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * runs tasks one at a time, in submission order, on a (possibly multi-threaded) underlying executor.
+ * 
+ * @author mikejyg
+ *
+ */
+class SerialExecutor implements Executor {
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	
+	private final Executor executor;
+	
+	private Runnable active;
+	
+	/**
+	 * the thread running the active task, while running it.
+	 */
+	private Thread activeThread;
+	
+	private boolean shutdownFlag;
+	
+	/////////////////////////////////////////////////////////////
+	
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * a task submitted after shutdownNow() is dropped.
+	 */
+	@Override
+	public synchronized void execute(Runnable r) {
+		if (shutdownFlag)
+			return;
+		
+		tasks.add(()->{
+			try {
+				if ( begin() )
+					r.run();
+			} finally {
+				end();
+				scheduleNext();
+			}
+		});
+		
+		if (active==null)
+			scheduleNext();
+	}
+	
+	/**
+	 * @return false if shut down.
+	 */
+	private synchronized boolean begin() {
+		if (shutdownFlag)
+			return false;
+		activeThread = Thread.currentThread();
+		return true;
+	}
+	
+	private synchronized void end() {
+		activeThread = null;
+		Thread.interrupted();		// in case the interrupt came after the task finished
+	}
+	
+	private synchronized void scheduleNext() {
+		active = tasks.poll();
+		if (active!=null)
+			executor.execute(active);
+	}
+	
+	/**
+	 * drop the tasks not started yet, and those submitted afterwards, and interrupt the running one, if any.
+	 */
+	synchronized void shutdownNow() {
+		shutdownFlag = true;
+		tasks.clear();
+		if (activeThread!=null)
+			activeThread.interrupt();
+	}
+	
+	
+}
@@ -2,34 +2,174 @@ package mikejyg.smecli.socket;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
-import mikejyg.smecli.CmdCallType;
-import mikejyg.smecli.CmdReturnType;
 import mikejyg.smecli.CmdReturnType.ReturnCode;
 import mikejyg.smecli.cmdexecutor.CommandExecutorIntf;
 import mikejyg.smecli.socket.CliPacketSerdes.DesException;
-import mikejyg.smecli.socket.CliPacketSerdes.Id;
-import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.ByteBufferPool;
 import mikejyg.socket.LvPacket;
+import mikejyg.socket.LvPacketFramer;
 import mikejyg.socket.PacketSocket;
+import mikejyg.socket.SharedMemoryChannel;
+import mikejyg.socket.WireFormat;
 
 /**
  * This class presents a command executor interface via a stream socket server,
  *   to let a remote command executor to make a connection and execute commands.
  * 
+ * The server listens on a TCP port, or on a Unix domain socket, for clients on the same host,
+ *   see setUnixSocketPath(). 
+ * For the lowest latency on the same host, it can also serve over a shared memory file, 
+ *   see setSharedMemoryPath().
+ * 
+ * Idle connections can be closed, see setIdleTimeout(), and idle clients probed, see setKeepaliveInterval(),
+ *   so that silent, or dead, clients do not hold on to the server resources.
+ * 
  * @author jgu
  *
  */
 public class SocketCli {
+	public enum ServeMode {
+		/**
+		 * serve one client at a time, the default.
+		 */
+		BLOCKING
+		
+		/**
+		 * serve many clients concurrently, with a non-blocking selector.
+		 */
+		, SELECTOR
+		
+		/**
+		 * serve each client on its own thread, from the connection executor service.
+		 */
+		, THREAD_PER_CONNECTION
+	}
+	
+	/**
+	 * the state of a connection in the selector mode.
+	 */
+	private static class SelectorConnection {
+		SocketChannel channel;
+		SelectionKey key;
+		
+		LvPacketFramer framer;
+		
+		/**
+		 * of the packets sent.
+		 */
+		volatile WireFormat wireFormat = WireFormat.V1;
+		
+		Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+		
+		SocketCliConnection connection;
+		
+		volatile boolean closeRequested;
+		boolean closed;
+		
+		SelectorConnection(SocketChannel channel, ByteBufferPool bufferPool) {
+			this.channel = channel;
+			framer = new LvPacketFramer(bufferPool);
+		}
+	}
+	
 	private CommandExecutorIntf commandExecutor;
 	
 	private int port;
 	
-	private boolean stop;
+	/**
+	 * to listen on a Unix domain socket, in place of the port, if not null.
+	 */
+	private Path unixSocketPath;
+	
+	/**
+	 * to serve over a shared memory file, in place of the port, if not null.
+	 */
+	private Path sharedMemoryPath;
+	
+	/**
+	 * of each direction of the shared memory.
+	 */
+	private int sharedMemoryCapacity = SharedMemoryChannel.DEFAULT_CAPACITY;
+	
+	private volatile boolean stop;
+	
+	/**
+	 * for the receive buffers of the connections.
+	 */
+	private ByteBufferPool bufferPool = new ByteBufferPool();
+	
+	private ServeMode serveMode = ServeMode.BLOCKING;
+	
+	/**
+	 * whether to agree to compression, when requested by a client.
+	 */
+	private boolean compressionEnabled = true;
+	
+	/**
+	 * the highest protocol version to agree to, with a client.
+	 */
+	private int maxProtocolVersion = WireFormat.V2.getVersion();
+	
+	// idle connections
+	
+	/**
+	 * in milliseconds, 0 for none.
+	 */
+	private long idleTimeout;
+	
+	/**
+	 * in milliseconds, 0 for none.
+	 */
+	private long keepaliveInterval;
+	
+	/**
+	 * the connections being served, checked for idleness by the reaper.
+	 */
+	private Set<SocketCliConnection> connections = ConcurrentHashMap.newKeySet();
+	
+	// for the thread per connection mode
+	
+	private ExecutorService connectionExecutorService;
+	
+	// for the selector mode
+	
+	private ExecutorService callExecutorService;
+	
+	private volatile Selector selector;
+	
+	private int connectionCnt;
+	
+	/**
+	 * connections that have outgoing packets queued, or need to be closed, by the selector thread.
+	 */
+	private Queue<SelectorConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * for gathering writes, used by the selector thread only.
+	 */
+	private ByteBuffer[] gatherBuffers = new ByteBuffer[16];
 	
 	/////////////////////////////////////////////////////////////
 	
@@ -42,59 +182,192 @@ public class SocketCli {
 		this.port=port;
 	}
 	
-	private void serve(Socket socket) throws IOException, LvPacket.ReadException
-		, DesException, ReturnCode.IllegalValueException {
-		PacketSocket packetSocket = new PacketSocket(socket);
-		CliPacketSerdes cliPacketSerdes = new CliPacketSerdes();
-		while (true) {
-
-			LvPacket lvPacket = packetSocket.receive();
-			if (lvPacket==null)
-				break;
-
-			Object obj = cliPacketSerdes.deserialize(ByteBuffer.wrap(lvPacket.getData()));
-			assert(cliPacketSerdes.getLastId()==Id.CMD_CALL);
-			
-			CmdCallType cmdCall = (CmdCallType)obj;
-//			System.out.println("received cmdCall: " + cmdCall.toString());
-			
-			CmdReturnType cmdReturn;
+	/**
+	 * @param commandExecutor
+	 * @param unixSocketPath	the Unix domain socket to listen on.
+	 */
+	public SocketCli(CommandExecutorIntf commandExecutor, Path unixSocketPath) {
+		this.commandExecutor = commandExecutor;
+		this.unixSocketPath = unixSocketPath;
+	}
+	
+	/**
+	 * open a blocking server channel, on the port, or on the Unix domain socket.
+	 */
+	private ServerSocketChannel openServerChannel() throws IOException {
+		ServerSocketChannel serverChannel;
+		
+		if (unixSocketPath!=null) {
+			serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			serverChannel.bind(UnixDomainSocketAddress.of(unixSocketPath));
 			
-			// TODO: change to OOB messaging for this special case.
-			// help is a special case
-			if (cmdCall.getCommandName().equals("help")) {
-				cmdReturn = new CmdReturnType(ReturnCode.OK, commandExecutor.toHelpString());
-				
-			} else {
+		} else {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+		}
+		
+		return serverChannel;
+	}
+	
+	/**
+	 * remove the Unix domain socket file, when the server exits.
+	 */
+	private void deleteUnixSocket() {
+		if (unixSocketPath==null)
+			return;
+		
+		try {
+			Files.deleteIfExists(unixSocketPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * serve a client on the calling thread, which receives the packets, and takes the OOB messages.
+	 * 
+	 * @param executor	where the commands are executed, one at a time, so that the receiving thread
+	 *   can take OOB messages, e.g. to cancel a command.
+	 */
+	private void serve(ByteChannel channel, Executor executor) throws IOException, LvPacket.ReadException
+		, DesException, ReturnCode.IllegalValueException {
+		PacketSocket packetSocket = new PacketSocket(channel, bufferPool);
+		
+		SerialExecutor callExecutor = new SerialExecutor(executor);
+		
+		SocketCliConnection connection = new SocketCliConnection(commandExecutor, packetSocket::send, callExecutor
+				, ()->{
+					try {
+						channel.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+		connection.setCompressionEnabled(compressionEnabled);
+		connection.setMaxProtocolVersion(maxProtocolVersion);
+		connection.setWireFormatListener(packetSocket::setWireFormat);
+		connections.add(connection);
+		
+		try {
+			while (true) {
+	
+				ByteBuffer bb;
 				try {
-					cmdReturn = commandExecutor.execCmd(cmdCall);
-				} catch (Exception e) {
-					e.printStackTrace();
-					cmdReturn = new CmdReturnType(ReturnCode.FAILURE, e.getMessage());
+					bb = packetSocket.receiveBuffer();
+				} catch (IOException e) {
+					if ( ! connection.isIdleClosed() )
+						throw e;
+					System.out.print("idle client closed.\n");
+					break;
 				}
+				if (bb==null)
+					break;
+	
+				connection.onPacket(bb);
 			}
-
-			ByteBufferAccumulator bba = new ByteBufferAccumulator();
-			CliPacketSerdes.serialize(bba, cmdReturn);
-			packetSocket.send(LvPacket.wrap(bba.toBytes()));
+			
+		} finally {
+			// the client is gone, so are the calls in flight
+			callExecutor.shutdownNow();
+			
+			connections.remove(connection);
+			packetSocket.releaseBuffers();
+			connection.release();
 		}
 	}
 
 	/**
-	 * @param serverPortListener a call back function to get the listening port.
+	 * @param serverPortListener a call back function to get the listening port, 
+	 *   or 0 for a Unix domain socket, once listening.
 	 * @throws IOException
 	 */
 	public void accept(Consumer<Integer> serverPortListener) throws IOException {
-		try (ServerSocket serverSocket = new ServerSocket()) {
-			serverSocket.bind(new InetSocketAddress(port));
+		ScheduledExecutorService reaper = startReaper();
+		
+		try {
+			if (sharedMemoryPath!=null) {
+				acceptSharedMemory(serverPortListener);
+				return;
+			}
+			
+			switch (serveMode) {
+			case SELECTOR:
+				acceptSelector(serverPortListener);
+				break;
+				
+			case THREAD_PER_CONNECTION:
+				acceptThreadPerConnection(serverPortListener);
+				break;
+				
+			default:
+				acceptBlocking(serverPortListener);
+				break;
+			}
+			
+		} finally {
+			if (reaper!=null)
+				reaper.shutdownNow();
+		}
+	}
+	
+	/**
+	 * start a thread to check the connections periodically, for idleness, if an idle timeout, 
+	 *   or a keepalive interval, is set.
+	 * 
+	 * @return the reaper, or null if not needed.
+	 */
+	private ScheduledExecutorService startReaper() {
+		if (idleTimeout==0 && keepaliveInterval==0)
+			return null;
+		
+		long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		long keepaliveIntervalNanos = TimeUnit.MILLISECONDS.toNanos(keepaliveInterval);
+		
+		// checked a few times per period, so that the periods are kept within a fraction
+		long period = Math.min( idleTimeout!=0 ? idleTimeout : Long.MAX_VALUE
+				, keepaliveInterval!=0 ? keepaliveInterval : Long.MAX_VALUE ) / 4;
+		
+		ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r->{
+			Thread thread = new Thread(r, "SocketCli reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		reaper.scheduleAtFixedRate(()->{
+			long now = System.nanoTime();
+			for (SocketCliConnection connection : connections) {
+				connection.checkIdle(now, idleTimeoutNanos, keepaliveIntervalNanos);
+			}
+		}, period, Math.max(period, 1), TimeUnit.MILLISECONDS);
+		
+		return reaper;
+	}
 
-			port = serverSocket.getLocalPort();
+	public void accept() throws IOException {
+		accept( port->{
+			if (sharedMemoryPath!=null)
+				System.out.print("server shared memory path: " + sharedMemoryPath + '\n');
+			else if (unixSocketPath!=null)
+				System.out.print("server path: " + unixSocketPath + '\n');
+			else
+				System.out.print("server port: " + port + '\n'); 
+		} );
+	}
+	
+	/**
+	 * serve one client at a time, on the calling thread.
+	 */
+	private void acceptBlocking(Consumer<Integer> serverPortListener) {
+		ExecutorService executorService = newThreadPerTaskExecutor();
+		
+		try (ServerSocketChannel serverChannel = openServerChannel()) {
 			serverPortListener.accept(port);
 
 			while (!stop) {
-				try (Socket clientSocket = serverSocket.accept()) {
+				try (SocketChannel clientChannel = serverChannel.accept()) {
 	
-					serve(clientSocket);	
+					serve(clientChannel, executorService);	
 	
 				} catch (Exception e) {
 					e.printStackTrace();
@@ -107,23 +380,479 @@ public class SocketCli {
 			
 		} catch (IOException e1) {
 			e1.printStackTrace();
+			
+		} finally {
+			deleteUnixSocket();
+			executorService.shutdown();
+		}
+	}
+	
+	/**
+	 * serve one client at a time, on the calling thread, over a shared memory file, created for each client.
+	 */
+	private void acceptSharedMemory(Consumer<Integer> serverPortListener) {
+		ExecutorService executorService = newThreadPerTaskExecutor();
+		
+		try {
+			SharedMemoryChannel channel = SharedMemoryChannel.create(sharedMemoryPath, sharedMemoryCapacity);
+			serverPortListener.accept(port);
+			
+			while (true) {
+				try (SharedMemoryChannel c = channel) {
+					
+					serve(c, executorService);
+					
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				
+				System.out.print("client session ended.\n");
+				
+				if (stop)
+					break;
+				
+				channel = SharedMemoryChannel.create(sharedMemoryPath, sharedMemoryCapacity);
+			}
+			
+			System.out.print("exiting server...\n");
+			
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			
+		} finally {
+			executorService.shutdown();
+			try {
+				Files.deleteIfExists(sharedMemoryPath);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
+	
+	/**
+	 * accept clients on the calling thread, and serve each one of them on its own thread.
+	 */
+	private void acceptThreadPerConnection(Consumer<Integer> serverPortListener) {
+		try (ServerSocketChannel serverChannel = openServerChannel()) {
+			serverPortListener.accept(port);
 
-	public void accept() throws IOException {
-		accept( port->{ System.out.print("server port: " + port + '\n'); } );
+			acceptConnections(serverChannel);
+
+			System.out.print("exiting server...\n");
+			
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			
+		} finally {
+			deleteUnixSocket();
+		}
+	}
+	
+	/**
+	 * accept clients, until stopped, and serve each one of them on a task of the connection executor service,
+	 *   where its commands are also executed.
+	 * 
+	 * The server channel is closed by the client that finishes after the stop, to break the accept().
+	 * 
+	 * A connection executor service made here is shut down after the accept loop, and the last client, end,
+	 *   as the remaining clients still execute commands on it.
+	 */
+	private void acceptConnections(ServerSocketChannel serverChannel) throws IOException {
+		ExecutorService executorService = connectionExecutorService!=null ? connectionExecutorService 
+				: newThreadPerTaskExecutor();
+		
+		// the accept loop, and the clients being served
+		AtomicInteger activeCnt = new AtomicInteger(1);
+		Runnable endActive = ()->{
+			if (activeCnt.decrementAndGet()==0 && executorService!=connectionExecutorService)
+				executorService.shutdown();
+		};
+		
+		try {
+			while (!stop) {
+				SocketChannel clientChannel;
+				try {
+					clientChannel = serverChannel.accept();
+				} catch (IOException e) {
+					if (stop)		// closed by a finishing client
+						break;
+					throw e;
+				}
+				
+				activeCnt.incrementAndGet();
+				executorService.execute(()->{
+					try (SocketChannel c = clientChannel) {
+						
+						serve(c, executorService);
+						
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					
+					System.out.print("client session ended.\n");
+					
+					if (stop) {
+						try {
+							serverChannel.close();		// to break the accept()
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+					
+					endActive.run();
+				});
+			}
+			
+		} finally {
+			endActive.run();
+		}
+	}
+	
+	/**
+	 * @return an executor service that starts a virtual thread for each task, if supported by the Java runtime,
+	 *   otherwise, a cached thread pool.
+	 */
+	static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/**
+	 * serve all clients from a single selector thread, the calling thread.
+	 * 
+	 * Commands are executed on the call executor service, one at a time per connection.
+	 */
+	private void acceptSelector(Consumer<Integer> serverPortListener) {
+		ExecutorService executorService = callExecutorService;
+		if (executorService==null)
+			executorService = Executors.newSingleThreadExecutor();
+		
+		try (ServerSocketChannel serverChannel = openServerChannel(); Selector sel = Selector.open()) {
+			serverChannel.configureBlocking(false);
+			serverChannel.register(sel, SelectionKey.OP_ACCEPT);
+
+			selector = sel;
+			serverPortListener.accept(port);
+
+			while ( ! stop || connectionCnt!=0 ) {
+				sel.select();
+				
+				SelectorConnection conn;
+				while ( ( conn = pendingWrites.poll() ) != null ) {
+					write(conn);
+				}
+				
+				for (SelectionKey key : sel.selectedKeys()) {
+					if ( ! key.isValid() )
+						continue;
+					
+					if ( key.isAcceptable() ) {
+						acceptConnection(serverChannel, sel, executorService);
+						continue;
+					}
+					
+					conn = (SelectorConnection) key.attachment();
+					
+					if ( key.isReadable() )
+						read(conn);
+					
+					if ( key.isValid() && key.isWritable() )
+						write(conn);
+				}
+				sel.selectedKeys().clear();
+			}
+
+			for (SelectionKey key : sel.keys()) {
+				if (key.attachment()!=null)
+					close( (SelectorConnection) key.attachment() );
+			}
+
+			System.out.print("exiting server...\n");
+			
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			
+		} finally {
+			deleteUnixSocket();
+			selector = null;
+			if (callExecutorService==null)
+				executorService.shutdown();
+		}
+	}
+	
+	private void acceptConnection(ServerSocketChannel serverChannel, Selector sel, ExecutorService executorService) 
+			throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel==null)
+			return;
+		
+		channel.configureBlocking(false);
+		
+		SelectorConnection conn = new SelectorConnection(channel, bufferPool);
+		conn.key = channel.register(sel, SelectionKey.OP_READ, conn);
+		conn.connection = new SocketCliConnection(commandExecutor
+				, (payloadLength, payloadWriter)->{
+					WireFormat wf = conn.wireFormat;
+					ByteBuffer bb = bufferPool.acquire(wf.intSize(payloadLength) + payloadLength);
+					wf.putInt(bb, payloadLength);
+					payloadWriter.accept(bb);
+					bb.flip();
+					
+					conn.writeQueue.add(bb);
+					pendingWrites.add(conn);
+					sel.wakeup();
+				}
+				, new SerialExecutor(executorService)
+				, ()->{
+					conn.closeRequested = true;
+					pendingWrites.add(conn);
+					sel.wakeup();
+				});
+		conn.connection.setCompressionEnabled(compressionEnabled);
+		conn.connection.setMaxProtocolVersion(maxProtocolVersion);
+		conn.connection.setWireFormatListener(wf->{
+			conn.wireFormat = wf;
+			conn.framer.setWireFormat(wf);
+		});
+		connections.add(conn.connection);
+		
+		connectionCnt++;
+	}
+	
+	private void read(SelectorConnection conn) {
+		try {
+			int k = conn.framer.read(conn.channel);
+			
+			ByteBuffer bb;
+			while ( (bb = conn.framer.nextPacket()) != null ) {
+				conn.connection.onPacket(bb);
+			}
+
+			if (k<0) {
+				close(conn);
+				System.out.print("client session ended.\n");
+			}
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			close(conn);
+		}
+	}
+	
+	private void write(SelectorConnection conn) {
+		if ( conn.closed )
+			return;
+		
+		if ( conn.closeRequested ) {
+			close(conn);
+			if ( conn.connection.isIdleClosed() )
+				System.out.print("idle client closed.\n");
+			return;
+		}
+		
+		try {
+			while ( ! conn.writeQueue.isEmpty() ) {
+				// gather as many queued packets as possible into a single write
+				int cnt=0;
+				for (ByteBuffer bb : conn.writeQueue) {
+					gatherBuffers[cnt++] = bb;
+					if (cnt==gatherBuffers.length)
+						break;
+				}
+				
+				conn.channel.write(gatherBuffers, 0, cnt);
+				
+				for (int i=0; i<cnt; i++) {
+					gatherBuffers[i] = null;
+				}
+				
+				ByteBuffer bb;
+				while ( ( bb = conn.writeQueue.peek() ) != null && ! bb.hasRemaining() ) {
+					conn.writeQueue.poll();
+					bufferPool.release(bb);
+				}
+				
+				if ( bb!=null && bb.hasRemaining() ) {
+					conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			
+			conn.key.interestOps(SelectionKey.OP_READ);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			close(conn);
+		}
+	}
+	
+	private void close(SelectorConnection conn) {
+		if (conn.closed)
+			return;
+		
+		conn.closed = true;
+		conn.key.cancel();
+		try {
+			conn.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		connections.remove(conn.connection);
+		conn.framer.release();
+		conn.connection.release();
+		
+		ByteBuffer bb;
+		while ( ( bb = conn.writeQueue.poll() ) != null ) {
+			bufferPool.release(bb);
+		}
+		
+		connectionCnt--;
 	}
 	
 	public int getPort() {
 		return port;
 	}
 
+	public Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/**
+	 * @param unixSocketPath	to listen on a Unix domain socket, in place of the port, for clients on the same host.
+	 *   The socket file must not exist, and it is deleted when the server exits.
+	 */
+	public void setUnixSocketPath(Path unixSocketPath) {
+		this.unixSocketPath = unixSocketPath;
+	}
+
+	public Path getSharedMemoryPath() {
+		return sharedMemoryPath;
+	}
+
+	/**
+	 * @param sharedMemoryPath	to serve a client on the same host, over a shared memory file, in place of the port,
+	 *   see RemoteCommandExecutor.connectSharedMemory().
+	 *   One client is served at a time, regardless of the serve mode, and the file is created anew for each client.
+	 *   It is deleted when the server exits.
+	 */
+	public void setSharedMemoryPath(Path sharedMemoryPath) {
+		this.sharedMemoryPath = sharedMemoryPath;
+	}
+
+	/**
+	 * @param sharedMemoryCapacity	of the ring buffer of each direction, in bytes. 
+	 *   It bounds the data in flight, not the packet size.
+	 */
+	public void setSharedMemoryCapacity(int sharedMemoryCapacity) {
+		this.sharedMemoryCapacity = sharedMemoryCapacity;
+	}
+
 	/**
 	 * If stop is true, then the server will exit, upon client disconnect.
+	 * 
+	 * In the selector mode, the server exits when all clients have disconnected.
+	 * 
+	 * In the thread per connection mode, the server stops accepting new clients, upon a client disconnect,
+	 *   while the remaining clients continue to be served, until they disconnect.
+	 * 
 	 * @param stop
 	 */
 	public void setStop(boolean stop) {
 		this.stop = stop;
+		
+		Selector sel = selector;
+		if (sel!=null)
+			sel.wakeup();
+	}
+
+	public ServeMode getServeMode() {
+		return serveMode;
+	}
+
+	public void setServeMode(ServeMode serveMode) {
+		this.serveMode = serveMode;
+	}
+
+	/**
+	 * @param bufferPool	where the receive buffers come from, e.g. a pool of direct buffers.
+	 */
+	public void setBufferPool(ByteBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/**
+	 * @param compressionEnabled	whether to agree to compress large payloads, when requested by a client,
+	 *   see RemoteCommandExecutor.setCompressionThreshold().
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	public int getMaxProtocolVersion() {
+		return maxProtocolVersion;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout	to close a connection, when nothing is received for this long, in milliseconds, 
+	 *   while no command is in flight. 0 (the default) for none.
+	 *   It takes effect at the next accept().
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getKeepaliveInterval() {
+		return keepaliveInterval;
+	}
+
+	/**
+	 * @param keepaliveInterval	to send a PING to an idle client, this often, in milliseconds, 0 (the default) for none.
+	 *   A client answering the PINGs keeps its connection, if the interval is shorter than the idle timeout.
+	 *   Only clients that agreed to keepalive at connect time are probed, see RemoteCommandExecutor.
+	 *   It takes effect at the next accept().
+	 */
+	public void setKeepaliveInterval(long keepaliveInterval) {
+		this.keepaliveInterval = keepaliveInterval;
+	}
+
+	/**
+	 * @param maxProtocolVersion	the highest protocol version to agree to, with a client, 
+	 *   1 for the original wire format only. See WireFormat.
+	 */
+	public void setMaxProtocolVersion(int maxProtocolVersion) {
+		this.maxProtocolVersion = maxProtocolVersion;
+	}
+
+	/**
+	 * @param connectionExecutorService	where connections are served in the thread per connection mode,
+	 *   and their commands executed, so it must not be bounded by the number of connections.
+	 *   If not set, a virtual thread per task is used, when available, or otherwise a cached thread pool.
+	 *   NOTE: commands from different connections are executed concurrently, 
+	 *     so the command executor needs to be thread safe.
+	 */
+	public void setConnectionExecutorService(ExecutorService connectionExecutorService) {
+		this.connectionExecutorService = connectionExecutorService;
+	}
+
+	/**
+	 * @param callExecutorService	where commands are executed in the selector mode.
+	 *   If not set, a single thread is used for all connections.
+	 *   NOTE: the command executor needs to be thread safe, if more than 1 thread is used.
+	 */
+	public void setCallExecutorService(ExecutorService callExecutorService) {
+		this.callExecutorService = callExecutorService;
 	}
 
 
@@ -0,0 +1,681 @@
+package mikejyg.smecli.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import mikejyg.smecli.CmdCallType;
+import mikejyg.smecli.CmdReturnType;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.CommandStruct;
+import mikejyg.smecli.cmdexecutor.CommandExecutorIntf;
+import mikejyg.smecli.socket.CliPacketSerdes.DesException;
+import mikejyg.socket.WireFormat;
+
+/**
+ * The server side of a single client connection.
+ *
+ * It de-serializes received packets, executes the commands, and sends back the returns.
+ *
+ * It does not do any I/O by itself, so that it can be driven by either a blocking read loop, or a selector.
+ *
+ * A tagged call is executed by execCmdAsync() of the command executor, so that the next call can start,
+ *   while waiting for the return of a command executed asynchronously, e.g. remotely.
+ *   Untagged calls, and batches, are executed one at a time, as their returns are in order.
+ *
+ * A tagged call, or batch, can be cancelled by an OOB CANCEL message, which interrupts the executing thread,
+ *   or cancels the pending return, and the return is CANCELLED.
+ *
+ * An idle connection can be closed, and an idle client probed by OOB PINGs, see checkIdle().
+ *
+ * A client can request the command catalog, which is sent after the HELLO reply, 
+ *   and again after the commands change, once per burst of changes, see CATALOG_DELAY.
+ *   It is withdrawn, if the commands are no longer known.
+ *
+ * @author mikejyg
+ *
+ */
+class SocketCliConnection {
+	/**
+	 * how long to wait after a change of the commands, before sending the catalog, in milliseconds,
+	 *   so that the changes made meanwhile, e.g. many commands registered at once, go in one catalog.
+	 */
+	static final long CATALOG_DELAY=50;
+
+	/**
+	 * where the packets go.
+	 */
+	interface PacketSender {
+		/**
+		 * @param payloadLength
+		 * @param payloadWriter	writes exactly payloadLength bytes to the given buffer.
+		 * @throws IOException
+		 */
+		void send(int payloadLength, Consumer<ByteBuffer> payloadWriter) throws IOException;
+	}
+
+	/**
+	 * the state of a tagged call, or batch, from its receipt, to its return.
+	 */
+	private static class CallState {
+		/**
+		 * the executing thread, when executing.
+		 */
+		Thread thread;
+		
+		/**
+		 * the pending return, after the command executor returned it.
+		 */
+		CompletableFuture<CmdReturnType> future;
+		
+		boolean cancelledFlag;
+	}
+
+	private CommandExecutorIntf commandExecutor;
+
+	private PacketSender packetSender;
+
+	/**
+	 * where the commands are executed.
+	 */
+	private Executor callExecutor;
+
+	private CliPacketSerdes cliPacketSerdes = new CliPacketSerdes();
+
+	private CliPacketCompressor compressor = new CliPacketCompressor();
+
+	/**
+	 * whether to agree to compression, when requested by the client.
+	 */
+	private boolean compressionEnabled = true;
+
+	/**
+	 * the highest protocol version to agree to.
+	 */
+	private int maxProtocolVersion = WireFormat.V2.getVersion();
+
+	/**
+	 * the wire format of the packets sent, as agreed by HELLO.
+	 */
+	private volatile WireFormat wireFormat = WireFormat.V1;
+
+	/**
+	 * to switch the packet framing of the transport, in both directions, when a new wire format is agreed.
+	 */
+	private Consumer<WireFormat> wireFormatListener = wf->{};
+
+	// the commands of the command symbols, looked up once, by the receiving thread
+
+	private CommandStruct[] symbolCommands = new CommandStruct[0];
+
+	/**
+	 * the commands version of the looked up commands.
+	 */
+	private int symbolCommandsVersion;
+
+	/**
+	 * the tagged calls, and batches, not returned yet, by tags.
+	 */
+	private Map<Integer, CallState> callStates = new ConcurrentHashMap<>();
+
+	// for the idle check
+
+	/**
+	 * when a packet was last received, or a return sent, by System.nanoTime().
+	 */
+	private volatile long lastActiveTime = System.nanoTime();
+
+	/**
+	 * when a PING was last sent.
+	 */
+	private volatile long lastPingTime = lastActiveTime;
+
+	/**
+	 * the calls, and batches, received, and not returned yet.
+	 */
+	private AtomicInteger pendingCnt = new AtomicInteger();
+
+	/**
+	 * whether the client answers PINGs, as agreed by HELLO.
+	 */
+	private volatile boolean keepaliveFlag;
+
+	/**
+	 * whether closed by checkIdle().
+	 */
+	private volatile boolean idleClosedFlag;
+
+	/**
+	 * the help command, a special case, see execCmd(), in the command catalog.
+	 */
+	private static final CommandStruct HELP_COMMAND = new CommandStruct("help", null
+			, "print the help of the remote commands.", null);
+	
+	/**
+	 * to send the command catalog, when the commands change, if registered.
+	 */
+	private Runnable catalogListener;
+
+	/**
+	 * set while a catalog is to be sent, after CATALOG_DELAY.
+	 */
+	private AtomicBoolean catalogPendingFlag = new AtomicBoolean();
+
+	private Runnable closeFunc;
+
+	/////////////////////////////////////////////////////////////
+
+	/**
+	 * @param commandExecutor
+	 * @param packetSender
+	 * @param callExecutor	executes the commands. It must run the tasks one at a time, in submission order.
+	 * @param closeFunc		to close the connection, when a command return cannot be sent.
+	 */
+	SocketCliConnection(CommandExecutorIntf commandExecutor, PacketSender packetSender, Executor callExecutor
+			, Runnable closeFunc) {
+		this.commandExecutor = commandExecutor;
+		this.packetSender = packetSender;
+		this.callExecutor = callExecutor;
+		this.closeFunc = closeFunc;
+	}
+
+	/**
+	 * process a received packet.
+	 *
+	 * @param bb	the packet payload. It is fully consumed before return.
+	 * @throws DesException
+	 * @throws ReturnCode.IllegalValueException
+	 */
+	void onPacket(ByteBuffer bb) throws DesException, ReturnCode.IllegalValueException {
+		lastActiveTime = System.nanoTime();
+		
+		Object obj = cliPacketSerdes.deserialize(bb);
+		int tag = cliPacketSerdes.getLastTag();
+		
+		switch (cliPacketSerdes.getLastId()) {
+		case CMD_CALL:
+			onCmdCall(false, tag, (CmdCallType)obj, null);
+			break;
+			
+		case CMD_CALL_TAGGED:
+			onCmdCall(true, tag, (CmdCallType)obj, null);
+			break;
+			
+		case CMD_CALL_SYMBOL: {
+			CmdCallType cmdCall = (CmdCallType)obj;
+			onCmdCall(true, tag, cmdCall, getSymbolCommand(cliPacketSerdes.getLastSymbol(), cmdCall.getCommandName()));
+			break;
+		}
+			
+		case CMD_BATCH:
+			onCmdBatch(tag, (CmdBatchType)obj);
+			break;
+			
+		case OOB:
+			onOob((byte[])obj);
+			break;
+			
+		default:
+			throw new DesException();
+		}
+	}
+	
+	/**
+	 * @return the command of a symbol, looked up once, unless the commands change, or null if not found.
+	 */
+	private CommandStruct getSymbolCommand(int symbol, String commandName) {
+		int version = commandExecutor.getCommandsVersion();
+		if (version!=symbolCommandsVersion) {
+			Arrays.fill(symbolCommands, null);
+			symbolCommandsVersion = version;
+		}
+		
+		if (symbol >= symbolCommands.length)
+			symbolCommands = Arrays.copyOf(symbolCommands, Math.max(symbol + 1, symbolCommands.length * 2));
+		
+		CommandStruct commandStruct = symbolCommands[symbol];
+		if (commandStruct==null) {
+			commandStruct = commandExecutor.getCommand(commandName);
+			symbolCommands[symbol] = commandStruct;
+		}
+		return commandStruct;
+	}
+	
+	/**
+	 * @param commandStruct	the command, if already looked up, otherwise null.
+	 */
+	private void onCmdCall(boolean taggedFlag, int tag, CmdCallType cmdCall, CommandStruct commandStruct) {
+//		System.out.println("received cmdCall: " + cmdCall.toString());
+
+		CallState callState = taggedFlag ? newCallState(tag) : null;
+		pendingCnt.incrementAndGet();
+		
+		callExecutor.execute(()->{
+			WireFormat wf = wireFormat;
+			
+			// for tagged calls, the output of the command can be streamed in chunks, ahead of the return.
+			boolean[] streamedFlag = {false};
+			if (taggedFlag) {
+				cmdCall.setOutputListener(chunk->{
+					streamedFlag[0] = true;
+					send(CliPacketSerdes.getSerializedSize(wf, tag, chunk)
+							, buffer->CliPacketSerdes.serialize(buffer, wf, tag, chunk));
+				});
+			}
+			
+			Consumer<CmdReturnType> returnSender = cmdReturn->{
+				if (taggedFlag)
+					callStates.remove(tag);
+
+				if (streamedFlag[0]) {
+					send(CliPacketSerdes.getSerializedSize(wf, tag, cmdReturn)
+							, buffer->CliPacketSerdes.serializeReturnEnd(buffer, wf, tag, cmdReturn));
+				} else if (taggedFlag) {
+					send(CliPacketSerdes.getSerializedSize(wf, tag, cmdReturn)
+							, buffer->CliPacketSerdes.serialize(buffer, wf, tag, cmdReturn));
+				} else {
+					send(CliPacketSerdes.getSerializedSize(wf, cmdReturn)
+							, buffer->CliPacketSerdes.serialize(buffer, wf, cmdReturn));
+				}
+				
+				endPending();
+			};
+			
+			if (taggedFlag)
+				execCmdAsync(callState, cmdCall, commandStruct).thenAccept(returnSender);
+			else
+				returnSender.accept(execCmd(cmdCall, commandStruct));
+		});
+	}
+	
+	/**
+	 * execute the calls of a batch in order, and send back all the returns in a single packet.
+	 * 
+	 * Unless continue on error, the execution stops after the first failed call,
+	 *   so there can be fewer returns than calls.
+	 */
+	private void onCmdBatch(int tag, CmdBatchType cmdBatch) {
+		CallState callState = newCallState(tag);
+		pendingCnt.incrementAndGet();
+		
+		callExecutor.execute(()->{
+			WireFormat wf = wireFormat;
+			List<CmdReturnType> cmdReturns = new ArrayList<>();
+			
+			if ( beginCall(callState) ) {
+				for (CmdCallType cmdCall : cmdBatch.getCmdCalls()) {
+					CmdReturnType cmdReturn = execCmd(cmdCall, null);
+					
+					// the batch stops at a cancel
+					synchronized (callState) {
+						if (callState.cancelledFlag)
+							cmdReturn = newCancelledReturn();
+					}
+					cmdReturns.add(cmdReturn);
+					
+					if ( cmdReturn.getReturnCode()==ReturnCode.CANCELLED 
+							|| ! cmdReturn.getReturnCode().isOk() && ! cmdBatch.isContinueOnError() )
+						break;
+				}
+				endCall(callState);
+				
+			} else {
+				cmdReturns.add(newCancelledReturn());
+			}
+			
+			callStates.remove(tag);
+			
+			send(CliPacketSerdes.getSerializedSize(wf, tag, cmdReturns)
+					, buffer->CliPacketSerdes.serialize(buffer, wf, tag, cmdReturns));
+			
+			endPending();
+		});
+	}
+	
+	/**
+	 * OOB messages are handled right away, on the receiving thread.
+	 */
+	private void onOob(byte[] oobData) throws DesException {
+		if (oobData.length==0)
+			throw new DesException();
+		
+		ByteBuffer bb = ByteBuffer.wrap(oobData, 1, oobData.length-1);
+		
+		switch (CliOob.Type.getType(oobData[0])) {
+		case HELLO:
+			onHello(new CliOob.Hello(bb));
+			break;
+			
+		case CANCEL:
+			if (bb.remaining() < 4)
+				throw new DesException();
+			onCancel(bb.getInt());
+			break;
+			
+		case PING:
+			sendOob(CliOob.message(CliOob.Type.PONG));
+			break;
+			
+		case PONG:
+			break;
+		}
+	}
+	
+	/**
+	 * a call, or batch, returned, which restarts the idle time.
+	 */
+	private void endPending() {
+		lastActiveTime = System.nanoTime();
+		pendingCnt.decrementAndGet();
+	}
+	
+	/**
+	 * close the connection, if idle for too long, or otherwise, probe an idle client by a PING, if agreed by HELLO.
+	 * 
+	 * A connection is idle, when nothing is received, and no call is in flight.
+	 * A client answering the PINGs keeps its connection active.
+	 * 
+	 * It is called periodically, from any thread.
+	 * 
+	 * @param now	by System.nanoTime().
+	 * @param idleTimeout	in nanoseconds, 0 for none.
+	 * @param keepaliveInterval	in nanoseconds, 0 for none.
+	 * @return false if closed.
+	 */
+	boolean checkIdle(long now, long idleTimeout, long keepaliveInterval) {
+		if (pendingCnt.get()!=0)
+			return true;
+		
+		long idleTime = now - lastActiveTime;
+		
+		if (idleTimeout!=0 && idleTime >= idleTimeout) {
+			idleClosedFlag = true;
+			closeFunc.run();
+			return false;
+		}
+		
+		if ( keepaliveFlag && keepaliveInterval!=0 && idleTime >= keepaliveInterval 
+				&& now - lastPingTime >= keepaliveInterval ) {
+			lastPingTime = now;
+			sendOob(CliOob.message(CliOob.Type.PING));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return whether closed by checkIdle().
+	 */
+	boolean isIdleClosed() {
+		return idleClosedFlag;
+	}
+	
+	private CallState newCallState(int tag) {
+		CallState callState = new CallState();
+		callStates.put(tag, callState);
+		return callState;
+	}
+	
+	/**
+	 * @return false if cancelled before the execution.
+	 */
+	private boolean beginCall(CallState callState) {
+		if (callState==null)
+			return true;
+		
+		synchronized (callState) {
+			if (callState.cancelledFlag)
+				return false;
+			callState.thread = Thread.currentThread();
+			return true;
+		}
+	}
+	
+	/**
+	 * @return whether cancelled.
+	 */
+	private boolean endCall(CallState callState) {
+		if (callState==null)
+			return false;
+		
+		synchronized (callState) {
+			callState.thread = null;
+			Thread.interrupted();		// in case the interrupt came after the command finished
+			return callState.cancelledFlag;
+		}
+	}
+	
+	/**
+	 * execute a command, unless cancelled, without waiting for its return.
+	 * 
+	 * A cancel interrupts the executing thread, until the command executor returns the pending return,
+	 *   which is then cancelled instead.
+	 * 
+	 * @return never completed exceptionally.
+	 */
+	private CompletableFuture<CmdReturnType> execCmdAsync(CallState callState, CmdCallType cmdCall
+			, CommandStruct commandStruct) {
+		if ( ! beginCall(callState) )
+			return CompletableFuture.completedFuture(newCancelledReturn());
+		
+		CompletableFuture<CmdReturnType> future = execCmdAsync(cmdCall, commandStruct);
+		
+		synchronized (callState) {
+			callState.thread = null;
+			Thread.interrupted();		// in case the interrupt came after the command executor returned
+			if (callState.cancelledFlag)
+				future.cancel(true);
+			else
+				callState.future = future;
+		}
+		
+		return future.handle((cmdReturn, e)->{
+			synchronized (callState) {
+				if (callState.cancelledFlag)
+					return newCancelledReturn();
+			}
+			
+			if (e!=null) {
+				Throwable cause = e instanceof CompletionException && e.getCause()!=null ? e.getCause() : e;
+				cause.printStackTrace();
+				return new CmdReturnType(ReturnCode.FAILURE, cause.getMessage());
+			}
+			return cmdReturn;
+		});
+	}
+	
+	private static CmdReturnType newCancelledReturn() {
+		return new CmdReturnType(ReturnCode.CANCELLED, "cancelled.");
+	}
+	
+	/**
+	 * cancel a call, or batch, if not returned yet, interrupting it if executing.
+	 */
+	private void onCancel(int tag) {
+		CallState callState = callStates.get(tag);
+		if (callState==null)
+			return;
+		
+		synchronized (callState) {
+			callState.cancelledFlag = true;
+			if (callState.thread!=null)
+				callState.thread.interrupt();
+			if (callState.future!=null)
+				callState.future.cancel(true);
+		}
+	}
+	
+	/**
+	 * reply with the agreed settings, which take effect after the reply.
+	 * 
+	 * The reply is in the wire format of the HELLO, V1, and the agreed wire format is used afterwards,
+	 *   in both directions.
+	 */
+	private synchronized void onHello(CliOob.Hello hello) {
+		CliOob.Hello reply = new CliOob.Hello();
+		if (compressionEnabled)
+			reply.compressionThreshold = hello.compressionThreshold;
+		
+		reply.commandSymbols = Math.max( 0, Math.min(hello.commandSymbols, CliOob.Hello.MAX_COMMAND_SYMBOLS) );
+		cliPacketSerdes.setMaxCommandSymbols(reply.commandSymbols);
+		
+		reply.protocolVersion = Math.max( 1, Math.min(hello.protocolVersion, maxProtocolVersion) );
+		
+		reply.keepalive = hello.keepalive!=0 ? 1 : 0;
+		
+		reply.catalog = hello.catalog!=0 && commandExecutor.getCommands()!=null ? 1 : 0;
+		
+		WireFormat helloWireFormat = wireFormat;
+		byte[] replyData = reply.toBytes();
+		send(CliPacketSerdes.getSerializedSize(helloWireFormat, replyData)
+				, buffer->CliPacketSerdes.serialize(buffer, helloWireFormat, replyData));
+		
+		compressor.setThreshold(reply.compressionThreshold);
+		cliPacketSerdes.setCompressionEnabled(reply.compressionThreshold >= 0);
+		
+		WireFormat wf = WireFormat.getWireFormat(reply.protocolVersion);
+		wireFormat = wf;
+		compressor.setWireFormat(wf);
+		cliPacketSerdes.setWireFormat(wf);
+		wireFormatListener.accept(wf);
+		
+		keepaliveFlag = reply.keepalive!=0;
+		
+		if (reply.catalog!=0 && catalogListener==null) {
+			catalogListener = this::onCommandsChange;
+			commandExecutor.addCommandsChangeListener(catalogListener);
+			sendCatalog();
+		}
+	}
+	
+	/**
+	 * send the catalog after CATALOG_DELAY, unless already to be sent.
+	 */
+	private void onCommandsChange() {
+		if ( ! catalogPendingFlag.compareAndSet(false, true) )
+			return;
+		
+		CompletableFuture.delayedExecutor(CATALOG_DELAY, TimeUnit.MILLISECONDS).execute(()->{
+			// a change from now on is sent in another catalog
+			catalogPendingFlag.set(false);
+			sendCatalog();
+		});
+	}
+	
+	/**
+	 * send the command catalog, including the help command, unless the connection is released,
+	 *   or withdraw it, if the commands are no longer known.
+	 */
+	private synchronized void sendCatalog() {
+		if (catalogListener==null)
+			return;
+		
+		List<CommandStruct> executorCommands = commandExecutor.getCommands();
+		if (executorCommands==null) {
+			sendOob(CliOob.message(CliOob.Type.CATALOG_WITHDRAWN));
+			return;
+		}
+		
+		List<CommandStruct> commands = new ArrayList<>(executorCommands);
+		if ( commands.stream().noneMatch(cs->cs.commandName.equals(HELP_COMMAND.commandName)) )
+			commands.add(HELP_COMMAND);
+		
+		sendOob(CliOob.catalog(commands));
+	}
+	
+	/**
+	 * send an OOB message, in the current wire format.
+	 */
+	private synchronized void sendOob(byte[] oobData) {
+		WireFormat wf = wireFormat;
+		send(CliPacketSerdes.getSerializedSize(wf, oobData), buffer->CliPacketSerdes.serialize(buffer, wf, oobData));
+	}
+	
+	/**
+	 * send a packet, or close the connection if it cannot be sent.
+	 * 
+	 * It is synchronized, as OOB replies are sent from the receiving thread.
+	 */
+	private synchronized void send(int payloadLength, Consumer<ByteBuffer> payloadWriter) {
+		try {
+			compressor.send(packetSender, payloadLength, payloadWriter);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeFunc.run();
+		}
+	}
+
+	/**
+	 * free the resources, when the connection is closed.
+	 */
+	synchronized void release() {
+		if (catalogListener!=null) {
+			commandExecutor.removeCommandsChangeListener(catalogListener);
+			catalogListener = null;
+		}
+		
+		cliPacketSerdes.release();
+		compressor.release();
+	}
+
+	void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	void setMaxProtocolVersion(int maxProtocolVersion) {
+		this.maxProtocolVersion = maxProtocolVersion;
+	}
+
+	/**
+	 * @param wireFormatListener	called on the receiving thread, right after the HELLO reply is sent,
+	 *   to switch the packet framing of the transport.
+	 */
+	void setWireFormatListener(Consumer<WireFormat> wireFormatListener) {
+		this.wireFormatListener = wireFormatListener;
+	}
+
+	private CmdReturnType execCmd(CmdCallType cmdCall, CommandStruct commandStruct) {
+		// help is a special case, answered in-band, for the clients without the command catalog,
+		//   while the ones with it serve the help locally, from the catalog sent OOB
+		if (cmdCall.getCommandName().equals("help")) {
+			return new CmdReturnType(ReturnCode.OK, commandExecutor.toHelpString());
+		}
+
+		try {
+			if (commandStruct!=null)
+				return commandExecutor.execCmd(commandStruct, cmdCall);
+			return commandExecutor.execCmd(cmdCall);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return new CmdReturnType(ReturnCode.FAILURE, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the pending return, which may be completed exceptionally.
+	 */
+	private CompletableFuture<CmdReturnType> execCmdAsync(CmdCallType cmdCall, CommandStruct commandStruct) {
+		// a command already looked up is executed right away
+		if (commandStruct!=null || cmdCall.getCommandName().equals("help"))
+			return CompletableFuture.completedFuture(execCmd(cmdCall, commandStruct));
+		
+		try {
+			return commandExecutor.execCmdAsync(cmdCall).toCompletableFuture();
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+
+}
@@ -1,56 +1,64 @@
 package mikejyg.socket;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * to act as a variable size byte buffer.
- * 
+ *
  * @author mikejyg
  *
  */
 public class ByteBufferAccumulator {
-	private List<byte[]> byteArrays = new ArrayList<>();
+	private byte[] bytes = new byte[64];
 	private int totalLength=0;
-	
+
 	/////////////////////////////////////////////////////////
 
 	public void put(byte a) {
-		ByteBuffer bb = ByteBuffer.allocate(1);
-		totalLength++;
-		bb.put(a);
-		byteArrays.add(bb.array());
+		ensureCapacity(1);
+		bytes[totalLength++] = a;
 	}
 
 	public void putInt(int a) {
-		ByteBuffer bb = ByteBuffer.allocate(4);
-		totalLength+=4;
-		bb.putInt(a);
-		byteArrays.add(bb.array());
+		ensureCapacity(4);
+		bytes[totalLength++] = (byte)(a >> 24);
+		bytes[totalLength++] = (byte)(a >> 16);
+		bytes[totalLength++] = (byte)(a >> 8);
+		bytes[totalLength++] = (byte)a;
 	}
-	
+
 	public void put(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.bytes, totalLength, bytes.length);
 		totalLength += bytes.length;
-		byteArrays.add(bytes);
 	}
-	
+
+	/**
+	 * append length bytes, to be written through the returned buffer.
+	 *
+	 * @param length
+	 * @return a buffer of the appended bytes, with length bytes remaining.
+	 */
+	public ByteBuffer reserve(int length) {
+		ensureCapacity(length);
+		ByteBuffer bb = ByteBuffer.wrap(bytes, totalLength, length).slice();
+		totalLength += length;
+		return bb;
+	}
+
 	public byte[] toBytes() {
-		byte[] bytes = new byte[totalLength];
-		
-		int idx=0;
-		for (byte[] bs : byteArrays) {
-			for (int i=0; i<bs.length; i++) {
-				bytes[idx++] = bs[i];
-			}
-		}
-		
-		return bytes;
+		return Arrays.copyOf(bytes, totalLength);
 	}
 
 	public int getTotalLength() {
 		return totalLength;
 	}
 
-	
+	private void ensureCapacity(int length) {
+		if (totalLength + length > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(totalLength + length, bytes.length * 2));
+	}
+
+
 }
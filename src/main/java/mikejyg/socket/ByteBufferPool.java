@@ -0,0 +1,104 @@
+package mikejyg.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * a pool of reusable byte buffers, in power of 2 size classes.
+ *
+ * It is thread safe.
+ *
+ * @author mikejyg
+ *
+ */
+public class ByteBufferPool {
+	public static final int MIN_CAPACITY=256;
+
+	public static final int DEFAULT_MAX_POOLED_PER_SIZE=64;
+
+	private boolean directFlag;
+
+	/**
+	 * max number of free buffers kept, per size class.
+	 */
+	private int maxPooledPerSize;
+
+	/**
+	 * free buffers, indexed by log2 of capacity.
+	 */
+	@SuppressWarnings("unchecked")
+	private ArrayDeque<ByteBuffer>[] freeBuffers = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[32];
+
+	//////////////////////////////////////////////////////////////////
+
+	public ByteBufferPool() {
+		this(false);
+	}
+
+	/**
+	 * @param directFlag whether to allocate direct buffers.
+	 */
+	public ByteBufferPool(boolean directFlag) {
+		this(directFlag, DEFAULT_MAX_POOLED_PER_SIZE);
+	}
+
+	public ByteBufferPool(boolean directFlag, int maxPooledPerSize) {
+		this.directFlag = directFlag;
+		this.maxPooledPerSize = maxPooledPerSize;
+
+		for (int i=0; i<freeBuffers.length; i++) {
+			freeBuffers[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * @param minCapacity
+	 * @return a cleared buffer, of at least the specified capacity.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		int sizeIdx = sizeIndex(minCapacity);
+
+		ByteBuffer bb;
+		synchronized (freeBuffers[sizeIdx]) {
+			bb = freeBuffers[sizeIdx].poll();
+		}
+
+		if (bb==null) {
+			int capacity = 1 << sizeIdx;
+			bb = directFlag ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+
+		bb.clear();
+		return bb;
+	}
+
+	/**
+	 * return a buffer, acquired from this pool, to the pool.
+	 * @param bb
+	 */
+	public void release(ByteBuffer bb) {
+		int sizeIdx = sizeIndex(bb.capacity());
+		if ( (1 << sizeIdx) != bb.capacity() )
+			return;		// not from this pool
+
+		synchronized (freeBuffers[sizeIdx]) {
+			if (freeBuffers[sizeIdx].size() < maxPooledPerSize)
+				freeBuffers[sizeIdx].add(bb);
+		}
+	}
+
+	/**
+	 * @return log2 of the size class that fits the capacity.
+	 */
+	private static int sizeIndex(int capacity) {
+		if (capacity <= MIN_CAPACITY)
+			capacity = MIN_CAPACITY;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+	}
+
+	public boolean isDirect() {
+		return directFlag;
+	}
+
+
+}
@@ -46,17 +46,21 @@ public class LvPacket {
 		LvPacket lvPacket = new LvPacket();
 		
 		byte[] headerBytes = new byte[HEADER_LENGTH];
-		int k = inputStream.read(headerBytes);
-		if (k!=HEADER_LENGTH)
+		int k = readFully(inputStream, headerBytes);
+		if (k==0)
 			return null;
+		if (k!=HEADER_LENGTH)
+			throw new ReadException();	// failure to read all header
 		
 		ByteBuffer bb = ByteBuffer.wrap(headerBytes);
 		
 		int length = bb.getInt();
+		if (length<0)
+			throw new ReadException();
 		
 		lvPacket.data = new byte[length];
 		
-		k = inputStream.read(lvPacket.data);
+		k = readFully(inputStream, lvPacket.data);
 		if (k!=length)
 			throw new ReadException();	// failure to read all data
 		
@@ -64,6 +68,22 @@ public class LvPacket {
 		
 	}
 	
+	/**
+	 * read until the array is filled, or end of stream.
+	 * @return number of bytes read.
+	 * @throws IOException
+	 */
+	private static int readFully(InputStream inputStream, byte[] bytes) throws IOException {
+		int total=0;
+		while (total < bytes.length) {
+			int k = inputStream.read(bytes, total, bytes.length - total);
+			if (k<0)
+				break;
+			total += k;
+		}
+		return total;
+	}
+	
 	/**
 	 * serialize.
 	 * @return
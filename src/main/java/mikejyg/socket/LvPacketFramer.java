@@ -0,0 +1,216 @@
+package mikejyg.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * incrementally frames length value packets, from a (non-blocking) channel.
+ *
+ * bytes are read into an internal buffer as they become available,
+ *   and complete packets are then taken out one at a time.
+ *
+ * The internal buffer is reused, and it can come from a buffer pool,
+ *   so that there is no allocation per packet, once the buffer has grown to the largest packet size.
+ *
+ * The length is a 4 byte int, or a varint, according to the wire format.
+ *
+ * @author mikejyg
+ *
+ */
+public class LvPacketFramer {
+	public static final int DEFAULT_CAPACITY=4096;
+
+	/**
+	 * can be null, for not pooled.
+	 */
+	private ByteBufferPool pool;
+
+	/**
+	 * in write mode, i.e. position is where the next read goes.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * a view of buffer, to hand out packet payloads.
+	 */
+	private ByteBuffer packetView;
+
+	/**
+	 * index of the first byte not yet taken out as a packet.
+	 */
+	private int start;
+
+	private WireFormat wireFormat = WireFormat.V1;
+
+	// the header of the packet at start, as parsed by parseHeader()
+
+	private int headerLength;
+
+	/**
+	 * -1 for a bad length.
+	 */
+	private int payloadLength;
+
+	//////////////////////////////////////////////////////////////////
+
+	public LvPacketFramer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LvPacketFramer(int initialCapacity) {
+		setBuffer(ByteBuffer.allocate(initialCapacity));
+	}
+
+	/**
+	 * @param pool	where the internal buffer comes from, and goes back to, upon release().
+	 */
+	public LvPacketFramer(ByteBufferPool pool) {
+		this.pool = pool;
+		setBuffer(pool.acquire(DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * read whatever is available from the channel.
+	 *
+	 * NOTE: packets previously returned by nextPacket() are no longer valid after this call.
+	 *
+	 * @param channel
+	 * @return number of bytes read, or -1 for end of stream.
+	 * @throws IOException
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		compact();
+
+		// make sure there is room for a whole pending packet, or at least 1 more byte
+		int required = Math.max( pendingLength(), buffer.position() + 1 );
+		if ( required > buffer.capacity() ) {
+			int capacity = Math.max(required, buffer.capacity() * 2);
+			ByteBuffer newBuffer = pool!=null ? pool.acquire(capacity) : ByteBuffer.allocate(capacity);
+
+			buffer.flip();
+			newBuffer.put(buffer);
+
+			if (pool!=null)
+				pool.release(buffer);
+			setBuffer(newBuffer);
+		}
+
+		return channel.read(buffer);
+	}
+
+	/**
+	 * take out the next complete packet.
+	 *
+	 * @return the payload of the packet, between position and limit, or null if no complete packet is available yet.
+	 *   The returned buffer is a view of the internal buffer, and it is valid until the next nextPacket() or read().
+	 * @throws LvPacket.ReadException when a bad length is received.
+	 */
+	public ByteBuffer nextPacket() throws LvPacket.ReadException {
+		if ( ! parseHeader() )
+			return null;
+
+		if (payloadLength<0)
+			throw new LvPacket.ReadException();
+
+		if ( buffer.position() - start < headerLength + payloadLength )
+			return null;
+
+		packetView.limit(start + headerLength + payloadLength);
+		packetView.position(start + headerLength);
+
+		start += headerLength + payloadLength;
+
+		return packetView;
+	}
+
+	/**
+	 * @param wireFormat	for the packets after the ones already taken out.
+	 */
+	public void setWireFormat(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+	/**
+	 * @return whether there are bytes of an incomplete packet.
+	 */
+	public boolean hasPartialPacket() {
+		return buffer.position() != start;
+	}
+
+	/**
+	 * return the internal buffer to the pool, if any. The framer is not usable afterwards.
+	 */
+	public void release() {
+		if (pool!=null && buffer!=null)
+			pool.release(buffer);
+		buffer = null;
+		packetView = null;
+	}
+
+	private void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+		packetView = buffer.duplicate();
+	}
+
+	/**
+	 * @return the total number of bytes (header included) needed by the incomplete packet at start,
+	 *   or 0 if the length is not known yet.
+	 */
+	private int pendingLength() {
+		if ( ! parseHeader() || payloadLength < 0 )
+			return 0;
+		return headerLength + payloadLength;
+	}
+
+	/**
+	 * parse the length of the packet at start.
+	 *
+	 * @return false if the length is not complete yet.
+	 */
+	private boolean parseHeader() {
+		int available = buffer.position() - start;
+
+		if (wireFormat==WireFormat.V1) {
+			if ( available < LvPacket.HEADER_LENGTH )
+				return false;
+			headerLength = LvPacket.HEADER_LENGTH;
+			payloadLength = buffer.getInt(start);
+			return true;
+		}
+
+		int value=0;
+		for (int i=0; i < Varint.MAX_LENGTH; i++) {
+			if (i==available)
+				return false;
+
+			byte b = buffer.get(start + i);
+			value |= (b & 0x7f) << (7 * i);
+			if (b >= 0) {
+				headerLength = i + 1;
+				payloadLength = value;
+				return true;
+			}
+		}
+
+		// too long
+		headerLength = Varint.MAX_LENGTH;
+		payloadLength = -1;
+		return true;
+	}
+
+	/**
+	 * discard the bytes already taken out.
+	 */
+	private void compact() {
+		if (start==0)
+			return;
+
+		buffer.flip();
+		buffer.position(start);
+		buffer.compact();
+		start=0;
+	}
+
+
+}
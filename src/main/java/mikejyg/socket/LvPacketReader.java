@@ -0,0 +1,74 @@
+package mikejyg.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * reads length value packets from a blocking channel, into a reusable buffer.
+ *
+ * Unlike LvPacket.read(), it does not allocate per packet.
+ *
+ * @author mikejyg
+ *
+ */
+public class LvPacketReader {
+	private ReadableByteChannel channel;
+
+	private LvPacketFramer framer;
+
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	 * @param channel	a blocking channel.
+	 * @param pool		can be null, for not pooled.
+	 */
+	public LvPacketReader(ReadableByteChannel channel, ByteBufferPool pool) {
+		this.channel = channel;
+		framer = pool!=null ? new LvPacketFramer(pool) : new LvPacketFramer();
+	}
+
+	public LvPacketReader(InputStream inputStream, ByteBufferPool pool) {
+		this(Channels.newChannel(inputStream), pool);
+	}
+
+	/**
+	 * read a packet, as many reads as needed.
+	 *
+	 * @return the payload of the packet, between position and limit, valid until the next read,
+	 *   or null to indicate the channel is closed.
+	 * @throws IOException
+	 * @throws LvPacket.ReadException	if the channel is closed in the middle of a packet, or a bad length is received.
+	 */
+	public ByteBuffer read() throws IOException, LvPacket.ReadException {
+		while (true) {
+			ByteBuffer bb = framer.nextPacket();
+			if (bb!=null)
+				return bb;
+
+			if ( framer.read(channel) < 0 ) {
+				if ( framer.hasPartialPacket() )
+					throw new LvPacket.ReadException();		// failure to read all data
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @param wireFormat	for the packets after the ones already read.
+	 */
+	public void setWireFormat(WireFormat wireFormat) {
+		framer.setWireFormat(wireFormat);
+	}
+
+	/**
+	 * return the buffer to the pool, if any. The reader is not usable afterwards.
+	 */
+	public void release() {
+		framer.release();
+	}
+
+
+}
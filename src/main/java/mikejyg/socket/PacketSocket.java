@@ -2,27 +2,148 @@ package mikejyg.socket;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ByteChannel;
+import java.util.function.Consumer;
 
 import mikejyg.socket.LvPacket;
 
 /**
  * a stream socket that can send/receive TLV packets.
+ * 
+ * It is either a Socket, or a blocking channel, e.g. a SocketChannel of a Unix domain socket,
+ *   or a SharedMemoryChannel.
+ * 
  * @author mikejyg
  *
  */
 public class PacketSocket {
 	Socket socket;
 	
+	/**
+	 * in place of the socket, if not null.
+	 */
+	ByteChannel channel;
+	
+	private ByteBufferPool bufferPool;
+	
+	private LvPacketReader lvPacketReader;
+	
+	private ByteBuffer sendBuffer;
+	
+	/**
+	 * for the lengths of the packets sent and received, by receiveBuffer(), and send(payloadLength, payloadWriter).
+	 */
+	private volatile WireFormat wireFormat = WireFormat.V1;
+	
 	public PacketSocket(Socket socket) {
 		this.socket = socket;
 	}
 	
+	/**
+	 * @param socket
+	 * @param bufferPool	where the receive buffer comes from, can be null.
+	 */
+	public PacketSocket(Socket socket, ByteBufferPool bufferPool) {
+		this.socket = socket;
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * @param channel	a blocking channel.
+	 * @param bufferPool	where the receive buffer comes from, can be null.
+	 */
+	public PacketSocket(ByteChannel channel, ByteBufferPool bufferPool) {
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+	}
+	
 	public LvPacket receive() throws IOException, LvPacket.ReadException {
+		if (channel!=null)
+			return LvPacket.read(Channels.newInputStream(channel));
 		return LvPacket.read(socket.getInputStream());
 	}
 	
+	/**
+	 * receive a packet into a reusable buffer.
+	 * 
+	 * @return the payload, between position and limit, valid until the next receive, 
+	 *   or null to indicate socket closed.
+	 * @throws IOException
+	 * @throws LvPacket.ReadException
+	 */
+	public ByteBuffer receiveBuffer() throws IOException, LvPacket.ReadException {
+		if (lvPacketReader==null) {
+			lvPacketReader = channel!=null ? new LvPacketReader(channel, bufferPool)
+					: new LvPacketReader(socket.getInputStream(), bufferPool);
+			lvPacketReader.setWireFormat(wireFormat);
+		}
+		
+		return lvPacketReader.read();
+	}
+	
+	/**
+	 * return the receive buffer to the buffer pool, when done receiving.
+	 */
+	public void releaseBuffers() {
+		if (lvPacketReader!=null) {
+			lvPacketReader.release();
+			lvPacketReader = null;
+		}
+	}
+	
 	public void send(LvPacket lvPacket) throws IOException {
-		socket.getOutputStream().write(lvPacket.toBytes());
+		byte[] bytes = lvPacket.toBytes();
+		write(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * send a packet, of a known payload length, through a reusable buffer.
+	 * 
+	 * NOTE: it is not thread safe.
+	 * 
+	 * @param payloadLength
+	 * @param payloadWriter	to write exactly payloadLength bytes to the given buffer.
+	 * @throws IOException
+	 */
+	public void send(int payloadLength, Consumer<ByteBuffer> payloadWriter) throws IOException {
+		int packetLength = wireFormat.intSize(payloadLength) + payloadLength;
+		if ( sendBuffer==null || sendBuffer.capacity() < packetLength )
+			sendBuffer = ByteBuffer.allocate( Math.max(packetLength, LvPacketFramer.DEFAULT_CAPACITY) );
+		
+		sendBuffer.clear();
+		wireFormat.putInt(sendBuffer, payloadLength);
+		payloadWriter.accept(sendBuffer);
+		
+		write(sendBuffer.array(), 0, sendBuffer.position());
+	}
+	
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		if (channel==null) {
+			socket.getOutputStream().write(bytes, offset, length);
+			return;
+		}
+		
+		ByteBuffer bb = ByteBuffer.wrap(bytes, offset, length);
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+	
+	/**
+	 * switch the wire format of the lengths, for the packets after the ones already sent and received.
+	 * 
+	 * @param wireFormat
+	 */
+	public void setWireFormat(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+		if (lvPacketReader!=null)
+			lvPacketReader.setWireFormat(wireFormat);
+	}
+	
+	public WireFormat getWireFormat() {
+		return wireFormat;
 	}
 	
 	
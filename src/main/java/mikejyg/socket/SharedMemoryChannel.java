@@ -0,0 +1,363 @@
+package mikejyg.socket;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * a blocking byte channel between 2 processes on the same host, over a memory mapped file,
+ *   with a single producer, single consumer ring buffer for each direction.
+ *
+ * The server creates the file, and a single client opens it. Either side closing the channel
+ *   ends the stream of the other side, i.e. a read returns -1, once the received data are consumed.
+ *
+ * A waiting read, or write, spins for a while, then yields, and then parks for periods doubling up to
+ *   MAX_PARK_NANOS, as there is no way to wake up a thread of another process. So a busy connection
+ *   sees the data right away, while an idle one wakes up about a thousand times a second,
+ *   and takes up to that long to see new data.
+ *
+ * the file is:
+ * 4 bytes magic
+ * 4 bytes capacity of each ring
+ * ... the states of the client and the server, and the positions of the rings, each in its own cache line
+ * ... the data of the client to server ring
+ * ... the data of the server to client ring
+ *
+ * NOTE: reads must be from one thread at a time, and so are writes.
+ *
+ * @author mikejyg
+ *
+ */
+public class SharedMemoryChannel implements ByteChannel {
+	public static final int DEFAULT_CAPACITY = 1<<20;
+
+	static final int MAGIC = 0x534d4331;
+
+	// states of a side
+
+	static final long WAITING=0;
+	static final long ATTACHED=1;
+	static final long CLOSED=2;
+
+	// file layout
+
+	private static final int CAPACITY_OFFSET=4;
+	private static final int CLIENT_STATE_OFFSET=64;
+	private static final int SERVER_STATE_OFFSET=128;
+	private static final int CLIENT_RING_OFFSET=192;		// head, and tail 64 bytes later
+	private static final int SERVER_RING_OFFSET=320;
+	private static final int DATA_OFFSET=512;
+
+	// waiting
+
+	/**
+	 * no spinning on a single CPU, where it only delays the other side.
+	 */
+	private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 1<<14 : 0;
+	private static final int YIELD_LIMIT=SPIN_LIMIT + 1000;
+	private static final long MIN_PARK_NANOS=20000;
+	private static final long MAX_PARK_NANOS=1000000;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/**
+	 * a ring buffer in the file.
+	 *
+	 * The head is where the next write goes, and the tail where the next read comes from.
+	 * Both only increase, and they are taken modulo the capacity, to index the data.
+	 */
+	private class Ring {
+		int headOffset;
+		int tailOffset;
+		int dataOffset;
+
+		/**
+		 * the head of the writing side, or the tail of the reading side.
+		 */
+		long position;
+
+		/**
+		 * to copy the data.
+		 */
+		ByteBuffer view = buffer.duplicate();
+
+		Ring(int ringOffset, int dataOffset) {
+			headOffset = ringOffset;
+			tailOffset = ringOffset + 64;
+			this.dataOffset = dataOffset;
+		}
+
+		/**
+		 * point the view at the data, of a length not beyond the end of the ring.
+		 */
+		ByteBuffer view(long pos, int length) {
+			int index = dataOffset + (int)(pos & (capacity - 1));
+			view.limit(index + length);
+			view.position(index);
+			return view;
+		}
+
+		/**
+		 * @return the length, of the data from pos, not beyond the end of the ring.
+		 */
+		int contiguousLength(long pos, int length) {
+			return Math.min(length, capacity - (int)(pos & (capacity - 1)));
+		}
+	}
+
+	private ByteBuffer buffer;
+
+	private int capacity;
+
+	private Ring readRing;
+
+	private Ring writeRing;
+
+	private int stateOffset;
+
+	private int peerStateOffset;
+
+	private volatile boolean closed;
+
+	//////////////////////////////////////////////////////////////////
+
+	private SharedMemoryChannel(ByteBuffer buffer, boolean serverFlag) {
+		this.buffer = buffer;
+		capacity = buffer.getInt(CAPACITY_OFFSET);
+
+		Ring clientRing = new Ring(CLIENT_RING_OFFSET, DATA_OFFSET);
+		Ring serverRing = new Ring(SERVER_RING_OFFSET, DATA_OFFSET + capacity);
+
+		if (serverFlag) {
+			readRing = clientRing;
+			writeRing = serverRing;
+			stateOffset = SERVER_STATE_OFFSET;
+			peerStateOffset = CLIENT_STATE_OFFSET;
+		} else {
+			readRing = serverRing;
+			writeRing = clientRing;
+			stateOffset = CLIENT_STATE_OFFSET;
+			peerStateOffset = SERVER_STATE_OFFSET;
+		}
+
+		readRing.position = (long) LONGS.getVolatile(buffer, readRing.tailOffset);
+		writeRing.position = (long) LONGS.getVolatile(buffer, writeRing.headOffset);
+	}
+
+	/**
+	 * create the file, for a client to open, replacing an existing one, if any.
+	 *
+	 * @param path
+	 * @param capacity	of each direction, rounded up to a power of 2.
+	 * @return the server side of the channel.
+	 * @throws IOException
+	 */
+	public static SharedMemoryChannel create(Path path, int capacity) throws IOException {
+		if (capacity <= 0 || capacity > 1<<30)
+			throw new IllegalArgumentException("bad capacity: " + capacity);
+		capacity = Integer.highestOneBit(capacity)==capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+		// set up in a temporary file, so that a client never sees a partial file
+		Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+		ByteBuffer buffer;
+		try (FileChannel fileChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE
+				, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * capacity);
+		}
+
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		LONGS.setVolatile(buffer, SERVER_STATE_OFFSET, ATTACHED);
+		buffer.putInt(0, MAGIC);
+
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		return new SharedMemoryChannel(buffer, true);
+	}
+
+	/**
+	 * open a file created by a server.
+	 *
+	 * @param path
+	 * @return the client side of the channel.
+	 * @throws IOException	if not a valid file, or it is already opened by another client, or closed.
+	 */
+	public static SharedMemoryChannel open(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (fileChannel.size() < DATA_OFFSET)
+				throw new IOException("not a shared memory channel: " + path);
+			buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size());
+		}
+
+		int capacity = buffer.getInt(CAPACITY_OFFSET);
+		if ( buffer.getInt(0)!=MAGIC || capacity <= 0 || buffer.capacity() != DATA_OFFSET + 2L * capacity )
+			throw new IOException("not a shared memory channel: " + path);
+
+		if ( ! LONGS.compareAndSet(buffer, CLIENT_STATE_OFFSET, WAITING, ATTACHED) )
+			throw new IOException("shared memory channel in use: " + path);
+
+		if ( (long) LONGS.getVolatile(buffer, SERVER_STATE_OFFSET)==CLOSED ) {
+			LONGS.setVolatile(buffer, CLIENT_STATE_OFFSET, CLOSED);
+			throw new IOException("shared memory channel closed: " + path);
+		}
+
+		return new SharedMemoryChannel(buffer, false);
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+
+		if ( ! dst.hasRemaining() )
+			return 0;
+
+		long tail = readRing.position;
+		long head;
+
+		int spins=0;
+		while ( ( head = (long) LONGS.getAcquire(buffer, readRing.headOffset) ) == tail ) {
+			if ( isPeerClosed() ) {
+				// the last data, if any, are written before the close
+				if ( (long) LONGS.getAcquire(buffer, readRing.headOffset) == tail )
+					return -1;
+				continue;
+			}
+
+			spins = backOff(spins);
+
+			if (closed)
+				throw new AsynchronousCloseException();
+		}
+
+		int length = (int) Math.min(head - tail, dst.remaining());
+
+		int k = readRing.contiguousLength(tail, length);
+		dst.put(readRing.view(tail, k));
+		if (k < length)
+			dst.put(readRing.view(tail + k, length - k));
+
+		tail += length;
+		readRing.position = tail;
+		LONGS.setRelease(buffer, readRing.tailOffset, tail);
+
+		return length;
+	}
+
+	/**
+	 * write all the remaining bytes, waiting for room as needed.
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+
+		if ( isPeerClosed() )
+			throw new IOException("shared memory channel closed by the peer.");
+
+		int total = src.remaining();
+		int srcLimit = src.limit();
+		long head = writeRing.position;
+
+		int spins=0;
+		while ( src.hasRemaining() ) {
+			long tail = (long) LONGS.getAcquire(buffer, writeRing.tailOffset);
+			int free = capacity - (int)(head - tail);
+
+			if (free==0) {
+				if ( isPeerClosed() )
+					throw new IOException("shared memory channel closed by the peer.");
+
+				spins = backOff(spins);
+
+				if (closed)
+					throw new AsynchronousCloseException();
+				continue;
+			}
+			spins=0;
+
+			int length = Math.min(free, src.remaining());
+
+			int k = writeRing.contiguousLength(head, length);
+			src.limit(src.position() + k);
+			writeRing.view(head, k).put(src);
+			if (k < length) {
+				src.limit(src.position() + length - k);
+				writeRing.view(head + k, length - k).put(src);
+			}
+			src.limit(srcLimit);
+
+			head += length;
+			writeRing.position = head;
+			LONGS.setRelease(buffer, writeRing.headOffset, head);
+		}
+
+		return total;
+	}
+
+	private boolean isPeerClosed() {
+		return (long) LONGS.getVolatile(buffer, peerStateOffset) == CLOSED;
+	}
+
+	/**
+	 * spin, then yield, then park, for longer each time, up to MAX_PARK_NANOS.
+	 *
+	 * @param spins	the number of waits so far.
+	 * @return the number of waits, for the next one, kept from growing once the parks are the longest.
+	 */
+	private static int backOff(int spins) {
+		if (spins < SPIN_LIMIT) {
+			Thread.onSpinWait();
+			return spins + 1;
+		}
+
+		if (spins < YIELD_LIMIT) {
+			Thread.yield();
+			return spins + 1;
+		}
+
+		long parkNanos = MIN_PARK_NANOS << (spins - YIELD_LIMIT);
+		if (parkNanos >= MAX_PARK_NANOS) {
+			LockSupport.parkNanos(MAX_PARK_NANOS);
+			return spins;
+		}
+
+		LockSupport.parkNanos(parkNanos);
+		return spins + 1;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return ! closed;
+	}
+
+	/**
+	 * close this side, which ends the stream of the other side.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		LONGS.setVolatile(buffer, stateOffset, CLOSED);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+
+}
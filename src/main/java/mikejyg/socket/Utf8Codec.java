@@ -0,0 +1,85 @@
+package mikejyg.socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * UTF-8 encoding directly into byte buffers, without intermediate byte arrays.
+ *
+ * The output is the same as String.getBytes(StandardCharsets.UTF_8), i.e. a malformed surrogate is encoded as '?'.
+ *
+ * @author mikejyg
+ *
+ */
+public class Utf8Codec {
+
+	/**
+	 * @param str
+	 * @return the number of bytes of the UTF-8 encoding of the string.
+	 */
+	public static int encodedLength(String str) {
+		int length = str.length();
+		int encodedLength = length;
+
+		for (int i=0; i<length; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80)
+				continue;
+
+			if (c < 0x800) {
+				encodedLength += 1;
+
+			} else if ( Character.isSurrogate(c) ) {
+				if ( Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(str.charAt(i+1)) ) {
+					encodedLength += 2;		// 4 bytes for 2 chars
+					i++;
+				}
+				// otherwise, replaced by a single byte '?'
+
+			} else {
+				encodedLength += 2;
+			}
+		}
+
+		return encodedLength;
+	}
+
+	/**
+	 * encode a string into a buffer, which must have enough space remaining.
+	 *
+	 * @param str
+	 * @param bb
+	 */
+	public static void encode(String str, ByteBuffer bb) {
+		int length = str.length();
+
+		for (int i=0; i<length; i++) {
+			char c = str.charAt(i);
+
+			if (c < 0x80) {
+				bb.put((byte)c);
+
+			} else if (c < 0x800) {
+				bb.put( (byte)(0xc0 | (c >> 6)) );
+				bb.put( (byte)(0x80 | (c & 0x3f)) );
+
+			} else if ( Character.isSurrogate(c) ) {
+				if ( Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(str.charAt(i+1)) ) {
+					int cp = Character.toCodePoint(c, str.charAt(++i));
+					bb.put( (byte)(0xf0 | (cp >> 18)) );
+					bb.put( (byte)(0x80 | ((cp >> 12) & 0x3f)) );
+					bb.put( (byte)(0x80 | ((cp >> 6) & 0x3f)) );
+					bb.put( (byte)(0x80 | (cp & 0x3f)) );
+				} else {
+					bb.put((byte)'?');
+				}
+
+			} else {
+				bb.put( (byte)(0xe0 | (c >> 12)) );
+				bb.put( (byte)(0x80 | ((c >> 6) & 0x3f)) );
+				bb.put( (byte)(0x80 | (c & 0x3f)) );
+			}
+		}
+	}
+
+
+}
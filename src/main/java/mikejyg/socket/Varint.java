@@ -0,0 +1,54 @@
+package mikejyg.socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * variable length encoding of non-negative ints, 7 bits per byte, least significant group first,
+ *   with the high bit set on all bytes but the last.
+ *
+ * Values below 128 take 1 byte, and below 16384, 2 bytes.
+ *
+ * @author mikejyg
+ *
+ */
+public class Varint {
+	public static final int MAX_LENGTH = 5;
+
+	/**
+	 * @param value	not negative.
+	 * @return the number of bytes of the encoding.
+	 */
+	public static int encodedLength(int value) {
+		int length=1;
+		while ( (value >>>= 7) != 0 ) {
+			length++;
+		}
+		return length;
+	}
+
+	public static void put(ByteBuffer bb, int value) {
+		while ( (value & ~0x7f) != 0 ) {
+			bb.put( (byte)( (value & 0x7f) | 0x80 ) );
+			value >>>= 7;
+		}
+		bb.put((byte)value);
+	}
+
+	/**
+	 * @param bb
+	 * @return the decoded value.
+	 * @throws IllegalArgumentException	if the encoding is longer than MAX_LENGTH bytes.
+	 */
+	public static int get(ByteBuffer bb) {
+		int value=0;
+		for (int shift=0; shift < 7 * MAX_LENGTH; shift += 7) {
+			byte b = bb.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("malformed varint.");
+	}
+
+
+}
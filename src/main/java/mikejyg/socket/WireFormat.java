@@ -0,0 +1,142 @@
+package mikejyg.socket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * how ints, IDs, and strings are encoded on the wire, for a protocol version.
+ *
+ * V1: 4 byte (big endian) ints, and 4 byte IDs.
+ * V2: varints, and 1 byte IDs.
+ *
+ * A string is encoded as an int of its UTF-8 length, followed by the UTF-8 bytes.
+ *
+ * @author mikejyg
+ *
+ */
+public enum WireFormat {
+	V1(1) {
+		@Override
+		public int intSize(int value) {
+			return 4;
+		}
+
+		@Override
+		public void putInt(ByteBuffer bb, int value) {
+			bb.putInt(value);
+		}
+
+		@Override
+		public int getInt(ByteBuffer bb) {
+			return bb.getInt();
+		}
+
+		@Override
+		public int idSize() {
+			return 4;
+		}
+
+		@Override
+		public void putId(ByteBuffer bb, int id) {
+			bb.putInt(id);
+		}
+
+		@Override
+		public int getId(ByteBuffer bb) {
+			return bb.getInt();
+		}
+	}
+
+	, V2(2) {
+		@Override
+		public int intSize(int value) {
+			return Varint.encodedLength(value);
+		}
+
+		@Override
+		public void putInt(ByteBuffer bb, int value) {
+			Varint.put(bb, value);
+		}
+
+		@Override
+		public int getInt(ByteBuffer bb) {
+			return Varint.get(bb);
+		}
+
+		@Override
+		public int idSize() {
+			return 1;
+		}
+
+		@Override
+		public void putId(ByteBuffer bb, int id) {
+			bb.put((byte)id);
+		}
+
+		@Override
+		public int getId(ByteBuffer bb) {
+			return bb.get() & 0xff;
+		}
+	}
+	;
+
+	private int version;
+
+	private WireFormat(int version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return the protocol version.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param version
+	 * @return the wire format of a protocol version, the highest known one for a higher version.
+	 */
+	public static WireFormat getWireFormat(int version) {
+		WireFormat wireFormat = V1;
+		for (WireFormat wf : values()) {
+			if (wf.version <= version)
+				wireFormat = wf;
+		}
+		return wireFormat;
+	}
+
+	public abstract int intSize(int value);
+
+	public abstract void putInt(ByteBuffer bb, int value);
+
+	public abstract int getInt(ByteBuffer bb);
+
+	public abstract int idSize();
+
+	/**
+	 * @param bb
+	 * @param id	a small non-negative number, below 256.
+	 */
+	public abstract void putId(ByteBuffer bb, int id);
+
+	public abstract int getId(ByteBuffer bb);
+
+	public int stringSize(String str) {
+		int length = Utf8Codec.encodedLength(str);
+		return intSize(length) + length;
+	}
+
+	public void putString(ByteBuffer bb, String str) {
+		putInt(bb, Utf8Codec.encodedLength(str));
+		Utf8Codec.encode(str, bb);
+	}
+
+	public String getString(ByteBuffer bb) {
+		byte[] buf = new byte[getInt(bb)];
+		bb.get(buf);
+		return new String(buf, StandardCharsets.UTF_8);
+	}
+
+
+}
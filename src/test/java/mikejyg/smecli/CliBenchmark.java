@@ -0,0 +1,737 @@
+package mikejyg.smecli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import mikejyg.smecli.cmdexecutor.CommandExecutorFactory;
+import mikejyg.smecli.cmdexecutor.CommandTrie;
+import mikejyg.smecli.socket.CliPacketSerdes;
+import mikejyg.smecli.socket.RemoteCommandExecutor;
+import mikejyg.smecli.socket.SocketCli;
+import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.LvPacket;
+import mikejyg.socket.WireFormat;
+
+/**
+ * micro benchmarks, to be run manually.
+ *
+ * usage: CliBenchmark benchmark_name...
+ *
+ * @author mikejyg
+ *
+ */
+public class CliBenchmark {
+
+	private static class Result {
+		long callCnt;
+		long totalLatencyNs;
+		long elapsedNs;
+
+		@Override
+		public String toString() {
+			return String.format("%d calls, %.0f calls/s, mean latency %.1f us"
+					, callCnt, callCnt * 1e9 / elapsedNs, totalLatencyNs / 1e3 / callCnt);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * run echo commands from a number of concurrent clients, against a local server.
+	 */
+	static public Result runEchoClients(SocketCli.ServeMode serveMode, int clientCnt, int cmdCnt) throws Exception {
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		socketCli.setServeMode(serveMode);
+
+		Object portLock = new Object();
+		Thread serverThread = new Thread(()->{
+			try {
+				socketCli.accept(port->{ synchronized (portLock) { portLock.notifyAll(); } });
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		synchronized (portLock) {
+			serverThread.start();
+			while (socketCli.getPort()==0)
+				portLock.wait();
+		}
+
+		Result result = new Result();
+
+		List<Thread> clientThreads = new ArrayList<>();
+		for (int i=0; i<clientCnt; i++) {
+			clientThreads.add(new Thread(()->{
+				try {
+					RemoteCommandExecutor rce = new RemoteCommandExecutor();
+					rce.connect("localhost", socketCli.getPort());
+
+					CmdCallType cmdCall = new CmdCallType("echo", "0123456789");
+					long latencyNs=0;
+					for (int j=0; j<cmdCnt; j++) {
+						long t = System.nanoTime();
+						rce.execCmd(cmdCall);
+						latencyNs += System.nanoTime() - t;
+					}
+
+					rce.close();
+
+					synchronized (result) {
+						result.callCnt += cmdCnt;
+						result.totalLatencyNs += latencyNs;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+
+		long startNs = System.nanoTime();
+		for (Thread thread : clientThreads) {
+			thread.start();
+		}
+		for (Thread thread : clientThreads) {
+			thread.join();
+		}
+		result.elapsedNs = System.nanoTime() - startNs;
+
+		socketCli.setStop(true);
+
+		// the accepting server needs one more client to notice the stop.
+		if (serveMode!=SocketCli.ServeMode.SELECTOR) {
+			RemoteCommandExecutor rce = new RemoteCommandExecutor();
+			rce.connect("localhost", socketCli.getPort());
+			rce.close();
+		}
+		serverThread.join();
+
+		return result;
+	}
+
+	/**
+	 * compare the blocking and the selector server modes, over loopback.
+	 */
+	static public void serveModes() throws Exception {
+		final int cmdCnt=20000;
+
+		// warm up
+		runEchoClients(SocketCli.ServeMode.BLOCKING, 1, cmdCnt);
+		runEchoClients(SocketCli.ServeMode.SELECTOR, 1, cmdCnt);
+
+		for (int clientCnt : new int[]{1, 4, 16, 64}) {
+			for (SocketCli.ServeMode serveMode : SocketCli.ServeMode.values()) {
+				Result result = runEchoClients(serveMode, clientCnt, cmdCnt / clientCnt);
+				System.out.print(serveMode + ", " + clientCnt + " clients: " + result + '\n');
+			}
+		}
+	}
+
+	/**
+	 * compare sequential calls, with pipelined calls, on a single connection.
+	 */
+	static public void pipelining() throws Exception {
+		final int cmdCnt=20000;
+		final int window=64;		// max calls in flight
+
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		Thread serverThread = new Thread(()->{
+			try {
+				socketCli.accept(port->{});
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		serverThread.start();
+		while (socketCli.getPort()==0)
+			Thread.sleep(10);
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCli.getPort());
+		CmdCallType cmdCall = new CmdCallType("echo", "0123456789");
+
+		for (int round=0; round<2; round++) {		// the 1st round is a warm up
+			long t = System.nanoTime();
+			for (int i=0; i<cmdCnt; i++) {
+				rce.execCmd(cmdCall);
+			}
+			long sequentialNs = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			Deque<CompletableFuture<CmdReturnType>> inFlight = new ArrayDeque<>();
+			for (int i=0; i<cmdCnt; i++) {
+				if (inFlight.size()==window)
+					inFlight.poll().get();
+				inFlight.add(rce.execCmdAsync(cmdCall));
+			}
+			while ( ! inFlight.isEmpty() )
+				inFlight.poll().get();
+			long pipelinedNs = System.nanoTime() - t;
+
+			if (round!=0) {
+				System.out.print(String.format("sequential: %.0f calls/s\n", cmdCnt * 1e9 / sequentialNs));
+				System.out.print(String.format("pipelined, %d in flight: %.0f calls/s\n", window, cmdCnt * 1e9 / pipelinedNs));
+			}
+		}
+
+		socketCli.setStop(true);
+		rce.close();
+		serverThread.join();
+	}
+
+	/**
+	 * compare serializing a large command return, through a ByteBufferAccumulator and LvPacket,
+	 *   with the sized serialization into a reusable buffer.
+	 */
+	static public void serialization() {
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		final int resultLength=1<<20;
+		final int cnt=200;
+
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<resultLength; i++) {
+			sb.append((char)('a' + i % 26));
+		}
+		CmdReturnType cmdReturn = new CmdReturnType(CmdReturnType.ReturnCode.OK, sb.toString());
+
+		ByteBuffer sendBuffer = ByteBuffer.allocate(LvPacket.HEADER_LENGTH + CliPacketSerdes.getSerializedSize(WireFormat.V1, 1, cmdReturn));
+		long checksum=0;
+
+		for (int round=0; round<2; round++) {		// the 1st round is a warm up
+			long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+			long t = System.nanoTime();
+			for (int i=0; i<cnt; i++) {
+				ByteBufferAccumulator bba = new ByteBufferAccumulator();
+				CliPacketSerdes.serialize(bba, 1, cmdReturn);
+				checksum += LvPacket.wrap(bba.toBytes()).toBytes().length;
+			}
+			long accumulatorNs = System.nanoTime() - t;
+			long accumulatorBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+			allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+			t = System.nanoTime();
+			for (int i=0; i<cnt; i++) {
+				int payloadLength = CliPacketSerdes.getSerializedSize(WireFormat.V1, 1, cmdReturn);
+				sendBuffer.clear();
+				sendBuffer.putInt(payloadLength);
+				CliPacketSerdes.serialize(sendBuffer, WireFormat.V1, 1, cmdReturn);
+				checksum += sendBuffer.position();
+			}
+			long sizedNs = System.nanoTime() - t;
+			long sizedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+			if (round!=0) {
+				System.out.print(String.format("1 MB result, accumulator: %.0f us, %d bytes allocated per packet\n"
+						, accumulatorNs / 1e3 / cnt, accumulatorBytes / cnt));
+				System.out.print(String.format("1 MB result, sized: %.0f us, %d bytes allocated per packet\n"
+						, sizedNs / 1e3 / cnt, sizedBytes / cnt));
+			}
+		}
+
+		if (checksum==0)
+			System.out.print("unexpected checksum.\n");
+	}
+
+	/**
+	 * a TCP proxy for a single connection, that forwards each direction at a limited rate, to simulate a slow link.
+	 */
+	private static class ThrottlingProxy {
+		private ServerSocket serverSocket;
+		private long bytesPerSecond;
+
+		ThrottlingProxy(int targetPort, long bytesPerSecond) throws IOException {
+			this.bytesPerSecond = bytesPerSecond;
+
+			serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress(0));
+
+			Thread thread = new Thread(()->{
+				try (Socket clientSocket = serverSocket.accept(); Socket targetSocket = new Socket("localhost", targetPort)) {
+					clientSocket.setTcpNoDelay(true);
+					targetSocket.setTcpNoDelay(true);
+
+					Thread upThread = new Thread(()->forward(clientSocket, targetSocket));
+					upThread.start();
+					forward(targetSocket, clientSocket);
+					upThread.join();
+
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		private void forward(Socket from, Socket to) {
+			byte[] buf = new byte[4096];
+			long startNs = System.nanoTime();
+			long totalBytes=0;
+
+			try {
+				InputStream inputStream = from.getInputStream();
+				OutputStream outputStream = to.getOutputStream();
+
+				int k;
+				while ( (k = inputStream.read(buf)) > 0 ) {
+					totalBytes += k;
+
+					// idle time does not count
+					long dueNs = startNs + totalBytes * 1000000000L / bytesPerSecond;
+					long nowNs = System.nanoTime();
+					if (dueNs > nowNs)
+						Thread.sleep( (dueNs - nowNs) / 1000000, (int)((dueNs - nowNs) % 1000000) );
+					else
+						startNs = nowNs - (totalBytes * 1000000000L / bytesPerSecond);
+
+					outputStream.write(buf, 0, k);
+				}
+
+				to.shutdownOutput();
+
+			} catch (IOException | InterruptedException e) {
+				// connection closed
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * @return the mean round trip time in micro-seconds, of echoing a payload of a given size.
+	 */
+	static private double runCompressedEchos(int port, long bytesPerSecond, int compressionThreshold
+			, String payload, int cmdCnt) throws Exception {
+		ThrottlingProxy proxy = null;
+		if (bytesPerSecond > 0) {
+			proxy = new ThrottlingProxy(port, bytesPerSecond);
+			port = proxy.getPort();
+		}
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.setCompressionThreshold(compressionThreshold);
+		rce.connect("localhost", port);
+
+		CmdCallType cmdCall = new CmdCallType("echo", payload);
+		long t = System.nanoTime();
+		for (int i=0; i<cmdCnt; i++) {
+			rce.execCmd(cmdCall);
+		}
+		t = System.nanoTime() - t;
+
+		rce.close();
+		if (proxy!=null)
+			proxy.close();
+
+		return t / 1e3 / cmdCnt;
+	}
+
+	/**
+	 * find the break-even payload size of compression, on loopback, and on a throttled link.
+	 *
+	 * The payload is a text, like a help text, echoed back, so it is compressed in both directions.
+	 */
+	static public void compression() throws Exception {
+		final long throttledBytesPerSecond = 10000000 / 8;		// 10 Mbit/s
+		final int[] payloadSizes = {64, 256, 1024, 4096, 16384, 65536, 262144};
+
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		socketCli.setServeMode(SocketCli.ServeMode.THREAD_PER_CONNECTION);
+		Thread serverThread = new Thread(()->{
+			try {
+				socketCli.accept(port->{});
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		serverThread.start();
+		while (socketCli.getPort()==0)
+			Thread.sleep(10);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; sb.length() < payloadSizes[payloadSizes.length-1]; i++) {
+			sb.append(String.format("  command%d [arg%d]\t: help text of command %d, with %d arguments.\n", i, i % 7, i, i % 7));
+		}
+		String text = sb.toString();
+
+		// warm up
+		runCompressedEchos(socketCli.getPort(), 0, -1, text, 200);
+		runCompressedEchos(socketCli.getPort(), 0, 0, text, 200);
+
+		for (long bytesPerSecond : new long[]{0, throttledBytesPerSecond}) {
+			System.out.print(bytesPerSecond==0 ? "loopback:\n"
+					: String.format("throttled to %d KB/s:\n", bytesPerSecond / 1000));
+
+			long bytesBudget = bytesPerSecond==0 ? 16<<20 : bytesPerSecond / 2;
+
+			for (int payloadSize : payloadSizes) {
+				String payload = text.substring(0, payloadSize);
+				int cmdCnt = (int) Math.max(10, bytesBudget / payloadSize);
+				if (bytesPerSecond==0)
+					cmdCnt = Math.min(cmdCnt, 20000);
+
+				double plainUs = runCompressedEchos(socketCli.getPort(), bytesPerSecond, -1, payload, cmdCnt);
+				double compressedUs = runCompressedEchos(socketCli.getPort(), bytesPerSecond, 0, payload, cmdCnt);
+
+				System.out.print(String.format("  %7d bytes: plain %9.1f us, compressed %9.1f us, %s\n"
+						, payloadSize, plainUs, compressedUs, compressedUs < plainUs ? "compression wins" : "plain wins"));
+			}
+		}
+
+		socketCli.setStop(true);
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();	// to break the accept
+		rce.connect("localhost", socketCli.getPort());
+		rce.close();
+		serverThread.join();
+	}
+
+	/**
+	 * @return the sorted round trip times in nano-seconds, of sequential echo commands.
+	 */
+	static private long[] runLatencyEchos(RemoteCommandExecutor rce, int cmdCnt) throws Exception {
+		CmdCallType cmdCall = new CmdCallType("echo", "0123456789");
+		long[] latencies = new long[cmdCnt];
+		for (int i=0; i<cmdCnt; i++) {
+			long t = System.nanoTime();
+			rce.execCmd(cmdCall);
+			latencies[i] = System.nanoTime() - t;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	/**
+	 * compare the round trip latency over a Unix domain socket, with TCP loopback.
+	 */
+	static public void unixSocket() throws Exception {
+		final int cmdCnt=50000;
+
+		Path dir = Files.createTempDirectory("smecli");
+		Path path = dir.resolve("cli.sock");
+
+		SocketCli tcpSocketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		SocketCli unixSocketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), path);
+
+		List<Thread> serverThreads = new ArrayList<>();
+		for (SocketCli socketCli : new SocketCli[]{tcpSocketCli, unixSocketCli}) {
+			socketCli.setServeMode(SocketCli.ServeMode.THREAD_PER_CONNECTION);
+			CompletableFuture<Integer> listening = new CompletableFuture<>();
+			Thread serverThread = new Thread(()->{
+				try {
+					socketCli.accept(listening::complete);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			serverThread.start();
+			listening.get();
+			serverThreads.add(serverThread);
+		}
+
+		RemoteCommandExecutor tcpRce = new RemoteCommandExecutor();
+		tcpRce.connect("localhost", tcpSocketCli.getPort());
+
+		RemoteCommandExecutor unixRce = new RemoteCommandExecutor();
+		unixRce.connect(path);
+
+		for (int round=0; round<2; round++) {		// the 1st round is a warm up
+			long[] tcpLatencies = runLatencyEchos(tcpRce, cmdCnt);
+			long[] unixLatencies = runLatencyEchos(unixRce, cmdCnt);
+
+			if (round!=0) {
+				System.out.print(String.format("TCP loopback: median %.1f us, p99 %.1f us\n"
+						, tcpLatencies[cmdCnt / 2] / 1e3, tcpLatencies[cmdCnt * 99 / 100] / 1e3));
+				System.out.print(String.format("Unix domain socket: median %.1f us, p99 %.1f us\n"
+						, unixLatencies[cmdCnt / 2] / 1e3, unixLatencies[cmdCnt * 99 / 100] / 1e3));
+			}
+		}
+
+		tcpSocketCli.setStop(true);
+		unixSocketCli.setStop(true);
+		tcpRce.close();
+		unixRce.close();
+		for (Thread serverThread : serverThreads) {
+			serverThread.join();
+		}
+		Files.delete(dir);
+	}
+
+	/**
+	 * the round trip latency over shared memory, vs. a Unix domain socket.
+	 * 
+	 * NOTE: the client and the server are in the same process here, while the transport is meant for 2 processes.
+	 */
+	static public void sharedMemory() throws Exception {
+		final int cmdCnt=20000;
+
+		Path dir = Files.createTempDirectory("smecli");
+		Path unixPath = dir.resolve("cli.sock");
+		Path sharedMemoryPath = dir.resolve("cli.shm");
+
+		SocketCli unixSocketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), unixPath);
+		SocketCli sharedMemorySocketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		sharedMemorySocketCli.setSharedMemoryPath(sharedMemoryPath);
+
+		List<Thread> serverThreads = new ArrayList<>();
+		for (SocketCli socketCli : new SocketCli[]{unixSocketCli, sharedMemorySocketCli}) {
+			CompletableFuture<Integer> listening = new CompletableFuture<>();
+			Thread serverThread = new Thread(()->{
+				try {
+					socketCli.accept(listening::complete);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			serverThread.start();
+			listening.get();
+			serverThreads.add(serverThread);
+		}
+
+		RemoteCommandExecutor unixRce = new RemoteCommandExecutor();
+		unixRce.connect(unixPath);
+
+		RemoteCommandExecutor sharedMemoryRce = new RemoteCommandExecutor();
+		sharedMemoryRce.connectSharedMemory(sharedMemoryPath);
+
+		for (int round=0; round<2; round++) {		// the 1st round is a warm up
+			long[] unixLatencies = runLatencyEchos(unixRce, cmdCnt);
+			long[] sharedMemoryLatencies = runLatencyEchos(sharedMemoryRce, cmdCnt);
+
+			if (round!=0) {
+				System.out.print(String.format("Unix domain socket: median %.1f us, p99 %.1f us\n"
+						, unixLatencies[cmdCnt / 2] / 1e3, unixLatencies[cmdCnt * 99 / 100] / 1e3));
+				System.out.print(String.format("shared memory: median %.1f us, p99 %.1f us\n"
+						, sharedMemoryLatencies[cmdCnt / 2] / 1e3, sharedMemoryLatencies[cmdCnt * 99 / 100] / 1e3));
+			}
+		}
+
+		unixSocketCli.setStop(true);
+		sharedMemorySocketCli.setStop(true);
+		unixRce.close();
+		sharedMemoryRce.close();
+		for (Thread serverThread : serverThreads) {
+			serverThread.join();
+		}
+		Files.delete(dir);
+	}
+
+	public static class NopCommands {
+		private CmdReturnType cmdReturn = new CmdReturnType(CmdReturnType.ReturnCode.OK);
+
+		@CliAnnotation.CliCommand(helpString = "do nothing.")
+		public CmdReturnType nop(CmdCallType cmdCall) {
+			return cmdReturn;
+		}
+	}
+
+	/**
+	 * @return the mean time of a call in nano-seconds.
+	 */
+	static private double runCmdFunction(CmdFunction cmdFunction, int cnt) throws Exception {
+		CmdCallType cmdCall = new CmdCallType("nop");
+		long checksum=0;
+
+		long t = System.nanoTime();
+		for (int i=0; i<cnt; i++) {
+			if (cmdFunction.apply(cmdCall).getReturnCode()==CmdReturnType.ReturnCode.OK)
+				checksum++;
+		}
+		t = System.nanoTime() - t;
+
+		if (checksum!=cnt)
+			System.out.print("unexpected checksum.\n");
+		return (double) t / cnt;
+	}
+
+	/**
+	 * compare calling an annotated command, through a hand-written lambda, the generated CmdFunction,
+	 *   and reflection.
+	 */
+	static public void annotation() throws Exception {
+		final int cnt=50000000;
+
+		NopCommands nopCommands = new NopCommands();
+		Method method = NopCommands.class.getMethod("nop", CmdCallType.class);
+
+		CmdFunction lambda = nopCommands::nop;
+		CmdFunction generated = CliAnnotation.toCmdFunction(nopCommands, method);
+		CmdFunction reflective = CliAnnotation.toReflectiveCmdFunction(nopCommands, method);
+
+		for (int round=0; round<2; round++) {		// the 1st round is a warm up
+			double lambdaNs = runCmdFunction(lambda, cnt);
+			double generatedNs = runCmdFunction(generated, cnt);
+			double reflectiveNs = runCmdFunction(reflective, cnt);
+
+			if (round!=0) {
+				System.out.print(String.format("hand-written lambda: %.2f ns per call\n", lambdaNs));
+				System.out.print(String.format("generated: %.2f ns per call\n", generatedNs));
+				System.out.print(String.format("reflective: %.2f ns per call\n", reflectiveNs));
+			}
+		}
+	}
+
+	/**
+	 * compare the command trie with a TreeMap, of 100k generated commands, a few per device,
+	 *   for building, exact lookups, and prefix enumerations, and with a HashMap, for exact lookups.
+	 */
+	static public void commandTrie() {
+		final int deviceCnt=20000;
+		final String[] commandNames = {"status", "reset", "config", "stats", "version"};
+		final int prefixCnt=10000;
+
+		List<String> names = new ArrayList<>();
+		for (int i=0; i<deviceCnt; i++) {
+			for (String commandName : commandNames) {
+				names.add(String.format("dev%05d.%s", i, commandName));
+			}
+		}
+		List<String> shuffledNames = new ArrayList<>(names);
+		Collections.shuffle(shuffledNames, new Random(1));
+
+		long checksum=0;
+
+		for (int round=0; round<3; round++) {		// the 1st rounds are a warm up
+			long t = System.nanoTime();
+			TreeMap<String, String> treeMap = new TreeMap<>();
+			for (String name : shuffledNames) {
+				treeMap.put(name, name);
+			}
+			long treeMapBuildNs = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			CommandTrie<String> trie = new CommandTrie<>();
+			for (String name : shuffledNames) {
+				trie.put(name, name);
+			}
+			long trieBuildNs = System.nanoTime() - t;
+
+			HashMap<String, String> hashMap = new HashMap<>();
+			for (String name : shuffledNames) {
+				hashMap.put(name, name);
+			}
+
+			t = System.nanoTime();
+			for (String name : shuffledNames) {
+				checksum += treeMap.get(name).length();
+			}
+			long treeMapGetNs = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			for (String name : shuffledNames) {
+				checksum += trie.get(name).length();
+			}
+			long trieGetNs = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			for (String name : shuffledNames) {
+				checksum += hashMap.get(name).length();
+			}
+			long hashMapGetNs = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			for (int i=0; i<prefixCnt; i++) {
+				String prefix = String.format("dev%04d", i % (deviceCnt / 10));
+				checksum += treeMap.subMap(prefix, prefix + Character.MAX_VALUE).size();
+			}
+			long treeMapPrefixNs = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			for (int i=0; i<prefixCnt; i++) {
+				String prefix = String.format("dev%04d", i % (deviceCnt / 10));
+				checksum += trie.getNames(prefix).size();
+			}
+			long triePrefixNs = System.nanoTime() - t;
+
+			if (round==2) {
+				System.out.print(String.format("%d commands, build: TreeMap %.1f ms, trie %.1f ms\n"
+						, names.size(), treeMapBuildNs / 1e6, trieBuildNs / 1e6));
+				System.out.print(String.format("exact lookup: TreeMap %.0f ns, trie %.0f ns, HashMap %.0f ns\n"
+						, (double) treeMapGetNs / names.size(), (double) trieGetNs / names.size()
+						, (double) hashMapGetNs / names.size()));
+				System.out.print(String.format("prefix of %d commands: TreeMap %.2f us, trie %.2f us\n"
+						, 10 * commandNames.length, treeMapPrefixNs / 1e3 / prefixCnt, triePrefixNs / 1e3 / prefixCnt));
+			}
+		}
+
+		if (checksum==0)
+			System.out.print("unexpected checksum.\n");
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+
+	public static void main(String[] args) throws Exception {
+		if (args.length==0) {
+			System.out.print("usage: CliBenchmark benchmark_name...\n");
+			System.out.print("benchmarks: serveModes pipelining serialization compression unixSocket sharedMemory annotation commandTrie\n");
+			System.exit(-1);
+		}
+
+		for (String arg : args) {
+			switch (arg) {
+			case "serveModes":
+				serveModes();
+				break;
+
+			case "pipelining":
+				pipelining();
+				break;
+
+			case "serialization":
+				serialization();
+				break;
+
+			case "compression":
+				compression();
+				break;
+
+			case "unixSocket":
+				unixSocket();
+				break;
+
+			case "sharedMemory":
+				sharedMemory();
+				break;
+
+			case "annotation":
+				annotation();
+				break;
+
+			case "commandTrie":
+				commandTrie();
+				break;
+
+			default:
+				System.out.print("unknown benchmark: " + arg + '\n');
+				break;
+			}
+		}
+	}
+
+
+}
@@ -2,17 +2,43 @@ package mikejyg.smecli;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import mikejyg.cloep.ArgsParser;
 import mikejyg.cloep.ArgsParser.ParseException;
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.cmdexecutor.AggregateCommandExecutor;
+import mikejyg.smecli.cmdexecutor.CommandExecutorFactory;
 import mikejyg.smecli.cmdexecutor.CommandExecutorIntf;
 import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
+import mikejyg.smecli.commands.BasicCommands;
+import mikejyg.smecli.commands.SystemCommand;
 import mikejyg.smecli.session.ConsoleSession;
 import mikejyg.smecli.session.Session;
+import mikejyg.smecli.socket.CliPacketSerdes;
+import mikejyg.smecli.socket.FanOutCommandExecutor;
+import mikejyg.smecli.socket.LoadBalancingCommandExecutor;
 import mikejyg.smecli.socket.RemoteCommandExecutor;
+import mikejyg.smecli.socket.RemoteCommandExecutorPool;
 import mikejyg.smecli.socket.SocketCli;
+import mikejyg.socket.PacketSocket;
+import mikejyg.socket.WireFormat;
 
 /**
  * @author mikejyg
@@ -79,9 +105,13 @@ public class CliRemoteTest {
 	}
 	
 	private SocketCliThread startServer(CommandExecutorIntf commandExecutor, int port) throws InterruptedException {
+		return startServer(new SocketCli(commandExecutor, port));
+	}
+	
+	private SocketCliThread startServer(SocketCli socketCli) throws InterruptedException {
 		SocketCliThread socketCliThread = new SocketCliThread();
 		
-		socketCliThread.socketCli = new SocketCli(commandExecutor, port);
+		socketCliThread.socketCli = socketCli;
 		
 		socketCliThread.serverThread = new Thread(()->{
 			try {
@@ -186,6 +216,1046 @@ public class CliRemoteTest {
 		System.out.print("all done.\n");
 	}
 
+	/**
+	 * test the selector mode, with multiple clients connected at the same time.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSelectorMode() throws Exception {
+		final int clientCnt=8;
+		final int cmdCnt=100;
+		
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		socketCli.setServeMode(SocketCli.ServeMode.SELECTOR);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		List<RemoteCommandExecutor> rces = new ArrayList<>();
+		for (int i=0; i<clientCnt; i++) {
+			RemoteCommandExecutor rce = new RemoteCommandExecutor();
+			rce.connect("localhost", socketCli.getPort());
+			rces.add(rce);
+		}
+
+		List<Thread> clientThreads = new ArrayList<>();
+		int[] okCnt={0};
+		for (int i=0; i<clientCnt; i++) {
+			RemoteCommandExecutor rce = rces.get(i);
+			String clientStr = Integer.toString(i);
+			
+			Thread thread = new Thread(()->{
+				try {
+					for (int j=0; j<cmdCnt; j++) {
+						CmdReturnType cmdReturn = rce.execCmd(new CmdCallType("echo", clientStr + " " + j));
+						if ( cmdReturn.getReturnCode()==ReturnCode.OK && cmdReturn.getResult().equals(clientStr + " " + j) ) {
+							synchronized (okCnt) {
+								okCnt[0]++;
+							}
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			thread.start();
+			clientThreads.add(thread);
+		}
+		
+		for (Thread thread : clientThreads) {
+			thread.join();
+		}
+		
+		assert( okCnt[0]==clientCnt*cmdCnt );
+		
+		// shutting down
+		socketCli.setStop(true);
+		for (RemoteCommandExecutor rce : rces) {
+			rce.close();
+		}
+		socketCliThread.serverThread.join();
+	}
+	
+	/**
+	 * test the thread per connection mode, that a blocking command does not hold up other clients.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testThreadPerConnectionMode() throws Exception {
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		socketCli.setServeMode(SocketCli.ServeMode.THREAD_PER_CONNECTION);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		RemoteCommandExecutor sleepingRce = new RemoteCommandExecutor();
+		sleepingRce.connect("localhost", socketCli.getPort());
+		
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCli.getPort());
+		
+		Thread sleepingThread = new Thread(()->{
+			try {
+				sleepingRce.execCmd(new CmdCallType("sleep", "2"));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		sleepingThread.start();
+		
+		Thread.sleep(100);
+		
+		long t = System.currentTimeMillis();
+		CmdReturnType cmdReturn = rce.execCmd(new CmdCallType("echo", "not blocked"));
+		assert( System.currentTimeMillis() - t < 1000 );
+		assert( cmdReturn.getResult().equals("not blocked") );
+		
+		sleepingThread.join();
+		
+		// shutting down
+		socketCli.setStop(true);
+		rce.close();
+		sleepingRce.close();
+		socketCliThread.serverThread.join();
+	}
+	
+	/**
+	 * test pipelined calls, that many calls can be outstanding on a connection.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testPipelining() throws Exception {
+		final int cmdCnt=1000;
+		
+		SocketCliThread socketCliThread = startServer(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+		
+		List<CompletableFuture<CmdReturnType>> futures = new ArrayList<>();
+		for (int i=0; i<cmdCnt; i++) {
+			futures.add(rce.execCmdAsync(new CmdCallType("echo", Integer.toString(i))));
+		}
+		
+		for (int i=0; i<cmdCnt; i++) {
+			assert( futures.get(i).get().getResult().equals(Integer.toString(i)) );
+		}
+		
+		// the same executor connects again, after disconnected
+		rce.close();
+		assert( ! rce.isConnected() );
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+		assert( rce.isConnected() );
+		assert( rce.execCmdAsync(new CmdCallType("echo", "abc")).get().getResult().equals("abc") );
+		
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+	
+	/**
+	 * test batch execution, with and without continue on error.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		SocketCliThread socketCliThread = startServer(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+		
+		List<CmdCallType> cmdCalls = new ArrayList<>();
+		cmdCalls.add(new CmdCallType("echo", "1"));
+		cmdCalls.add(new CmdCallType("badCmd"));
+		cmdCalls.add(new CmdCallType("echo", "3"));
+		
+		List<CmdReturnType> cmdReturns = rce.execBatch(cmdCalls, false);
+		assert( cmdReturns.size()==2 );
+		assert( cmdReturns.get(0).getResult().equals("1") );
+		assert( cmdReturns.get(1).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		
+		cmdReturns = rce.execBatch(cmdCalls, true);
+		assert( cmdReturns.size()==3 );
+		assert( cmdReturns.get(1).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		assert( cmdReturns.get(2).getResult().equals("3") );
+		
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+	
+	/**
+	 * test compression of large payloads, in both directions, and the server declining it.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompression() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<1000; i++) {
+			sb.append("line ").append(i).append(": the quick brown fox jumps over the lazy dog.\n");
+		}
+		String largeStr = sb.toString();
+
+		for (boolean compressionEnabled : new boolean[]{true, false}) {
+			SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+			socketCli.setCompressionEnabled(compressionEnabled);
+			SocketCliThread socketCliThread = startServer(socketCli);
+
+			RemoteCommandExecutor rce = new RemoteCommandExecutor();
+			rce.setCompressionThreshold(256);
+			rce.connect("localhost", socketCli.getPort());
+
+			assert( rce.getAgreedCompressionThreshold()==(compressionEnabled ? 256 : -1) );
+
+			assert( rce.execCmd(new CmdCallType("echo", "small")).getResult().equals("small") );
+			assert( rce.execCmd(new CmdCallType("echo", largeStr)).getResult().equals(largeStr) );
+
+			// shutting down
+			socketCli.setStop(true);
+			rce.close();
+			socketCliThread.serverThread.join();
+		}
+	}
+
+	/**
+	 * test streaming the output of a command, ahead of its return.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreaming() throws Exception {
+		final int chunkCnt=100;
+
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor();
+		commandExecutor.addCommand("count", null, "stream lines of numbers, then pause, before returning.", cmdCall->{
+			for (int i=0; i<chunkCnt; i++) {
+				cmdCall.getOutputListener().accept(i + "\n");
+			}
+			Thread.sleep(1000);
+			return new CmdReturnType(ReturnCode.OK, "done");
+		});
+		SocketCliThread socketCliThread = startServer(commandExecutor, 0);
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+
+		StringBuilder expectedOutput = new StringBuilder();
+		for (int i=0; i<chunkCnt; i++) {
+			expectedOutput.append(i + "\n");
+		}
+
+		// to an output listener, ahead of the return
+		StringBuilder output = new StringBuilder();
+		CmdCallType cmdCall = new CmdCallType("count");
+		cmdCall.setOutputListener(chunk->{
+			synchronized (output) {
+				output.append(chunk);
+				output.notifyAll();
+			}
+		});
+
+		long t = System.currentTimeMillis();
+		CompletableFuture<CmdReturnType> future = rce.execCmdAsync(cmdCall);
+		synchronized (output) {
+			while (output.length() < expectedOutput.length())
+				output.wait();
+		}
+		assert( System.currentTimeMillis() - t < 900 );
+		assert( ! future.isDone() );
+
+		assert( future.get().getResult().equals("done") );
+		assert( output.toString().equals(expectedOutput.toString()) );
+
+		// accumulated in front of the result, without an output listener
+		CmdReturnType cmdReturn = rce.execCmd(new CmdCallType("count"));
+		assert( cmdReturn.getResult().equals(expectedOutput + "done") );
+
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+
+	/**
+	 * test command symbols, including a command replaced after its symbol is defined.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCommandSymbols() throws Exception {
+		CommandsCommandExecutor commandExecutor = CommandExecutorFactory.makeLoadedCommandExecutor();
+		SocketCliThread socketCliThread = startServer(commandExecutor, 0);
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.setCommandSymbolsEnabled(true);
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+
+		for (int i=0; i<10; i++) {
+			assert( rce.execCmd(new CmdCallType("echo", Integer.toString(i))).getResult().equals(Integer.toString(i)) );
+			assert( rce.execCmd(new CmdCallType("badCmd")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		}
+
+		commandExecutor.addCommand("echo", null, "echo in upper case.", cmdCall->{
+			return new CmdReturnType(ReturnCode.OK, cmdCall.toArgumentsString().toUpperCase());
+		});
+		assert( rce.execCmd(new CmdCallType("echo", "abc")).getResult().equals("ABC") );
+
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+
+	/**
+	 * test the protocol version agreed by the client and the server, and the commands over it,
+	 *   in both serve modes, with compression and command symbols in the compact wire format.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testProtocolVersions() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<1000; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		String largeStr = sb.toString();
+
+		for (SocketCli.ServeMode serveMode : new SocketCli.ServeMode[]{SocketCli.ServeMode.BLOCKING, SocketCli.ServeMode.SELECTOR}) {
+			for (int serverVersion=1; serverVersion<=2; serverVersion++) {
+				for (int clientVersion=1; clientVersion<=2; clientVersion++) {
+					SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+					socketCli.setServeMode(serveMode);
+					socketCli.setMaxProtocolVersion(serverVersion);
+					SocketCliThread socketCliThread = startServer(socketCli);
+
+					RemoteCommandExecutor rce = new RemoteCommandExecutor();
+					rce.setMaxProtocolVersion(clientVersion);
+					rce.setCompressionThreshold(256);
+					rce.setCommandSymbolsEnabled(true);
+					rce.connect("localhost", socketCli.getPort());
+
+					assert( rce.getProtocolVersion()==Math.min(serverVersion, clientVersion) );
+
+					for (int i=0; i<3; i++) {
+						assert( rce.execCmd(new CmdCallType("echo", Integer.toString(i))).getResult().equals(Integer.toString(i)) );
+						assert( rce.execCmd(new CmdCallType("echo", largeStr)).getResult().equals(largeStr) );
+					}
+
+					List<CmdReturnType> cmdReturns = rce.execBatch(List.of(new CmdCallType("echo", "a")
+							, new CmdCallType("echo", "b")), false);
+					assert( cmdReturns.size()==2 && cmdReturns.get(1).getResult().equals("b") );
+
+					// shutting down
+					socketCli.setStop(true);
+					rce.close();
+					socketCliThread.serverThread.join();
+				}
+			}
+		}
+	}
+
+	/**
+	 * test many threads executing commands over a connection pool, the borrow timeout, and reconnecting.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionPool() throws Exception {
+		final int poolSize=4;
+		final int threadCnt=16;
+		final int callCnt=100;
+
+		CommandsCommandExecutor commandExecutor = CommandExecutorFactory.makeLoadedCommandExecutor();
+		commandExecutor.addCommand("pause", null, "pause for a while.", cmdCall->{
+			Thread.sleep(500);
+			return new CmdReturnType(ReturnCode.OK);
+		});
+		
+		SocketCli socketCli = new SocketCli(commandExecutor, 0);
+		socketCli.setServeMode(SocketCli.ServeMode.THREAD_PER_CONNECTION);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		RemoteCommandExecutorPool pool = new RemoteCommandExecutorPool("localhost", socketCli.getPort(), poolSize);
+
+		List<Thread> threads = new ArrayList<>();
+		AtomicInteger okCnt = new AtomicInteger();
+		for (int i=0; i<threadCnt; i++) {
+			String prefix = "thread " + i + ": ";
+			Thread thread = new Thread(()->{
+				try {
+					for (int k=0; k<callCnt; k++) {
+						if ( pool.execCmd(new CmdCallType("echo", prefix + k)).getResult().equals(prefix + k) )
+							okCnt.incrementAndGet();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assert( okCnt.get()==threadCnt * callCnt );
+		assert( pool.getIdleCount()==poolSize );
+
+		// no connection available, while all are borrowed
+		pool.setBorrowTimeout(100);
+		List<CompletableFuture<CmdReturnType>> futures = new ArrayList<>();
+		for (int i=0; i<poolSize; i++) {
+			futures.add(CompletableFuture.supplyAsync(()->{
+				try {
+					return pool.execCmd(new CmdCallType("pause"));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		Thread.sleep(200);
+		
+		try {
+			pool.execCmd(new CmdCallType("echo", "abc"));
+			assert(false);
+		} catch (IOException e) {
+			// expected
+		}
+		
+		for (CompletableFuture<CmdReturnType> future : futures) {
+			assert( future.get().getReturnCode()==ReturnCode.OK );
+		}
+
+		// connections are made again, after closed
+		pool.close();
+		assert( pool.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+
+		// shutting down
+		socketCli.setStop(true);
+		pool.close();
+		socketCliThread.serverThread.join();
+	}
+
+	/**
+	 * failing to connect, more times than the pool size, does not lose the connections.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionPoolConnectFailure() throws Exception {
+		final int poolSize=2;
+
+		// a port that nothing listens on, for now
+		int port;
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			port = serverSocket.getLocalPort();
+		}
+
+		RemoteCommandExecutorPool pool = new RemoteCommandExecutorPool("localhost", port, poolSize);
+		pool.setBorrowTimeout(100);
+
+		for (int i=0; i<poolSize * 2; i++) {
+			try {
+				pool.execCmd(new CmdCallType("echo", "abc"));
+				assert(false);
+			} catch (IOException e) {
+				assert( ! e.getMessage().startsWith("no connection available") );
+			}
+			assert( pool.getIdleCount()==poolSize );
+		}
+
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), port);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		assert( pool.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+		assert( pool.getIdleCount()==poolSize );
+
+		socketCli.setStop(true);
+		pool.close();
+		socketCliThread.serverThread.join();
+	}
+
+	/**
+	 * test serving over a Unix domain socket, in all serve modes.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testUnixDomainSocket() throws Exception {
+		Path dir = Files.createTempDirectory("smecli");
+		Path path = dir.resolve("cli.sock");
+
+		for (SocketCli.ServeMode serveMode : SocketCli.ServeMode.values()) {
+			SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), path);
+			socketCli.setServeMode(serveMode);
+			SocketCliThread socketCliThread = startServer(socketCli);
+
+			RemoteCommandExecutor rce = new RemoteCommandExecutor();
+			rce.connect(path);
+
+			for (int i=0; i<10; i++) {
+				assert( rce.execCmd(new CmdCallType("echo", Integer.toString(i))).getResult().equals(Integer.toString(i)) );
+			}
+
+			// shutting down
+			socketCli.setStop(true);
+			rce.close();
+			socketCliThread.serverThread.join();
+
+			// the socket file is removed
+			assert( ! Files.exists(path) );
+		}
+
+		Files.delete(dir);
+	}
+
+	/**
+	 * test serving over shared memory, with payloads larger than the ring buffers, and clients one after another.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSharedMemory() throws Exception {
+		Path dir = Files.createTempDirectory("smecli");
+		Path path = dir.resolve("cli.shm");
+
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<10000; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		String largeStr = sb.toString();
+
+		SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+		socketCli.setSharedMemoryPath(path);
+		socketCli.setSharedMemoryCapacity(4096);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		for (int k=0; k<2; k++) {
+			RemoteCommandExecutor rce = new RemoteCommandExecutor();
+			rce.connectSharedMemory(path);
+
+			// one client at a time
+			try {
+				new RemoteCommandExecutor().connectSharedMemory(path);
+				assert(false);
+			} catch (IOException e) {
+				// expected
+			}
+
+			for (int i=0; i<10; i++) {
+				assert( rce.execCmd(new CmdCallType("echo", Integer.toString(i))).getResult().equals(Integer.toString(i)) );
+			}
+			assert( rce.execCmd(new CmdCallType("echo", largeStr)).getResult().equals(largeStr) );
+
+			if (k==1)
+				socketCli.setStop(true);
+			rce.close();
+
+			// wait for the server to be ready for the next client
+			Thread.sleep(100);
+		}
+
+		socketCliThread.serverThread.join();
+
+		assert( ! Files.exists(path) );
+		Files.delete(dir);
+	}
+
+	/**
+	 * test cancelling commands, and a batch, in flight, so that they do not hold up the server.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		CommandsCommandExecutor commandExecutor = CommandExecutorFactory.makeLoadedCommandExecutor();
+		commandExecutor.addMethods(new SystemCommand(new PrintWriter(System.out)));
+		SocketCliThread socketCliThread = startServer(commandExecutor, 0);
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+
+		long t = System.currentTimeMillis();
+
+		// a CANCELLED return
+		CompletableFuture<CmdReturnType> future = rce.execCmdAsync(new CmdCallType("sleep", "30"));
+		Thread.sleep(200);
+		assert( rce.cancel(future) );
+		assert( future.get().getReturnCode()==ReturnCode.CANCELLED );
+		assert( ! rce.cancel(future) );
+
+		// cancelling the future, of a system command, and a queued one
+		future = rce.execCmdAsync(new CmdCallType("system", "sleep 30"));
+		CompletableFuture<CmdReturnType> queuedFuture = rce.execCmdAsync(new CmdCallType("sleep", "30"));
+		Thread.sleep(200);
+		future.cancel(true);
+		assert( future.isCancelled() );
+		assert( rce.cancel(queuedFuture) );
+		assert( queuedFuture.get().getReturnCode()==ReturnCode.CANCELLED );
+
+		// a batch stops at the cancel
+		CompletableFuture<List<CmdReturnType>> batchFuture = rce.execBatchAsync(List.of(new CmdCallType("echo", "a")
+				, new CmdCallType("sleep", "30"), new CmdCallType("echo", "b")), true);
+		Thread.sleep(200);
+		assert( rce.cancel(batchFuture) );
+		List<CmdReturnType> cmdReturns = batchFuture.get();
+		assert( cmdReturns.size()==2 && cmdReturns.get(1).getReturnCode()==ReturnCode.CANCELLED );
+
+		assert( rce.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+		assert( System.currentTimeMillis() - t < 10000 );
+
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+
+	@Test
+	public void testLoadBalancing() throws Exception {
+		final int backendCnt=3;
+		
+		LoadBalancingCommandExecutor lb = new LoadBalancingCommandExecutor();
+		lb.setRetryInterval(60000);
+		
+		List<SocketCliThread> socketCliThreads = new ArrayList<>();
+		for (int i=0; i<backendCnt; i++) {
+			String id = Integer.toString(i);
+			CommandsCommandExecutor commandExecutor = CommandExecutorFactory.makeLoadedCommandExecutor();
+			commandExecutor.addCommand("id", null, "the id of the backend, after a while.", cmdCall->{
+				Thread.sleep(300);
+				return new CmdReturnType(ReturnCode.OK, id);
+			});
+			
+			SocketCliThread socketCliThread = startServer(commandExecutor, 0);
+			socketCliThreads.add(socketCliThread);
+			lb.addBackend("localhost", socketCliThread.socketCli.getPort());
+		}
+		
+		// a backend not listening
+		int deadPort;
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			deadPort = serverSocket.getLocalPort();
+		}
+		lb.addBackend("localhost", deadPort);
+		
+		// concurrent calls go to different backends
+		List<CompletableFuture<CmdReturnType>> futures = new ArrayList<>();
+		for (int i=0; i<backendCnt; i++) {
+			futures.add(CompletableFuture.supplyAsync(()->{
+				try {
+					return lb.execCmd(new CmdCallType("id"));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}, Executors.newSingleThreadExecutor()));
+		}
+		
+		Set<String> ids = new HashSet<>();
+		for (CompletableFuture<CmdReturnType> future : futures) {
+			ids.add(future.get().getResult());
+		}
+		assert( ids.size()==backendCnt );
+		
+		// the dead backend is marked down, and the calls are retried
+		for (int i=0; i<10; i++) {
+			assert( lb.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+		}
+		assert( ! lb.isBackendUp(backendCnt) );
+		for (int i=0; i<backendCnt; i++) {
+			assert( lb.isBackendUp(i) && lb.getOutstandingCount(i)==0 );
+		}
+		
+		// shutting down
+		for (SocketCliThread socketCliThread : socketCliThreads) {
+			socketCliThread.socketCli.setStop(true);
+		}
+		lb.close();
+		for (SocketCliThread socketCliThread : socketCliThreads) {
+			socketCliThread.serverThread.join();
+		}
+	}
+
+	@Test
+	public void testFanOut() throws Exception {
+		final int hostCnt=3;
+		
+		FanOutCommandExecutor fanOut = new FanOutCommandExecutor();
+		
+		List<SocketCliThread> socketCliThreads = new ArrayList<>();
+		for (int i=0; i<hostCnt; i++) {
+			String id = Integer.toString(i);
+			CommandsCommandExecutor commandExecutor = CommandExecutorFactory.makeLoadedCommandExecutor();
+			commandExecutor.addCommand("id", null, "the id of the host, after a while.", cmdCall->{
+				Thread.sleep(300);
+				return new CmdReturnType(ReturnCode.OK, id);
+			});
+			
+			SocketCliThread socketCliThread = startServer(commandExecutor, 0);
+			socketCliThreads.add(socketCliThread);
+			fanOut.addHost("localhost", socketCliThread.socketCli.getPort());
+		}
+		
+		// in parallel
+		long t = System.currentTimeMillis();
+		List<CmdReturnType> cmdReturns = fanOut.execFanOut(new CmdCallType("id"));
+		assert( System.currentTimeMillis() - t < 300 * hostCnt );
+		for (int i=0; i<hostCnt; i++) {
+			assert( cmdReturns.get(i).getResult().equals(Integer.toString(i)) );
+		}
+		
+		// capped
+		fanOut.setMaxConcurrency(1);
+		t = System.currentTimeMillis();
+		CmdReturnType cmdReturn = fanOut.execCmd(new CmdCallType("id"));
+		assert( System.currentTimeMillis() - t >= 300 * hostCnt );
+		assert( cmdReturn.getReturnCode()==ReturnCode.OK && cmdReturn.getResult().split("\n").length==hostCnt );
+		fanOut.setMaxConcurrency(hostCnt);
+		
+		// the deadline
+		fanOut.setDeadline(200);
+		t = System.currentTimeMillis();
+		cmdReturn = fanOut.execCmd(new CmdCallType("sleep", "30"));
+		assert( System.currentTimeMillis() - t < 5000 );
+		assert( cmdReturn.getReturnCode()==ReturnCode.FAILURE && cmdReturn.getResult().contains("timed out") );
+		fanOut.setDeadline(FanOutCommandExecutor.DEFAULT_DEADLINE);
+		
+		// a host not listening
+		int deadPort;
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			deadPort = serverSocket.getLocalPort();
+		}
+		fanOut.addHost("localhost", deadPort);
+		cmdReturns = fanOut.execFanOut(new CmdCallType("echo", "abc"));
+		for (int i=0; i<hostCnt; i++) {
+			assert( cmdReturns.get(i).getResult().equals("abc") );
+		}
+		assert( cmdReturns.get(hostCnt).getReturnCode()==ReturnCode.FAILURE );
+		
+		// a host not replying, not even to the handshake, within the deadline
+		try (ServerSocket silentServerSocket = new ServerSocket(0)) {
+			FanOutCommandExecutor silentFanOut = new FanOutCommandExecutor();
+			silentFanOut.addHost("localhost", silentServerSocket.getLocalPort());
+			silentFanOut.setDeadline(500);
+			t = System.currentTimeMillis();
+			cmdReturns = silentFanOut.execFanOut(new CmdCallType("echo", "abc"));
+			assert( System.currentTimeMillis() - t < 2000 );
+			assert( cmdReturns.get(0).getReturnCode()==ReturnCode.FAILURE && cmdReturns.get(0).getResult().contains("timed out") );
+			
+			// capped, a host past its deadline holds its turn, until its connect ends
+			silentFanOut.addHost("localhost", silentServerSocket.getLocalPort());
+			silentFanOut.setMaxConcurrency(1);
+			t = System.currentTimeMillis();
+			cmdReturns = silentFanOut.execFanOut(new CmdCallType("echo", "abc"));
+			assert( System.currentTimeMillis() - t >= 1000 && System.currentTimeMillis() - t < 4000 );
+			assert( cmdReturns.get(1).getReturnCode()==ReturnCode.FAILURE && cmdReturns.get(1).getResult().contains("timed out") );
+			silentFanOut.close();
+		}
+		
+		// a runtime exception is a FAILURE of the host, and the threads are made again, after closed
+		fanOut.close();
+		fanOut.setConnectionFactory(()->new RemoteCommandExecutor() {
+			@Override
+			public CompletableFuture<CmdReturnType> execCmdAsync(CmdCallType cmdCall) {
+				throw new IllegalStateException("not executing.");
+			}
+		});
+		cmdReturns = fanOut.execFanOut(new CmdCallType("echo", "abc"));
+		assert( cmdReturns.get(0).getReturnCode()==ReturnCode.FAILURE 
+				&& cmdReturns.get(0).getResult().contains("not executing") );
+		
+		fanOut.setConnectionFactory(RemoteCommandExecutor::new);
+		cmdReturns = fanOut.execFanOut(new CmdCallType("echo", "abc"));
+		assert( cmdReturns.get(0).getResult().equals("abc") );
+		
+		// shutting down
+		for (SocketCliThread socketCliThread : socketCliThreads) {
+			socketCliThread.socketCli.setStop(true);
+		}
+		fanOut.close();
+		for (SocketCliThread socketCliThread : socketCliThreads) {
+			socketCliThread.serverThread.join();
+		}
+	}
+
+	@Test
+	public void testCatalog() throws Exception {
+		AtomicInteger remoteCnt = new AtomicInteger();
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor() {
+			@Override
+			public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception {
+				remoteCnt.incrementAndGet();
+				return super.execCmd(cmdCall);
+			}
+		};
+		commandExecutor.addMethods(new BasicCommands(commandExecutor));
+		SocketCli socketCli = new SocketCli(commandExecutor, 0);
+		socketCli.setServeMode(SocketCli.ServeMode.THREAD_PER_CONNECTION);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+		
+		assert( rce.getRemoteCommand("echo")!=null && rce.getRemoteCommand("help")!=null );
+		assert( rce.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+		assert( rce.getRemoteCommand("echo").cmdFunc.apply(new CmdCallType("echo", "def")).getResult().equals("def") );
+		assert( remoteCnt.get()==2 );
+		
+		// unknown commands, and the help, without a round trip
+		assert( rce.execCmd(new CmdCallType("ehco", "abc")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		assert( rce.execCmdAsync(new CmdCallType("ehco", "abc")).get().getReturnCode()==ReturnCode.INVALID_COMMAND );
+		assert( rce.toHelpString().contains("echo") );
+		assert( remoteCnt.get()==2 );
+		
+		// the catalog follows the changes of the commands
+		commandExecutor.addCommand("added", null, "an added command.", cmdCall->new CmdReturnType(ReturnCode.OK, "added"));
+		for (int i=0; i<100 && rce.getRemoteCommand("added")==null; i++) {
+			Thread.sleep(10);
+		}
+		assert( rce.execCmd(new CmdCallType("added")).getResult().equals("added") );
+		
+		// a burst of changes goes in a few catalogs, not in one per change
+		AtomicInteger catalogCnt = new AtomicInteger();
+		rce.addCommandsChangeListener(catalogCnt::incrementAndGet);
+		for (int i=0; i<1000; i++) {
+			commandExecutor.addCommand("burst" + i, null, "a command.", cmdCall->new CmdReturnType(ReturnCode.OK));
+		}
+		for (int i=0; i<100 && rce.getRemoteCommand("burst999")==null; i++) {
+			Thread.sleep(10);
+		}
+		assert( rce.getRemoteCommand("burst999")!=null );
+		assert( catalogCnt.get() < 100 );
+		
+		// without a catalog, all the commands go to the server
+		RemoteCommandExecutor rce2 = new RemoteCommandExecutor();
+		rce2.setCatalogEnabled(false);
+		rce2.connect("localhost", socketCliThread.socketCli.getPort());
+		assert( rce2.getRemoteCommands()==null );
+		assert( rce2.execCmd(new CmdCallType("ehco", "abc")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		assert( rce2.toHelpString().contains("echo") );
+		rce2.close();
+		
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+
+	/**
+	 * the catalog is withdrawn, when the commands of the server are no longer known, and sent again afterwards.
+	 */
+	@Test
+	public void testCatalogWithdrawn() throws Exception {
+		AggregateCommandExecutor aggregate = new AggregateCommandExecutor();
+		aggregate.getCommandExecutorList().add(CommandExecutorFactory.makeLoadedCommandExecutor());
+		SocketCli socketCli = new SocketCli(aggregate, 0);
+		socketCli.setServeMode(SocketCli.ServeMode.THREAD_PER_CONNECTION);
+		SocketCliThread socketCliThread = startServer(socketCli);
+
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", socketCliThread.socketCli.getPort());
+		assert( rce.getRemoteCommand("echo")!=null );
+		assert( rce.execCmd(new CmdCallType("unlisted")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		
+		// a command executor that does not list its commands
+		CommandsCommandExecutor unlisted = new CommandsCommandExecutor() {
+			@Override
+			public List<CommandStruct> getCommands() {
+				return null;
+			}
+		};
+		unlisted.addCommand("unlisted", null, "an unlisted command.", cmdCall->new CmdReturnType(ReturnCode.OK, "unlisted"));
+		aggregate.getCommandExecutorList().add(unlisted);
+		
+		for (int i=0; i<100 && rce.getRemoteCommands()!=null; i++) {
+			Thread.sleep(10);
+		}
+		assert( rce.getRemoteCommands()==null );
+		assert( rce.execCmd(new CmdCallType("unlisted")).getResult().equals("unlisted") );
+		assert( rce.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+		
+		// and back
+		aggregate.getCommandExecutorList().remove(unlisted);
+		for (int i=0; i<100 && rce.getRemoteCommands()==null; i++) {
+			Thread.sleep(10);
+		}
+		assert( rce.getRemoteCommand("echo")!=null && rce.getRemoteCommand("unlisted")==null );
+		
+		// shutting down
+		socketCliThread.socketCli.setStop(true);
+		rce.close();
+		socketCliThread.serverThread.join();
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		final int callCnt=4;
+		
+		// a backend, returning the delay command without parking a thread
+		CommandsCommandExecutor backendExecutor = new CommandsCommandExecutor() {
+			@Override
+			public CompletionStage<CmdReturnType> execCmdAsync(CmdCallType cmdCall) {
+				if ( ! cmdCall.getCommandName().equals("delay") )
+					return super.execCmdAsync(cmdCall);
+				return CompletableFuture.supplyAsync(()->new CmdReturnType(ReturnCode.OK, "delayed")
+						, CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS));
+			}
+		};
+		backendExecutor.addMethods(new BasicCommands(backendExecutor));
+		backendExecutor.addCommand("delay", null, "return after a while.", cmdCall->{
+			Thread.sleep(300);
+			return new CmdReturnType(ReturnCode.OK, "delayed");
+		});
+		SocketCliThread backendThread = startServer(backendExecutor, 0);
+		
+		// a gateway, forwarding to the backend
+		RemoteCommandExecutor gatewayRce = new RemoteCommandExecutor();
+		gatewayRce.connect("localhost", backendThread.socketCli.getPort());
+		SocketCliThread gatewayThread = startServer(gatewayRce, 0);
+		
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.connect("localhost", gatewayThread.socketCli.getPort());
+		assert( rce.getRemoteCommand("delay")!=null );
+		
+		// the calls overlap, through the gateway, and at the backend
+		long startTime = System.nanoTime();
+		List<CompletableFuture<CmdReturnType>> futures = new ArrayList<>();
+		for (int i=0; i<callCnt; i++) {
+			futures.add(rce.execCmdAsync(new CmdCallType("delay")));
+		}
+		for (CompletableFuture<CmdReturnType> future : futures) {
+			assert( future.get().getResult().equals("delayed") );
+		}
+		assert( System.nanoTime() - startTime < TimeUnit.MILLISECONDS.toNanos(300 * callCnt - 300) );
+		
+		// an aggregate falls through to the next command executor, when the return comes
+		CommandsCommandExecutor localExecutor = CommandExecutorFactory.makeLoadedCommandExecutor();
+		AggregateCommandExecutor aggregate = new AggregateCommandExecutor();
+		aggregate.getCommandExecutorList().add(localExecutor);
+		aggregate.getCommandExecutorList().add(rce);
+		
+		CompletableFuture<CmdReturnType> future = aggregate.execCmdAsync(new CmdCallType("echo", "abc")).toCompletableFuture();
+		assert( future.isDone() && future.get().getResult().equals("abc") );
+		
+		future = aggregate.execCmdAsync(new CmdCallType("delay")).toCompletableFuture();
+		assert( ! future.isDone() );
+		assert( future.get().getResult().equals("delayed") );
+		
+		assert( aggregate.execCmdAsync(new CmdCallType("ehco")).toCompletableFuture().get().getReturnCode()
+				==ReturnCode.INVALID_COMMAND );
+		
+		// shutting down
+		gatewayThread.socketCli.setStop(true);
+		rce.close();
+		gatewayThread.serverThread.join();
+		
+		backendThread.socketCli.setStop(true);
+		gatewayRce.close();
+		backendThread.serverThread.join();
+	}
+
+	@Test
+	public void testIdleTimeout() throws Exception {
+		for (SocketCli.ServeMode serveMode : SocketCli.ServeMode.values()) {
+			SocketCli socketCli = new SocketCli(CommandExecutorFactory.makeLoadedCommandExecutor(), 0);
+			socketCli.setServeMode(serveMode);
+			socketCli.setIdleTimeout(300);
+			socketCli.setKeepaliveInterval(100);
+			SocketCliThread socketCliThread = startServer(socketCli);
+			int port = socketCli.getPort();
+
+			// a silent client, without keepalive, is closed, which frees a blocking server for the next client
+			RemoteCommandExecutor silentRce = new RemoteCommandExecutor();
+			silentRce.setMaxProtocolVersion(1);
+			silentRce.setCatalogEnabled(false);
+			silentRce.connect("localhost", port);
+			assert( silentRce.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+			
+			// not while a command is in flight
+			assert( silentRce.execCmd(new CmdCallType("sleep", "0.6")).getReturnCode().isOk() );
+			
+			Thread.sleep(1000);
+			assert( ! silentRce.isConnected() );
+
+			// a client answering PINGs stays connected
+			RemoteCommandExecutor rce = new RemoteCommandExecutor();
+			rce.connect("localhost", port);
+			Thread.sleep(1000);
+			assert( rce.isConnected() );
+			assert( rce.execCmd(new CmdCallType("echo", "def")).getResult().equals("def") );
+
+			// shutting down
+			socketCli.setStop(true);
+			rce.close();
+			socketCliThread.serverThread.join();
+		}
+	}
+
+	/**
+	 * a server without the handshake, of protocol version 1, that takes tagged calls, and ignores OOB messages.
+	 *
+	 * @return the server thread, ending when the server socket is closed.
+	 */
+	private Thread startHandshakelessServer(ServerSocket serverSocket) {
+		Thread thread = new Thread(()->{
+			while (true) {
+				try (Socket socket = serverSocket.accept()) {
+					PacketSocket packetSocket = new PacketSocket(socket);
+					CliPacketSerdes cliPacketSerdes = new CliPacketSerdes();
+					
+					ByteBuffer bb;
+					while ( (bb = packetSocket.receiveBuffer())!=null ) {
+						Object obj = cliPacketSerdes.deserialize(bb);
+						if (cliPacketSerdes.getLastId()!=CliPacketSerdes.Id.CMD_CALL_TAGGED)
+							continue;
+						
+						int tag = cliPacketSerdes.getLastTag();
+						CmdReturnType cmdReturn = new CmdReturnType(ReturnCode.OK, ((CmdCallType) obj).toArgumentsString());
+						packetSocket.send(CliPacketSerdes.getSerializedSize(WireFormat.V1, tag, cmdReturn)
+								, b->CliPacketSerdes.serialize(b, WireFormat.V1, tag, cmdReturn));
+					}
+					
+				} catch (IOException e) {
+					if (serverSocket.isClosed())
+						return;
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * a server that never replies to the handshake does not hang connect(), 
+	 *   and is connected to again, without the handshake.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandshakelessServer() throws Exception {
+		ServerSocket serverSocket = new ServerSocket(0);
+		Thread serverThread = startHandshakelessServer(serverSocket);
+		
+		RemoteCommandExecutor rce = new RemoteCommandExecutor();
+		rce.setHandshakeTimeout(300);
+		
+		long startTime = System.currentTimeMillis();
+		rce.connect("localhost", serverSocket.getLocalPort());
+		assert( System.currentTimeMillis() - startTime < 3000 );
+		
+		assert( rce.isConnected() && rce.getProtocolVersion()==1 && rce.getRemoteCommands()==null );
+		assert( rce.execCmd(new CmdCallType("echo", "abc")).getResult().equals("abc") );
+		
+		// shutting down
+		rce.close();
+		serverSocket.close();
+		serverThread.join();
+	}
+
 	/**
 	 * execute according to the test options.
 	 * @throws Exception 
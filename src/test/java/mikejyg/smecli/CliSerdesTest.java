@@ -1,14 +1,17 @@
 package mikejyg.smecli;
 
 import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
 
 import org.junit.Test;
 
+import mikejyg.smecli.CmdReturnType.ReturnCode;
 import mikejyg.smecli.CmdReturnType.ReturnCode.IllegalValueException;
 import mikejyg.smecli.socket.CliPacketSerdes;
 import mikejyg.smecli.socket.CliPacketSerdes.DesException;
 import mikejyg.smecli.socket.CliPacketSerdes.Id;
 import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.WireFormat;
 
 public class CliSerdesTest {
 
@@ -34,6 +37,167 @@ public class CliSerdesTest {
 		assert(msg.contentEquals(desMsg));
 		
 	}
+
+	@Test
+	public void testTagged() throws DesException, IllegalValueException {
+		ByteBufferAccumulator bba = new ByteBufferAccumulator();
+		
+		CmdCallType cmdCall = new CmdCallType("abc", "defg");
+		CliPacketSerdes.serialize(bba, 12345, cmdCall);
+		
+		CliPacketSerdes cliSerdes = new CliPacketSerdes();
+		
+		Object obj = cliSerdes.deserialize(ByteBuffer.wrap(bba.toBytes()));
+		
+		assert( cliSerdes.getLastId() == Id.CMD_CALL_TAGGED );
+		assert( cliSerdes.getLastTag() == 12345 );
+		assert( cmdCall.equals(obj) );
+		
+		bba = new ByteBufferAccumulator();
+		CliPacketSerdes.serialize(bba, -1, new CmdReturnType(ReturnCode.OK, "hijk"));
+		
+		obj = cliSerdes.deserialize(ByteBuffer.wrap(bba.toBytes()));
+		
+		assert( cliSerdes.getLastId() == Id.CMD_RETURN_TAGGED );
+		assert( cliSerdes.getLastTag() == -1 );
+		assert( ((CmdReturnType)obj).getResult().equals("hijk") );
+	}
+	
+	private static ByteBuffer serialize(int tag, int symbol, boolean defineFlag, CmdCallType cmdCall) {
+		ByteBuffer bb = ByteBuffer.allocate(CliPacketSerdes.getSerializedSize(WireFormat.V1, tag, symbol, defineFlag, cmdCall));
+		CliPacketSerdes.serialize(bb, WireFormat.V1, tag, symbol, defineFlag, cmdCall);
+		assert( ! bb.hasRemaining() );
+		bb.flip();
+		return bb;
+	}
+	
+	@Test
+	public void testCommandSymbols() throws DesException, IllegalValueException {
+		CliPacketSerdes cliSerdes = new CliPacketSerdes();
+		cliSerdes.setMaxCommandSymbols(2);
+		
+		CmdCallType cmdCall = new CmdCallType("abc", "defg");
+		CmdCallType cmdCall2 = new CmdCallType("\u00e9cho", new String[]{"1", "2"});
+		
+		// define, then use
+		assert( cmdCall.equals(cliSerdes.deserialize(serialize(1, 0, true, cmdCall))) );
+		assert( cliSerdes.getLastId() == Id.CMD_CALL_SYMBOL );
+		assert( cliSerdes.getLastTag() == 1 && cliSerdes.getLastSymbol() == 0 );
+		
+		assert( cmdCall2.equals(cliSerdes.deserialize(serialize(2, 1, true, cmdCall2))) );
+		assert( cmdCall.equals(cliSerdes.deserialize(serialize(3, 0, false, cmdCall))) );
+		assert( cmdCall2.equals(cliSerdes.deserialize(serialize(4, 1, false, cmdCall2))) );
+		assert( cliSerdes.getLastSymbol() == 1 );
+		
+		// a symbol name is sent once
+		assert( serialize(3, 0, false, cmdCall).remaining() < CliPacketSerdes.getSerializedSize(WireFormat.V1, 3, cmdCall) );
+		
+		// undefined, out of order, or too many
+		int[][] badSymbols = { {5, 0}, {3, 1}, {2, 1} };
+		for (int[] badSymbol : badSymbols) {
+			try {
+				cliSerdes.deserialize(serialize(5, badSymbol[0], badSymbol[1]!=0, cmdCall));
+				assert(false);
+			} catch (DesException e) {
+				// expected
+			}
+		}
+	}
+	
+	@Test
+	public void testWireFormatV2() throws DesException, IllegalValueException {
+		CliPacketSerdes cliSerdes = new CliPacketSerdes();
+		cliSerdes.setWireFormat(WireFormat.V2);
+		
+		CmdCallType cmdCall = new CmdCallType("abc", new String[]{"defg", "\u00e9"});
+		CmdReturnType cmdReturn = new CmdReturnType(ReturnCode.OK, "hijk");
+		
+		int tags[] = { 0, 127, 128, 0x3fff, Integer.MAX_VALUE };
+		for (int tag : tags) {
+			ByteBuffer bb = ByteBuffer.allocate(CliPacketSerdes.getSerializedSize(WireFormat.V2, tag, cmdCall));
+			CliPacketSerdes.serialize(bb, WireFormat.V2, tag, cmdCall);
+			assert( ! bb.hasRemaining() );
+			bb.flip();
+			
+			assert( cmdCall.equals(cliSerdes.deserialize(bb)) );
+			assert( cliSerdes.getLastId() == Id.CMD_CALL_TAGGED && cliSerdes.getLastTag() == tag );
+			
+			bb = ByteBuffer.allocate(CliPacketSerdes.getSerializedSize(WireFormat.V2, tag, cmdReturn));
+			CliPacketSerdes.serialize(bb, WireFormat.V2, tag, cmdReturn);
+			bb.flip();
+			
+			CmdReturnType desReturn = (CmdReturnType) cliSerdes.deserialize(bb);
+			assert( desReturn.getReturnCode() == ReturnCode.OK && desReturn.getResult().equals("hijk") );
+			assert( cliSerdes.getLastId() == Id.CMD_RETURN_TAGGED && cliSerdes.getLastTag() == tag );
+		}
+		
+		// the framing overhead of a small call is a few bytes, vs. a few dozens in V1
+		int v1Overhead = CliPacketSerdes.getSerializedSize(WireFormat.V1, 1, cmdCall) - 9;
+		int v2Overhead = CliPacketSerdes.getSerializedSize(WireFormat.V2, 1, cmdCall) - 9;
+		assert( v2Overhead < 8 && v1Overhead > 16 );
+		
+		// the flags of the header byte are reserved
+		ByteBuffer bb = ByteBuffer.allocate(CliPacketSerdes.getSerializedSize(WireFormat.V2, 1, cmdCall));
+		CliPacketSerdes.serialize(bb, WireFormat.V2, 1, cmdCall);
+		bb.put(0, (byte)(bb.get(0) | 0x80));
+		bb.flip();
+		try {
+			cliSerdes.deserialize(bb);
+			assert(false);
+		} catch (DesException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * a COMPRESSED packet, in V1, with the length of the inflated payload.
+	 */
+	private static ByteBuffer compress(ByteBuffer payload, int length) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(payload);
+		deflater.finish();
+		byte[] deflated = new byte[1024];
+		int deflatedLength = deflater.deflate(deflated);
+		deflater.end();
+		
+		ByteBuffer bb = ByteBuffer.allocate(8 + deflatedLength);
+		bb.putInt(Id.COMPRESSED.intValue()).putInt(length).put(deflated, 0, deflatedLength);
+		bb.flip();
+		return bb;
+	}
+	
+	@Test
+	public void testCompressed() throws DesException, IllegalValueException {
+		CmdCallType cmdCall = new CmdCallType("abc", "defg");
+		ByteBuffer payload = ByteBuffer.allocate(CliPacketSerdes.getSerializedSize(WireFormat.V1, 1, cmdCall));
+		CliPacketSerdes.serialize(payload, WireFormat.V1, 1, cmdCall);
+		payload.flip();
+		int length = payload.remaining();
+		
+		CliPacketSerdes cliSerdes = new CliPacketSerdes();
+		
+		// not unless agreed
+		try {
+			cliSerdes.deserialize(compress(payload.duplicate(), length));
+			assert(false);
+		} catch (DesException e) {
+			// expected
+		}
+		
+		cliSerdes.setCompressionEnabled(true);
+		assert( cmdCall.equals(cliSerdes.deserialize(compress(payload.duplicate(), length))) );
+		assert( cliSerdes.getLastId() == Id.CMD_CALL_TAGGED );
+		
+		// a length more than the payload can inflate to, is not allocated
+		for (int badLength : new int[]{ Integer.MAX_VALUE, CliPacketSerdes.MAX_INFLATED_LENGTH + 1, 1 << 20 }) {
+			try {
+				cliSerdes.deserialize(compress(payload.duplicate(), badLength));
+				assert(false);
+			} catch (DesException e) {
+				// expected
+			}
+		}
+	}
 	
 	
 }
@@ -8,7 +8,13 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -16,8 +22,11 @@ import org.junit.Test;
 
 import mikejyg.cloep.ArgsParser;
 import mikejyg.cloep.ArgsParser.ParseException;
+import mikejyg.smecli.CliAnnotation.CliCommand;
 import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.cmdexecutor.AggregateCommandExecutor;
 import mikejyg.smecli.cmdexecutor.CommandExecutorIntf;
+import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
 import mikejyg.smecli.session.ConsoleSession;
 import mikejyg.smecli.session.SessionFactory;
 import mikejyg.smecli.session.SessionTranscriptor;
@@ -89,6 +98,257 @@ public class CliTest {
 		
 	}
 
+	/**
+	 * commands that count their executions.
+	 */
+	public static class CountingCommands {
+		int statusCnt;
+		int failCnt;
+		
+		@CliCommand(helpString = "a cacheable status.", cacheTtl = 300)
+		public CmdReturnType status(CmdCallType cmdCall) {
+			statusCnt++;
+			return new CmdReturnType(ReturnCode.OK, cmdCall.getArgumentsStr() + statusCnt);
+		}
+		
+		@CliCommand(helpString = "a cacheable failure.", cacheTtl = 300)
+		public CmdReturnType fail(CmdCallType cmdCall) {
+			failCnt++;
+			return new CmdReturnType(ReturnCode.FAILURE);
+		}
+		
+		AtomicInteger expensiveCnt = new AtomicInteger();
+		
+		@CliCommand(helpString = "an expensive command, coalesced.", coalesce = true)
+		public CmdReturnType expensive(CmdCallType cmdCall) throws InterruptedException {
+			expensiveCnt.incrementAndGet();
+			Thread.sleep(300);
+			return new CmdReturnType(ReturnCode.OK, cmdCall.getArgumentsStr());
+		}
+	}
+	
+	@Test
+	public void testResultCache() throws Exception {
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor();
+		CountingCommands countingCommands = new CountingCommands();
+		commandExecutor.addMethods(countingCommands);
+		
+		// repeated identical calls are served from the cache
+		assert( commandExecutor.execCmd(new CmdCallType("status", "a")).getResult().equals("a1") );
+		assert( commandExecutor.execCmd(new CmdCallType("status", "a")).getResult().equals("a1") );
+		assert( commandExecutor.execCmd(new CmdCallType("status", "b")).getResult().equals("b2") );
+		assert( countingCommands.statusCnt==2 );
+		
+		// failures are not cached
+		commandExecutor.execCmd(new CmdCallType("fail"));
+		commandExecutor.execCmd(new CmdCallType("fail"));
+		assert( countingCommands.failCnt==2 );
+		
+		// expired
+		Thread.sleep(400);
+		assert( commandExecutor.execCmd(new CmdCallType("status", "a")).getResult().equals("a3") );
+		
+		// the least recently used is evicted
+		commandExecutor.setResultCacheSize(2);
+		commandExecutor.execCmd(new CmdCallType("status", "b"));
+		commandExecutor.execCmd(new CmdCallType("status", "c"));
+		assert( commandExecutor.execCmd(new CmdCallType("status", "a")).getResult().equals("a6") );
+		assert( countingCommands.statusCnt==6 );
+		
+		commandExecutor.clearResultCache();
+		assert( commandExecutor.execCmd(new CmdCallType("status", "a")).getResult().equals("a7") );
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final int threadCnt=8;
+		
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor();
+		CountingCommands countingCommands = new CountingCommands();
+		commandExecutor.addMethods(countingCommands);
+		
+		// identical calls at the same time are executed once, and different ones are not coalesced
+		ExecutorService executorService = Executors.newFixedThreadPool(threadCnt);
+		try {
+			List<CompletableFuture<CmdReturnType>> futures = new ArrayList<>();
+			for (int i=0; i<threadCnt; i++) {
+				String arg = i < threadCnt - 1 ? "a" : "b";
+				futures.add(CompletableFuture.supplyAsync(()->{
+					try {
+						return commandExecutor.execCmd(new CmdCallType("expensive", arg));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}, executorService));
+			}
+			
+			for (int i=0; i<threadCnt; i++) {
+				assert( futures.get(i).get().getResult().equals(i < threadCnt - 1 ? "a" : "b") );
+			}
+		} finally {
+			executorService.shutdown();
+		}
+		assert( countingCommands.expensiveCnt.get()==2 );
+		
+		// not coalesced, after the execution
+		commandExecutor.execCmd(new CmdCallType("expensive", "a"));
+		assert( countingCommands.expensiveCnt.get()==3 );
+	}
+
+	public static class ThrowingCommands {
+		@CliCommand(helpString = "throw an exception.")
+		public CmdReturnType fail(CmdCallType cmdCall) throws IOException {
+			throw new IOException(cmdCall.getArgumentsStr());
+		}
+		
+		@CliCommand(helpString = "return OK.")
+		public CmdReturnType ok(CmdCallType cmdCall) {
+			return new CmdReturnType(ReturnCode.OK);
+		}
+	}
+	
+	@Test
+	public void testAnnotation() throws Exception {
+		ThrowingCommands throwingCommands = new ThrowingCommands();
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor();
+		commandExecutor.addMethods(throwingCommands);
+		
+		// made by the generated registrar
+		CmdFunction cmdFunc = commandExecutor.getCommand("ok").cmdFunc;
+		assert( cmdFunc.getClass().getName().startsWith(ThrowingCommands.class.getName() + CliCommandProcessor.REGISTRAR_SUFFIX) );
+		assert( cmdFunc.apply(new CmdCallType("ok")).getReturnCode()==ReturnCode.OK );
+		
+		// without a registrar, by scanning, with generated functions, not reflective ones
+		class LocalCommands {
+			@CliCommand(helpString = "return OK.", shorthands = {"k"}, cacheTtl = 100)
+			public CmdReturnType ok(CmdCallType cmdCall) {
+				return new CmdReturnType(ReturnCode.OK);
+			}
+		}
+		List<CommandStruct> commands = CliAnnotation.getCliCommands(new LocalCommands());
+		assert( commands.size()==1 && commands.get(0).shorthands[0].equals("k") && commands.get(0).cacheTtl==100 );
+		assert( commands.get(0).cmdFunc.getClass().getName().startsWith(LocalCommands.class.getName()) );
+		assert( commands.get(0).cmdFunc.apply(new CmdCallType("ok")).getReturnCode()==ReturnCode.OK );
+		
+		// generated once per method, and bound to each object
+		List<CommandStruct> commands2 = CliAnnotation.getCliCommands(new LocalCommands());
+		assert( commands2.get(0).cmdFunc.getClass()==commands.get(0).cmdFunc.getClass() );
+		assert( commands2.get(0).cmdFunc!=commands.get(0).cmdFunc );
+		
+		// the same commands, either way
+		CommandStruct generated = CliAnnotation.getCliCommands(throwingCommands).stream()
+				.filter(cs->cs.commandName.equals("ok")).findFirst().get();
+		CommandStruct scanned = CliAnnotation.scanCliCommands(throwingCommands).stream()
+				.filter(cs->cs.commandName.equals("ok")).findFirst().get();
+		assert( generated.toString().equals(scanned.toString()) );
+		
+		// the exceptions of the method propagate, through both paths
+		try {
+			commandExecutor.execCmd(new CmdCallType("fail", "abc"));
+			assert( false );
+		} catch (IOException e) {
+			assert( e.getMessage().equals("abc") );
+		}
+		
+		CmdFunction reflectiveFunc = CliAnnotation.toReflectiveCmdFunction(throwingCommands
+				, ThrowingCommands.class.getMethod("fail", CmdCallType.class));
+		try {
+			reflectiveFunc.apply(new CmdCallType("fail", "def"));
+			assert( false );
+		} catch (IOException e) {
+			assert( e.getMessage().equals("def") );
+		}
+	}
+	
+	/**
+	 * a command executor counting its calls.
+	 */
+	private static class CountingCommandExecutor extends CommandsCommandExecutor {
+		AtomicInteger callCnt = new AtomicInteger();
+		
+		AtomicInteger getCommandsCnt = new AtomicInteger();
+		
+		@Override
+		public CmdReturnType execCmd(CmdCallType cmdCall) throws Exception {
+			callCnt.incrementAndGet();
+			return super.execCmd(cmdCall);
+		}
+		
+		@Override
+		public List<CommandStruct> getCommands() {
+			getCommandsCnt.incrementAndGet();
+			return super.getCommands();
+		}
+	}
+	
+	@Test
+	public void testAggregateRouting() throws Exception {
+		CountingCommandExecutor first = new CountingCommandExecutor();
+		first.addCommand("a", null, "a of the first.", cmdCall->new CmdReturnType(ReturnCode.OK, "first"));
+		CountingCommandExecutor second = new CountingCommandExecutor();
+		second.addCommand("b", new String[]{"bb"}, "b of the second.", cmdCall->new CmdReturnType(ReturnCode.OK, "second"));
+		
+		AggregateCommandExecutor aggregate = new AggregateCommandExecutor();
+		aggregate.getCommandExecutorList().add(first);
+		aggregate.getCommandExecutorList().add(second);
+		
+		// a command goes straight to its command executor
+		assert( aggregate.execCmd(new CmdCallType("b")).getResult().equals("second") );
+		assert( aggregate.execCmd(new CmdCallType("bb")).getResult().equals("second") );
+		assert( aggregate.execCmdAsync(new CmdCallType("b")).toCompletableFuture().get().getResult().equals("second") );
+		assert( aggregate.execCmd(new CmdCallType("c")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		assert( first.callCnt.get()==0 && second.callCnt.get()==3 );
+		
+		// the index follows the changes of the commands, and an earlier command executor takes precedence
+		int version = aggregate.getCommandsVersion();
+		first.addCommand("b", null, "b of the first.", cmdCall->new CmdReturnType(ReturnCode.OK, "first"));
+		assert( aggregate.getCommandsVersion()!=version );
+		assert( aggregate.execCmd(new CmdCallType("b")).getResult().equals("first") );
+		assert( aggregate.execCmd(new CmdCallType("bb")).getResult().equals("second") );
+		
+		// the commands of the aggregate itself come last
+		aggregate.addCommand("a", null, "a of the aggregate.", cmdCall->new CmdReturnType(ReturnCode.OK, "aggregate"));
+		aggregate.addCommand("c", null, "c of the aggregate.", cmdCall->new CmdReturnType(ReturnCode.OK, "aggregate"));
+		assert( aggregate.execCmd(new CmdCallType("a")).getResult().equals("first") );
+		assert( aggregate.execCmd(new CmdCallType("c")).getResult().equals("aggregate") );
+		assert( aggregate.getCommands().size()==5 );
+		
+		// a command executor not listing its commands is tried for any command, in its turn
+		CountingCommandExecutor unlisted = new CountingCommandExecutor() {
+			@Override
+			public List<CommandStruct> getCommands() {
+				return null;
+			}
+		};
+		unlisted.addCommand("d", null, "d of the unlisted.", cmdCall->new CmdReturnType(ReturnCode.OK, "unlisted"));
+		aggregate.getCommandExecutorList().add(1, unlisted);
+		assert( aggregate.getCommands()==null );
+		assert( aggregate.execCmd(new CmdCallType("d")).getResult().equals("unlisted") );
+		assert( aggregate.execCmd(new CmdCallType("a")).getResult().equals("first") );
+		assert( unlisted.callCnt.get()==1 );
+		assert( aggregate.execCmd(new CmdCallType("bb")).getResult().equals("second") );
+		assert( unlisted.callCnt.get()==2 );
+		
+		aggregate.getCommandExecutorList().remove(unlisted);
+		assert( aggregate.execCmd(new CmdCallType("d")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		assert( unlisted.callCnt.get()==2 );
+		
+		// with prefix dispatch, a prefix goes to the command executor that has it
+		second.addCommand("echo", null, "echo of the second.", cmdCall->new CmdReturnType(ReturnCode.OK, "second"));
+		assert( aggregate.execCmd(new CmdCallType("ech")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		second.setPrefixDispatch(true);
+		assert( aggregate.execCmd(new CmdCallType("ech")).getResult().equals("second") );
+		assert( aggregate.execCmdAsync(new CmdCallType("ech")).toCompletableFuture().get().getResult().equals("second") );
+		
+		// many commands registered, without rebuilding the index for each one
+		int getCommandsCnt = second.getCommandsCnt.get();
+		for (int i=0; i<1000; i++) {
+			second.addCommand("cmd" + i, null, "a command.", cmdCall->new CmdReturnType(ReturnCode.OK, "second"));
+		}
+		assert( aggregate.execCmd(new CmdCallType("cmd999")).getResult().equals("second") );
+		assert( second.getCommandsCnt.get() - getCommandsCnt==1 );
+	}
+
 	public void parseArgs(String[] args) throws ParseException {
 		ArgsParser argsParser = new ArgsParser();
 		argsParser.addOptionWithoutArg('h', null, "help", arg->{argsParser.printHelp();});
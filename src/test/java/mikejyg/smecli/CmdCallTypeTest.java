@@ -1,10 +1,12 @@
 package mikejyg.smecli;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.Test;
 
 import mikejyg.socket.ByteBufferAccumulator;
+import mikejyg.socket.Utf8Codec;
 
 /**
  * unit tests for CmdCallType
@@ -16,6 +18,8 @@ public class CmdCallTypeTest {
 		cmdCallType.serialize(bba);
 		byte [] cmdCallBytes = bba.toBytes();
 		
+		assert( cmdCallBytes.length == cmdCallType.getSerializedSize() );
+		
 		CmdCallType c2 = new CmdCallType(ByteBuffer.wrap(cmdCallBytes));
 		
 		if ( ! cmdCallType.equals(c2) ) {
@@ -35,6 +39,26 @@ public class CmdCallTypeTest {
 		
 		serdesTest(new CmdCallType( "abc", new String[0] ) );
 		
+		serdesTest(new CmdCallType( "\u00e9cho", new String[]{"\u4e2d\u6587", "\ud83d\ude00"} ) );
+		
+	}
+	
+	/**
+	 * the UTF-8 encoding should be the same as String.getBytes().
+	 */
+	@Test
+	public void testUtf8Codec() {
+		String[] strs = { "", "abc", "\u00e9\u07ff\u0800\uffff", "\ud83d\ude00 smile", "lone \ud83d surrogate \ude00" };
+		
+		for (String str : strs) {
+			byte[] golden = str.getBytes(CmdCallType.charset);
+			
+			assert( Utf8Codec.encodedLength(str) == golden.length );
+			
+			ByteBuffer bb = ByteBuffer.allocate(golden.length);
+			Utf8Codec.encode(str, bb);
+			assert( Arrays.equals(bb.array(), golden) );
+		}
 	}
 	
 }
@@ -0,0 +1,159 @@
+package mikejyg.smecli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import mikejyg.smecli.CmdReturnType.ReturnCode;
+import mikejyg.smecli.cmdexecutor.CommandTrie;
+import mikejyg.smecli.cmdexecutor.CommandsCommandExecutor;
+
+/**
+ * unit tests for CommandTrie
+ */
+public class CommandTrieTest {
+
+	@Test
+	public void test() {
+		CommandTrie<String> trie = new CommandTrie<>();
+
+		for (String name : new String[]{"echo", "exit", "end", "e", "ec", "sleep", "sleeping"}) {
+			assert( trie.put(name, name)==null );
+		}
+		assert( trie.size()==7 );
+		assert( trie.put("ec", "ec2").equals("ec") && trie.size()==7 );
+
+		assert( trie.get("echo").equals("echo") && trie.get("e").equals("e") && trie.get("ec").equals("ec2") );
+		assert( trie.get("ech")==null && trie.get("echoes")==null && trie.get("")==null && trie.get("x")==null );
+
+		// by prefix, in order
+		assert( trie.getNames("e").equals(Arrays.asList("e", "ec", "echo", "end", "exit")) );
+		assert( trie.getNames("ec").equals(Arrays.asList("ec", "echo")) );
+		assert( trie.getNames("ech").equals(Arrays.asList("echo")) );
+		assert( trie.getNames("sleepi").equals(Arrays.asList("sleeping")) );
+		assert( trie.getNames("sx").isEmpty() && trie.getNames("echoes").isEmpty() );
+		assert( trie.getNames("").size()==7 );
+
+		// by unique prefix
+		assert( trie.getByUniquePrefix("ex").equals("exit") );
+		assert( trie.getByUniquePrefix("ech").equals("echo") );
+		assert( trie.getByUniquePrefix("ec").equals("ec2") );
+		assert( trie.getByUniquePrefix("sl")==null );
+		assert( trie.getByUniquePrefix("sleepin").equals("sleeping") );
+		assert( trie.getByUniquePrefix("x")==null );
+
+		// removing keeps the rest
+		assert( trie.remove("ech")==null && trie.remove("ec").equals("ec2") && trie.remove("ec")==null );
+		assert( trie.remove("sleep").equals("sleep") && trie.remove("e").equals("e") );
+		assert( trie.size()==4 );
+		assert( trie.getNames("").equals(Arrays.asList("echo", "end", "exit", "sleeping")) );
+		assert( trie.getByUniquePrefix("s").equals("sleeping") );
+	}
+
+	/**
+	 * against a TreeMap, with random names, and removals.
+	 */
+	@Test
+	public void testRandom() {
+		final int cnt=20000;
+
+		Random random = new Random(1);
+		CommandTrie<String> trie = new CommandTrie<>();
+		TreeMap<String, String> treeMap = new TreeMap<>();
+
+		List<String> names = new ArrayList<>();
+		for (int i=0; i<cnt; i++) {
+			StringBuilder sb = new StringBuilder();
+			int length = 1 + random.nextInt(8);
+			for (int j=0; j<length; j++) {
+				sb.append((char)('a' + random.nextInt(4)));
+			}
+			String name = sb.toString();
+			names.add(name);
+
+			assert( trie.put(name, name)==treeMap.put(name, name) );
+		}
+		assert( trie.size()==treeMap.size() );
+
+		Collections.shuffle(names, random);
+		for (int i=0; i<cnt/2; i++) {
+			assert( trie.remove(names.get(i))==treeMap.remove(names.get(i)) );
+		}
+		assert( trie.size()==treeMap.size() );
+
+		for (String name : names) {
+			assert( trie.get(name)==treeMap.get(name) );
+		}
+
+		for (String prefix : new String[]{"", "a", "ab", "abc", "dddd", "cab"}) {
+			List<String> expected = new ArrayList<>(treeMap.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+			assert( trie.getNames(prefix).equals(expected) );
+		}
+	}
+
+	@Test
+	public void testCommandsCommandExecutor() throws Exception {
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor();
+		commandExecutor.addCommand("echo", new String[]{"ec"}, "echo.", cmdCall->new CmdReturnType(ReturnCode.OK, "echo"));
+		commandExecutor.addCommand("exit", null, "exit.", cmdCall->new CmdReturnType(ReturnCode.OK, "exit"));
+
+		assert( commandExecutor.getCommandNames("e").equals(Arrays.asList("ec", "echo", "exit")) );
+
+		// not by prefix, unless enabled
+		assert( commandExecutor.execCmd(new CmdCallType("ech")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+		commandExecutor.setPrefixDispatch(true);
+		assert( commandExecutor.execCmd(new CmdCallType("ech")).getResult().equals("echo") );
+		assert( commandExecutor.execCmd(new CmdCallType("ex")).getResult().equals("exit") );
+		assert( commandExecutor.execCmd(new CmdCallType("e")).getReturnCode()==ReturnCode.INVALID_COMMAND );
+
+		// replacing a command drops its old shorthands
+		commandExecutor.addCommand("echo", null, "echo again.", cmdCall->new CmdReturnType(ReturnCode.OK, "echo2"));
+		assert( commandExecutor.getCommand("ec").commandName.equals("echo") );
+		commandExecutor.setPrefixDispatch(false);
+		assert( commandExecutor.getCommand("ec")==null );
+		assert( commandExecutor.getCommands().size()==2 );
+		assert( commandExecutor.getCommands().get(0).helpString.equals("echo again.") );
+		assert( commandExecutor.execCmd(new CmdCallType("echo")).getResult().equals("echo2") );
+	}
+
+	/**
+	 * a command is found throughout, while others are added, splitting the edges of the trie.
+	 */
+	@Test
+	public void testConcurrentAdd() throws Exception {
+		final int cnt=20000;
+
+		CommandsCommandExecutor commandExecutor = new CommandsCommandExecutor();
+		commandExecutor.addCommand("device", new String[]{"dev"}, "device.", cmdCall->new CmdReturnType(ReturnCode.OK));
+
+		AtomicBoolean doneFlag = new AtomicBoolean();
+		AtomicInteger missCnt = new AtomicInteger();
+		Thread reader = new Thread(()->{
+			while ( ! doneFlag.get() ) {
+				if ( commandExecutor.getCommand("device")==null || commandExecutor.getCommand("dev")==null )
+					missCnt.incrementAndGet();
+			}
+		});
+		reader.start();
+
+		for (int i=0; i<cnt; i++) {
+			commandExecutor.addCommand("dev" + Integer.toString(i, 4), null, "a device.", cmdCall->new CmdReturnType(ReturnCode.OK));
+			if (i % 100 == 0)		// replaced, keeping the shorthand
+				commandExecutor.addCommand("device", new String[]{"dev"}, "device.", cmdCall->new CmdReturnType(ReturnCode.OK));
+		}
+		doneFlag.set(true);
+		reader.join();
+
+		assert( missCnt.get()==0 );
+		assert( commandExecutor.getCommands().size()==cnt + 1 );
+	}
+
+
+}
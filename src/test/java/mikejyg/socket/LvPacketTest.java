@@ -0,0 +1,142 @@
+package mikejyg.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * unit tests for LvPacket reading.
+ */
+public class LvPacketTest {
+
+	/**
+	 * an input stream that returns at most a few bytes per read, and repeats its content a number of times.
+	 */
+	private static class FragmentingInputStream extends InputStream {
+		private byte[] bytes;
+		private int repeats;
+		private int idx;
+		private int readCnt;
+
+		public FragmentingInputStream(byte[] bytes, int repeats) {
+			this.bytes = bytes;
+			this.repeats = repeats;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (idx==bytes.length) {
+				if (--repeats <= 0)
+					return -1;
+				idx=0;
+			}
+
+			int k = Math.min( Math.min(len, 1 + readCnt++ % 7), bytes.length - idx );
+			System.arraycopy(bytes, idx, b, off, k);
+			idx += k;
+			return k;
+		}
+	}
+
+	/**
+	 * make a stream of packets, with payload sizes 0, 1, ... packetCnt-1, and each payload byte being the payload size.
+	 */
+	private static byte[] makePackets(int packetCnt) {
+		ByteBufferAccumulator bba = new ByteBufferAccumulator();
+		for (int i=0; i<packetCnt; i++) {
+			byte[] data = new byte[i];
+			for (int j=0; j<i; j++) {
+				data[j] = (byte)i;
+			}
+			bba.put(LvPacket.wrap(data).toBytes());
+		}
+		return bba.toBytes();
+	}
+
+	private static void checkPayload(ByteBuffer bb, int expectedLength) {
+		assert( bb.remaining()==expectedLength );
+		while (bb.hasRemaining()) {
+			assert( bb.get()==(byte)expectedLength );
+		}
+	}
+
+	@Test
+	public void testFragmentedRead() throws IOException, LvPacket.ReadException {
+		final int packetCnt=300;
+		byte[] bytes = makePackets(packetCnt);
+
+		// LvPacket.read()
+		InputStream inputStream = new FragmentingInputStream(bytes, 1);
+		for (int i=0; i<packetCnt; i++) {
+			LvPacket lvPacket = LvPacket.read(inputStream);
+			checkPayload(ByteBuffer.wrap(lvPacket.getData()), i);
+		}
+		assert( LvPacket.read(inputStream)==null );
+
+		// LvPacketReader, from a pool of direct buffers
+		LvPacketReader reader = new LvPacketReader(new FragmentingInputStream(bytes, 1), new ByteBufferPool(true));
+		for (int i=0; i<packetCnt; i++) {
+			checkPayload(reader.read(), i);
+		}
+		assert( reader.read()==null );
+		reader.release();
+
+		// truncated
+		reader = new LvPacketReader(new ByteArrayInputStream(bytes, 0, bytes.length-1), null);
+		try {
+			for (int i=0; i<packetCnt; i++) {
+				reader.read();
+			}
+			assert(false);
+		} catch (LvPacket.ReadException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * check that reading packets does not allocate memory, in steady state.
+	 */
+	@Test
+	public void testAllocationRate() throws IOException, LvPacket.ReadException {
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		final int packetCnt=100;
+		final int repeats=2000;
+		byte[] bytes = makePackets(packetCnt);
+
+		LvPacketReader reader = new LvPacketReader(new FragmentingInputStream(bytes, repeats), new ByteBufferPool());
+
+		// warm up
+		for (int i=0; i < packetCnt * repeats / 2; i++) {
+			reader.read();
+		}
+
+		long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+
+		int cnt=0;
+		while (reader.read()!=null) {
+			cnt++;
+		}
+
+		allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+		double bytesPerPacket = (double) allocatedBytes / cnt;
+		System.out.print(String.format("%d packets read, %.3f bytes allocated per packet\n", cnt, bytesPerPacket));
+
+		assert( cnt == packetCnt * repeats / 2 );
+		assert( bytesPerPacket < 1 );
+	}
+
+
+}